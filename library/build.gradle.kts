@@ -12,6 +12,10 @@ android {
         minSdk = 1
     }
 
+    buildFeatures {
+        aidl = true
+    }
+
     publishing {
         singleVariant("release") {
             withSourcesJar()
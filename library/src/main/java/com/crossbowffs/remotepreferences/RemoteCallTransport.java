@@ -0,0 +1,134 @@
+package com.crossbowffs.remotepreferences;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Transport that uses {@link ContentResolver#call(android.net.Uri, String, String, Bundle)}
+ * to communicate with the provider. Compared to the cursor protocol, this
+ * avoids setting up a cursor window for every read. Change notifications
+ * are still delivered through {@link android.database.ContentObserver}.
+ * Requires API 11 or above.
+ */
+@TargetApi(11)
+/* package */ class RemoteCallTransport extends RemoteCursorTransport {
+    public RemoteCallTransport(Context context, String authority) {
+        super(context, authority);
+        if (Build.VERSION.SDK_INT < 11) {
+            throw new UnsupportedOperationException("call() transport only supported on API 11 and above");
+        }
+    }
+
+    @Override
+    public Object readOne(String prefFileName, String prefKey) {
+        return read(prefFileName, new String[] {prefKey}).getValues().get(prefKey);
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readMany(String prefFileName, String[] prefKeys) {
+        return read(prefFileName, prefKeys);
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readAll(String prefFileName) {
+        return read(prefFileName, null);
+    }
+
+    @Override
+    public Map<String, RemotePreferenceSnapshot> readFiles(String[] prefFileNames, String[][] prefKeys) {
+        Bundle fileKeys = new Bundle();
+        for (int i = 0; i < prefFileNames.length; ++i) {
+            if (prefKeys[i] != null) {
+                fileKeys.putStringArray(prefFileNames[i], prefKeys[i]);
+            }
+        }
+        Bundle extras = new Bundle();
+        extras.putStringArray(RemoteContract.EXTRA_FILES, prefFileNames);
+        extras.putBundle(RemoteContract.EXTRA_FILE_KEYS, fileKeys);
+
+        Bundle result = callIfSupported(RemoteContract.METHOD_READ_FILES, "", extras);
+        Bundle files = (result != null) ? result.getBundle(RemoteContract.EXTRA_FILES) : null;
+        if (files == null) {
+            // Older providers do not know this method, so read each
+            // file separately. If a file name is invalid, reading it
+            // separately throws the same exception again.
+            return super.readFiles(prefFileNames, prefKeys);
+        }
+
+        HashMap<String, RemotePreferenceSnapshot> snapshots = new HashMap<String, RemotePreferenceSnapshot>(prefFileNames.length);
+        for (String prefFileName : prefFileNames) {
+            Bundle file = files.getBundle(prefFileName);
+            Map<String, Object> values = RemoteUtils.deserializeBundle(file.getBundle(RemoteContract.EXTRA_VALUES));
+            long generation = file.getLong(RemoteContract.EXTRA_GENERATION, RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+            snapshots.put(prefFileName, new RemotePreferenceSnapshot(values, generation));
+        }
+        return snapshots;
+    }
+
+    @Override
+    public SortedMap<String, Object> readRange(String prefFileName, String fromKey, String toKey, int limit) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(RemoteContract.EXTRA_KEYS, null);
+        extras.putBoolean(RemoteContract.EXTRA_RANGE, true);
+        extras.putString(RemoteContract.EXTRA_FROM_KEY, fromKey);
+        extras.putString(RemoteContract.EXTRA_TO_KEY, toKey);
+        extras.putInt(RemoteContract.EXTRA_LIMIT, limit);
+        Bundle result = call(RemoteContract.METHOD_READ, prefFileName, extras);
+        Map<String, Object> map = RemoteUtils.deserializeBundle(result.getBundle(RemoteContract.EXTRA_VALUES));
+
+        // Older providers ignore the range and return the entire
+        // file, so this also filters out anything outside the range.
+        return RemoteUtils.getRange(map, fromKey, toKey, limit);
+    }
+
+    @Override
+    public Map<String, Integer> readTypes(String prefFileName) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(RemoteContract.EXTRA_KEYS, null);
+        extras.putBoolean(RemoteContract.EXTRA_TYPES_ONLY, true);
+        Bundle result = call(RemoteContract.METHOD_READ, prefFileName, extras);
+        Bundle types = result.getBundle(RemoteContract.EXTRA_TYPES);
+        if (types == null) {
+            // Older providers ignore the flag and send the values
+            Map<String, Object> values = RemoteUtils.deserializeBundle(result.getBundle(RemoteContract.EXTRA_VALUES));
+            return RemoteUtils.getPreferenceTypes(values);
+        }
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        for (String key : types.keySet()) {
+            map.put(key, types.getInt(key));
+        }
+        return map;
+    }
+
+    @Override
+    protected long writeChunk(String prefFileName, ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(RemoteContract.EXTRA_VALUES, values);
+        Bundle result = call(RemoteContract.METHOD_WRITE, prefFileName, extras);
+        return getWriteResult(result);
+    }
+
+    /**
+     * Reads the specified preferences from the provider.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The preference keys to read, or {@code null} to read all.
+     * @return A snapshot containing the requested preferences.
+     */
+    private RemotePreferenceSnapshot read(String prefFileName, String[] prefKeys) {
+        Bundle extras = new Bundle();
+        extras.putStringArray(RemoteContract.EXTRA_KEYS, prefKeys);
+        Bundle result = call(RemoteContract.METHOD_READ, prefFileName, extras);
+        Map<String, Object> values = RemoteUtils.deserializeBundle(result.getBundle(RemoteContract.EXTRA_VALUES));
+        long generation = result.getLong(RemoteContract.EXTRA_GENERATION, RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+        return new RemotePreferenceSnapshot(values, generation);
+    }
+}
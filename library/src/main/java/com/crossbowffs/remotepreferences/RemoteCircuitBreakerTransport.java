@@ -0,0 +1,244 @@
+package com.crossbowffs.remotepreferences;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Transport that stops forwarding requests to another transport after
+ * the provider has repeatedly failed to respond. While the circuit is
+ * open, all requests fail immediately with a
+ * {@link RemotePreferenceAccessException} instead of paying for another
+ * failed provider lookup. Once the backoff period has elapsed, the next
+ * request triggers a probe in the background; if it succeeds, requests
+ * are forwarded again, otherwise the backoff period is doubled (up to a
+ * limit).
+ *
+ * <p>
+ * Only {@link RemotePreferenceAccessException}s count as failures; the
+ * transports also report a provider that is not installed or enabled
+ * this way. Exceptions thrown by the provider itself (e.g. a {@link SecurityException}
+ * because {@link RemotePreferenceProvider#checkAccess(String, String, boolean)}
+ * rejected the request) mean that the provider is reachable.
+ * </p>
+ */
+/* package */ class RemoteCircuitBreakerTransport implements RemotePreferenceTransport {
+    private static final int MAX_BACKOFF_MULTIPLIER = 16;
+
+    private final RemotePreferenceTransport mDelegate;
+    private final String mPrefFileName;
+    private final Executor mExecutor;
+    private final int mFailureThreshold;
+    private final long mBaseBackoffMillis;
+    private int mState;
+    private int mFailureCount;
+    private long mBackoffMillis;
+    private long mRetryTime;
+
+    public RemoteCircuitBreakerTransport(RemotePreferenceTransport delegate, String prefFileName,
+                                         Executor executor, int failureThreshold, long backoffMillis) {
+        mDelegate = delegate;
+        mPrefFileName = prefFileName;
+        mExecutor = executor;
+        mFailureThreshold = failureThreshold;
+        mBaseBackoffMillis = backoffMillis;
+        mState = RemotePreferences.CIRCUIT_CLOSED;
+        mFailureCount = 0;
+        mBackoffMillis = backoffMillis;
+    }
+
+    /**
+     * Returns the current state of the circuit breaker.
+     *
+     * @return One of the {@link RemotePreferences}{@code .CIRCUIT_*} constants.
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    @Override
+    public Object readOne(String prefFileName, String prefKey) {
+        checkClosed();
+        try {
+            Object value = mDelegate.readOne(prefFileName, prefKey);
+            onSuccess();
+            return value;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readMany(String prefFileName, String[] prefKeys) {
+        checkClosed();
+        try {
+            RemotePreferenceSnapshot snapshot = mDelegate.readMany(prefFileName, prefKeys);
+            onSuccess();
+            return snapshot;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readAll(String prefFileName) {
+        checkClosed();
+        try {
+            RemotePreferenceSnapshot snapshot = mDelegate.readAll(prefFileName);
+            onSuccess();
+            return snapshot;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public Map<String, RemotePreferenceSnapshot> readFiles(String[] prefFileNames, String[][] prefKeys) {
+        checkClosed();
+        try {
+            Map<String, RemotePreferenceSnapshot> snapshots = mDelegate.readFiles(prefFileNames, prefKeys);
+            onSuccess();
+            return snapshots;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public long[] writeFiles(String[] prefFileNames, ContentValues[][] values) {
+        checkClosed();
+        try {
+            long[] generations = mDelegate.writeFiles(prefFileNames, values);
+            onSuccess();
+            return generations;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public SortedMap<String, Object> readRange(String prefFileName, String fromKey, String toKey, int limit) {
+        checkClosed();
+        try {
+            SortedMap<String, Object> values = mDelegate.readRange(prefFileName, fromKey, toKey, limit);
+            onSuccess();
+            return values;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public Map<String, Integer> readTypes(String prefFileName) {
+        checkClosed();
+        try {
+            Map<String, Integer> types = mDelegate.readTypes(prefFileName);
+            onSuccess();
+            return types;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public long writeBatch(String prefFileName, ContentValues[] values) {
+        checkClosed();
+        try {
+            long generation = mDelegate.writeBatch(prefFileName, values);
+            onSuccess();
+            return generation;
+        } catch (RemotePreferenceAccessException e) {
+            onFailure();
+            throw e;
+        }
+    }
+
+    @Override
+    public void addObserver(String prefFileName, Observer observer) {
+        mDelegate.addObserver(prefFileName, observer);
+    }
+
+    @Override
+    public void removeObserver(String prefFileName, Observer observer) {
+        mDelegate.removeObserver(prefFileName, observer);
+    }
+
+    /**
+     * Throws an exception if the circuit is not closed. If the backoff
+     * period has elapsed, also starts a probe in the background.
+     */
+    private void checkClosed() {
+        synchronized (this) {
+            if (mState == RemotePreferences.CIRCUIT_CLOSED) {
+                return;
+            }
+            if (mState == RemotePreferences.CIRCUIT_OPEN && SystemClock.elapsedRealtime() >= mRetryTime) {
+                mState = RemotePreferences.CIRCUIT_HALF_OPEN;
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        probe();
+                    }
+                });
+            }
+        }
+        throw new RemotePreferenceAccessException("Provider is unavailable, retrying later");
+    }
+
+    /**
+     * Checks whether the provider is reachable again, by performing
+     * the cheapest possible request.
+     */
+    private void probe() {
+        try {
+            mDelegate.readMany(mPrefFileName, new String[0]);
+        } catch (RemotePreferenceAccessException e) {
+            synchronized (this) {
+                mBackoffMillis = Math.min(mBackoffMillis * 2, mBaseBackoffMillis * MAX_BACKOFF_MULTIPLIER);
+                open();
+            }
+            return;
+        } catch (RuntimeException e) {
+            // The provider rejected the request, but it's there. The
+            // transports report a missing provider as an access
+            // exception, so it never ends up here.
+        }
+        onSuccess();
+    }
+
+    /**
+     * Resets the failure count and closes the circuit.
+     */
+    private synchronized void onSuccess() {
+        mState = RemotePreferences.CIRCUIT_CLOSED;
+        mFailureCount = 0;
+        mBackoffMillis = mBaseBackoffMillis;
+    }
+
+    /**
+     * Records a failure, opening the circuit if the threshold was reached.
+     */
+    private synchronized void onFailure() {
+        if (mState == RemotePreferences.CIRCUIT_CLOSED && ++mFailureCount >= mFailureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Opens the circuit for the current backoff period.
+     */
+    private void open() {
+        mState = RemotePreferences.CIRCUIT_OPEN;
+        mRetryTime = SystemClock.elapsedRealtime() + mBackoffMillis;
+    }
+}
@@ -12,6 +12,10 @@ package com.crossbowffs.remotepreferences;
         RemoteContract.COLUMN_TYPE,
         RemoteContract.COLUMN_VALUE
     };
+    public static final String[] COLUMN_KEY_AND_TYPE = {
+        RemoteContract.COLUMN_KEY,
+        RemoteContract.COLUMN_TYPE
+    };
 
     public static final int TYPE_NULL = 0;
     public static final int TYPE_STRING = 1;
@@ -21,5 +25,36 @@ package com.crossbowffs.remotepreferences;
     public static final int TYPE_FLOAT = 5;
     public static final int TYPE_BOOLEAN = 6;
 
+    public static final String SELECTION_KEYS = "keys";
+    public static final String SELECTION_PREFIX = "prefix";
+    public static final String SELECTION_RANGE = "range";
+
+    public static final String METHOD_READ = "read";
+    public static final String METHOD_WRITE = "write";
+    public static final String METHOD_BEGIN = "begin";
+    public static final String METHOD_STAGE = "stage";
+    public static final String METHOD_COMMIT = "commit";
+    public static final String METHOD_ABORT = "abort";
+    public static final String METHOD_READ_FILES = "read_files";
+    public static final String METHOD_WRITE_FILES = "write_files";
+    public static final String EXTRA_KEYS = "keys";
+    public static final String EXTRA_VALUES = "values";
+    public static final String EXTRA_RESULT = "result";
+    public static final String EXTRA_GENERATION = "generation";
+    public static final String EXTRA_GENERATIONS = "generations";
+    public static final String EXTRA_TYPES_ONLY = "types_only";
+    public static final String EXTRA_TYPES = "types";
+    public static final String EXTRA_RANGE = "range";
+    public static final String EXTRA_FROM_KEY = "from_key";
+    public static final String EXTRA_TO_KEY = "to_key";
+    public static final String EXTRA_LIMIT = "limit";
+    public static final String EXTRA_TRANSACTION = "transaction";
+    public static final String EXTRA_FILES = "files";
+    public static final String EXTRA_FILE_KEYS = "file_keys";
+
+    public static final String PARAM_TYPE = "type";
+    public static final String PARAM_VALUE = "value";
+    public static final String PARAM_GENERATION = "generation";
+
     private RemoteContract() {}
 }
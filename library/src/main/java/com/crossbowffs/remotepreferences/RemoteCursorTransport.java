@@ -0,0 +1,550 @@
+package com.crossbowffs.remotepreferences;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Transport that uses the {@link ContentResolver} query/bulkInsert APIs
+ * to communicate with the provider. Change notifications are delivered
+ * through {@link ContentObserver}. This is the original RemotePreferences
+ * protocol, and works with every version of the provider.
+ */
+/* package */ class RemoteCursorTransport implements RemotePreferenceTransport {
+    /**
+     * Maximum size of a batch that is written in a single transaction.
+     * The binder transaction buffer is 1MB, but it is shared by all
+     * transactions in progress in the process, so stay well below it.
+     */
+    /* package */ static final int MAX_BATCH_SIZE = 256 * 1024;
+
+    private final Context mContext;
+    private final Uri mBaseUri;
+    private final RemotePreferenceUriParser mUriParser;
+    private final Map<Observer, ContentObserver> mObservers;
+
+    public RemoteCursorTransport(Context context, String authority) {
+        mContext = context;
+        mBaseUri = Uri.parse("content://" + authority);
+        mUriParser = new RemotePreferenceUriParser(authority);
+        mObservers = new HashMap<Observer, ContentObserver>();
+    }
+
+    @Override
+    public Object readOne(String prefFileName, String prefKey) {
+        Uri uri = getPreferenceUri(prefFileName, prefKey);
+        String[] columns = {RemoteContract.COLUMN_TYPE, RemoteContract.COLUMN_VALUE};
+        Cursor cursor = query(uri, columns, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+
+            int typeCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_TYPE);
+            if (cursor.getInt(typeCol) == RemoteContract.TYPE_NULL) {
+                return null;
+            }
+
+            int valueCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_VALUE);
+            return getValue(cursor, typeCol, valueCol);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readMany(String prefFileName, String[] prefKeys) {
+        return queryMany(prefFileName, prefKeys);
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readAll(String prefFileName) {
+        return readRows(prefFileName, null, null);
+    }
+
+    @Override
+    public Map<String, RemotePreferenceSnapshot> readFiles(String[] prefFileNames, String[][] prefKeys) {
+        // The cursor protocol can only query one file at a time. Always
+        // use it (even in subclasses), since this is also the fallback
+        // for providers that do not support call().
+        HashMap<String, RemotePreferenceSnapshot> snapshots = new HashMap<String, RemotePreferenceSnapshot>(prefFileNames.length);
+        for (int i = 0; i < prefFileNames.length; ++i) {
+            RemotePreferenceSnapshot snapshot;
+            if (prefKeys[i] == null) {
+                snapshot = readRows(prefFileNames[i], null, null);
+            } else {
+                snapshot = queryMany(prefFileNames[i], prefKeys[i]);
+            }
+            snapshots.put(prefFileNames[i], snapshot);
+        }
+        return snapshots;
+    }
+
+    /**
+     * Reads multiple preferences using the cursor protocol.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The preference keys to read.
+     * @return A snapshot containing the requested preferences.
+     */
+    private RemotePreferenceSnapshot queryMany(String prefFileName, String[] prefKeys) {
+        RemotePreferenceSnapshot snapshot = readRows(prefFileName, RemoteContract.SELECTION_KEYS, prefKeys);
+        Map<String, Object> map = snapshot.getValues();
+
+        // Older providers ignore the selection and return the entire
+        // file, so filter out anything the caller didn't ask for.
+        if (map.size() > prefKeys.length) {
+            HashMap<String, Object> filtered = new HashMap<String, Object>(prefKeys.length);
+            for (String prefKey : prefKeys) {
+                Object value = map.get(prefKey);
+                if (value != null) {
+                    filtered.put(prefKey, value);
+                }
+            }
+            snapshot = new RemotePreferenceSnapshot(filtered, snapshot.getGeneration());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public SortedMap<String, Object> readRange(String prefFileName, String fromKey, String toKey, int limit) {
+        String[] selectionArgs = {fromKey, toKey, limit > 0 ? Integer.toString(limit) : null};
+        Map<String, Object> map = readRows(prefFileName, RemoteContract.SELECTION_RANGE, selectionArgs).getValues();
+
+        // Older providers ignore the selection and return the entire
+        // file, so this also filters out anything outside the range.
+        return RemoteUtils.getRange(map, fromKey, toKey, limit);
+    }
+
+    @Override
+    public Map<String, Integer> readTypes(String prefFileName) {
+        Uri uri = getPreferenceUri(prefFileName, null);
+        Cursor cursor = query(uri, RemoteContract.COLUMN_KEY_AND_TYPE, null, null);
+        try {
+            HashMap<String, Integer> map = new HashMap<String, Integer>();
+            int keyCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_KEY);
+            int typeCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_TYPE);
+            while (cursor.moveToNext()) {
+                int type = cursor.getInt(typeCol);
+                if (type != RemoteContract.TYPE_NULL) {
+                    map.put(cursor.getString(keyCol), type);
+                }
+            }
+            return map;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public long writeBatch(String prefFileName, ContentValues[] values) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            List<ContentValues[]> chunks = RemoteUtils.splitBatch(values, MAX_BATCH_SIZE);
+            if (chunks.size() > 1) {
+                Long generation = writeStaged(prefFileName, chunks);
+                if (generation != null) {
+                    return generation;
+                }
+            }
+        }
+        return writeChunk(prefFileName, values);
+    }
+
+    @Override
+    public long[] writeFiles(String[] prefFileNames, ContentValues[][] values) {
+        // The cursor protocol has no transactions, so this always uses call()
+        if (Build.VERSION.SDK_INT < 11) {
+            throw new UnsupportedOperationException("Multi-file transactions only supported on API 11 and above");
+        }
+        Bundle fileValues = new Bundle();
+        for (int i = 0; i < prefFileNames.length; ++i) {
+            fileValues.putParcelableArray(prefFileNames[i], values[i]);
+        }
+        Bundle extras = new Bundle();
+        extras.putStringArray(RemoteContract.EXTRA_FILES, prefFileNames);
+        extras.putBundle(RemoteContract.EXTRA_VALUES, fileValues);
+        Bundle result = call(RemoteContract.METHOD_WRITE_FILES, "", extras);
+        if (!result.getBoolean(RemoteContract.EXTRA_RESULT)) {
+            return null;
+        }
+        long[] generations = result.getLongArray(RemoteContract.EXTRA_GENERATIONS);
+        if (generations == null || generations.length != prefFileNames.length) {
+            // All zeroes, i.e. UNKNOWN_GENERATION
+            return new long[prefFileNames.length];
+        }
+        return generations;
+    }
+
+    /**
+     * Writes a batch that is small enough to be sent in a single
+     * transaction.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param values The values to write.
+     * @return See {@link #writeBatch(String, ContentValues[])}.
+     */
+    protected long writeChunk(String prefFileName, ContentValues[] values) {
+        // bulkInsert() can only return a count, so the generation is unknown
+        Uri uri = getPreferenceUri(prefFileName, null);
+        int count;
+        try {
+            count = mContext.getContentResolver().bulkInsert(uri, values);
+        } catch (IllegalArgumentException e) {
+            throw translateException(e);
+        }
+        return (count == values.length) ? RemotePreferenceSnapshot.UNKNOWN_GENERATION : WRITE_FAILED;
+    }
+
+    /**
+     * Writes a batch in multiple transactions, using a staged write
+     * so that the provider commits all of the chunks at once.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param chunks The values to write, split into chunks.
+     * @return See {@link #writeBatch(String, ContentValues[])}, or
+     *         {@code null} if the provider does not support staged writes.
+     */
+    @TargetApi(11)
+    private Long writeStaged(String prefFileName, List<ContentValues[]> chunks) {
+        Bundle result = callIfSupported(RemoteContract.METHOD_BEGIN, prefFileName, new Bundle());
+        String transaction = (result != null) ? result.getString(RemoteContract.EXTRA_TRANSACTION) : null;
+        if (transaction == null) {
+            return null;
+        }
+
+        boolean committed = false;
+        try {
+            for (ContentValues[] chunk : chunks) {
+                Bundle extras = new Bundle();
+                extras.putString(RemoteContract.EXTRA_TRANSACTION, transaction);
+                extras.putParcelableArray(RemoteContract.EXTRA_VALUES, chunk);
+                call(RemoteContract.METHOD_STAGE, prefFileName, extras);
+            }
+            Bundle extras = new Bundle();
+            extras.putString(RemoteContract.EXTRA_TRANSACTION, transaction);
+            result = call(RemoteContract.METHOD_COMMIT, prefFileName, extras);
+            committed = true;
+            return getWriteResult(result);
+        } finally {
+            if (!committed) {
+                abortStaged(prefFileName, transaction);
+            }
+        }
+    }
+
+    /**
+     * Converts the result of a write method to the value returned by
+     * {@link #writeBatch(String, ContentValues[])}.
+     *
+     * @param result The result returned by the provider.
+     * @return The generation of the file after the write, or
+     *         {@link #WRITE_FAILED} if the write failed.
+     */
+    protected static long getWriteResult(Bundle result) {
+        if (!result.getBoolean(RemoteContract.EXTRA_RESULT)) {
+            return WRITE_FAILED;
+        }
+        return result.getLong(RemoteContract.EXTRA_GENERATION, RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+    }
+
+    /**
+     * Discards a staged write. Failures are ignored, since the provider
+     * eventually discards abandoned writes by itself.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param transaction The ID of the staged write.
+     */
+    @TargetApi(11)
+    private void abortStaged(String prefFileName, String transaction) {
+        Bundle extras = new Bundle();
+        extras.putString(RemoteContract.EXTRA_TRANSACTION, transaction);
+        try {
+            call(RemoteContract.METHOD_ABORT, prefFileName, extras);
+        } catch (RuntimeException e) {
+            // Ignored
+        }
+    }
+
+    @Override
+    public void addObserver(String prefFileName, final Observer observer) {
+        synchronized (mObservers) {
+            if (mObservers.containsKey(observer)) return;
+
+            // No handler, since the observer is responsible for
+            // dispatching the event to the appropriate thread.
+            ContentObserver contentObserver = new ContentObserver(null) {
+                @Override
+                public boolean deliverSelfNotifications() {
+                    return true;
+                }
+
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    RemotePreferencePath path = mUriParser.parse(uri);
+                    observer.onChange(path.fileName, path.key, getNotificationValue(uri), getNotificationGeneration(uri));
+                }
+            };
+            mObservers.put(observer, contentObserver);
+            Uri uri = getPreferenceUri(prefFileName, null);
+            mContext.getContentResolver().registerContentObserver(uri, true, contentObserver);
+        }
+    }
+
+    @Override
+    public void removeObserver(String prefFileName, Observer observer) {
+        ContentObserver contentObserver;
+        synchronized (mObservers) {
+            contentObserver = mObservers.remove(observer);
+        }
+        if (contentObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(contentObserver);
+        }
+    }
+
+    /**
+     * Returns the context used to access the provider.
+     *
+     * @return The context passed to the constructor.
+     */
+    protected Context getContext() {
+        return mContext;
+    }
+
+    /**
+     * Builds a URI for the specified preference file and key.
+     *
+     * @param prefFileName The preference file.
+     * @param prefKey The preference key, or {@code null} for the entire file.
+     * @return A URI representing the specified preference(s).
+     */
+    protected Uri getPreferenceUri(String prefFileName, String prefKey) {
+        Uri.Builder builder = mBaseUri.buildUpon().appendPath(prefFileName);
+        if (prefKey != null) {
+            builder.appendPath(prefKey);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Invokes a method on the provider, throwing an exception if the
+     * provider could not be reached or does not support the method.
+     *
+     * @param method The method to invoke.
+     * @param prefFileName The name of the preference file.
+     * @param extras The method arguments.
+     * @return The result returned by the provider.
+     */
+    @TargetApi(11)
+    protected Bundle call(String method, String prefFileName, Bundle extras) {
+        ContentResolver resolver = mContext.getContentResolver();
+        Bundle result;
+        try {
+            result = resolver.call(getPreferenceUri(prefFileName, null), method, prefFileName, extras);
+        } catch (IllegalArgumentException e) {
+            throw translateException(e);
+        }
+        if (result == null) {
+            throw new RemotePreferenceAccessException("call() failed or returned null result");
+        }
+        return result;
+    }
+
+    /**
+     * Invokes a method on the provider that older providers may not
+     * support. Providers from before {@code call()} was supported return
+     * {@code null} for every method, and later ones reject methods they
+     * do not know with an {@link IllegalArgumentException}.
+     *
+     * @param method The method to invoke.
+     * @param prefFileName The name of the preference file.
+     * @param extras The method arguments.
+     * @return The result returned by the provider, or {@code null}
+     *         if the provider does not support the method.
+     */
+    @TargetApi(11)
+    protected Bundle callIfSupported(String method, String prefFileName, Bundle extras) {
+        ContentResolver resolver = mContext.getContentResolver();
+        try {
+            return resolver.call(getPreferenceUri(prefFileName, null), method, prefFileName, extras);
+        } catch (IllegalArgumentException e) {
+            // The provider might also not exist at all
+            RuntimeException translated = translateException(e);
+            if (translated != e) {
+                throw translated;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Converts an {@link IllegalArgumentException} thrown by the
+     * {@link ContentResolver} into a {@link RemotePreferenceAccessException}
+     * if it was caused by the provider not being installed or enabled, so
+     * that it is handled like any other failure to reach the provider.
+     * Exceptions thrown by the provider itself are returned unchanged.
+     *
+     * @param e The exception thrown by the {@link ContentResolver}.
+     * @return The exception to throw.
+     */
+    protected RuntimeException translateException(IllegalArgumentException e) {
+        String authority = mBaseUri.getAuthority();
+        if (mContext.getPackageManager().resolveContentProvider(authority, 0) == null) {
+            return new RemotePreferenceAccessException("Provider not found: " + authority, e);
+        }
+        return e;
+    }
+
+    /**
+     * Queries the specified URI, throwing an exception if the provider
+     * could not be reached.
+     *
+     * @param uri The URI to query.
+     * @param columns The columns to include in the returned cursor.
+     * @param selection The selection, or {@code null} to select everything.
+     * @param selectionArgs The selection arguments.
+     * @return A cursor used to access the queried preference data.
+     */
+    private Cursor query(Uri uri, String[] columns, String selection, String[] selectionArgs) {
+        Cursor cursor = mContext.getContentResolver().query(uri, columns, selection, selectionArgs, null);
+        if (cursor == null) {
+            throw new RemotePreferenceAccessException("query() failed or returned null cursor");
+        }
+        return cursor;
+    }
+
+    /**
+     * Reads multiple rows from the specified preference file.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param selection The selection, or {@code null} to select everything.
+     * @param selectionArgs The selection arguments.
+     * @return A snapshot containing the selected preferences.
+     */
+    private RemotePreferenceSnapshot readRows(String prefFileName, String selection, String[] selectionArgs) {
+        Uri uri = getPreferenceUri(prefFileName, null);
+        Cursor cursor = query(uri, RemoteContract.COLUMN_ALL, selection, selectionArgs);
+        try {
+            long generation = RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+            Bundle extras = cursor.getExtras();
+            if (extras != null) {
+                generation = extras.getLong(RemoteContract.EXTRA_GENERATION, generation);
+            }
+            return new RemotePreferenceSnapshot(readRows(cursor), generation);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads all rows from a cursor containing the {@link RemoteContract#COLUMN_ALL}
+     * columns. Does not close the cursor.
+     *
+     * @param cursor The cursor to read.
+     * @return A map containing the preferences in the cursor.
+     */
+    private static Map<String, Object> readRows(Cursor cursor) {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        int keyCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_KEY);
+        int typeCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_TYPE);
+        int valueCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_VALUE);
+        while (cursor.moveToNext()) {
+            if (cursor.getInt(typeCol) == RemoteContract.TYPE_NULL) {
+                continue;
+            }
+            String key = cursor.getString(keyCol);
+            map.put(key, getValue(cursor, typeCol, valueCol));
+        }
+        return map;
+    }
+
+    /**
+     * Extracts a preference value from a cursor. Performs deserialization
+     * of the value if necessary.
+     *
+     * @param cursor The cursor containing the preference value.
+     * @param typeCol The index containing the {@link RemoteContract#COLUMN_TYPE} column.
+     * @param valueCol The index containing the {@link RemoteContract#COLUMN_VALUE} column.
+     * @return The value from the cursor.
+     */
+    private static Object getValue(Cursor cursor, int typeCol, int valueCol) {
+        int expectedType = cursor.getInt(typeCol);
+        switch (expectedType) {
+        case RemoteContract.TYPE_STRING:
+            return cursor.getString(valueCol);
+        case RemoteContract.TYPE_STRING_SET:
+            return RemoteUtils.deserializeStringSet(cursor.getString(valueCol));
+        case RemoteContract.TYPE_INT:
+            return cursor.getInt(valueCol);
+        case RemoteContract.TYPE_LONG:
+            return cursor.getLong(valueCol);
+        case RemoteContract.TYPE_FLOAT:
+            return cursor.getFloat(valueCol);
+        case RemoteContract.TYPE_BOOLEAN:
+            return cursor.getInt(valueCol) != 0;
+        default:
+            throw new AssertionError("Invalid expected type: " + expectedType);
+        }
+    }
+
+    /**
+     * Extracts the generation of the preference file from a change
+     * notification URI, if the provider chose to include it.
+     *
+     * @param uri The notification URI.
+     * @return The generation of the file, or
+     *         {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION} if the
+     *         URI does not contain a valid generation.
+     */
+    private static long getNotificationGeneration(Uri uri) {
+        String generation = uri.getQueryParameter(RemoteContract.PARAM_GENERATION);
+        if (generation == null) {
+            return RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        }
+        try {
+            return Long.parseLong(generation);
+        } catch (NumberFormatException e) {
+            return RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        }
+    }
+
+    /**
+     * Extracts the new preference value from a change notification URI,
+     * if the provider chose to include it.
+     *
+     * @param uri The notification URI.
+     * @return The new value of the preference, or
+     *         {@link RemotePreferenceTransport#UNKNOWN_VALUE} if the URI
+     *         does not contain a valid value.
+     */
+    private static Object getNotificationValue(Uri uri) {
+        String type = uri.getQueryParameter(RemoteContract.PARAM_TYPE);
+        if (type == null) {
+            return UNKNOWN_VALUE;
+        }
+        try {
+            String value = uri.getQueryParameter(RemoteContract.PARAM_VALUE);
+            Object prefValue = RemoteUtils.deserializeString(value, Integer.parseInt(type));
+            if (prefValue instanceof Set<?>) {
+                prefValue = Collections.unmodifiableSet(RemoteUtils.castStringSet(prefValue));
+            }
+            return prefValue;
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException; treat malformed
+            // values as if they were not included at all
+            return UNKNOWN_VALUE;
+        }
+    }
+}
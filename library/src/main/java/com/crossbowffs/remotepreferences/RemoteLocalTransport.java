@@ -0,0 +1,194 @@
+package com.crossbowffs.remotepreferences;
+
+import android.content.ContentValues;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Transport that calls directly into a {@link RemotePreferenceProvider}
+ * running in the current process, skipping all IPC and serialization.
+ * The provider is looked up on every call, since it may not have been
+ * created yet when the transport is constructed. If the provider is not
+ * running in the current process, requests are forwarded to the fallback
+ * transport, or fail if there is none.
+ */
+/* package */ class RemoteLocalTransport implements RemotePreferenceTransport {
+    private final String mAuthority;
+    private final RemotePreferenceTransport mFallback;
+    private final Map<Observer, RemotePreferenceProvider> mObservers;
+
+    public RemoteLocalTransport(String authority, RemotePreferenceTransport fallback) {
+        mAuthority = authority;
+        mFallback = fallback;
+        mObservers = new HashMap<Observer, RemotePreferenceProvider>();
+    }
+
+    @Override
+    public Object readOne(String prefFileName, String prefKey) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().readOne(prefFileName, prefKey);
+        }
+        Map<String, Object> map = provider.readPreferences(prefFileName, new String[] {prefKey});
+        return copyValue(map.get(prefKey));
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readMany(String prefFileName, String[] prefKeys) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().readMany(prefFileName, prefKeys);
+        }
+        RemotePreferenceSnapshot snapshot = provider.readSnapshot(prefFileName, prefKeys);
+        copyValues(snapshot.getValues());
+        return snapshot;
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readAll(String prefFileName) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().readAll(prefFileName);
+        }
+        RemotePreferenceSnapshot snapshot = provider.readSnapshot(prefFileName, null);
+        copyValues(snapshot.getValues());
+        return snapshot;
+    }
+
+    @Override
+    public Map<String, RemotePreferenceSnapshot> readFiles(String[] prefFileNames, String[][] prefKeys) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().readFiles(prefFileNames, prefKeys);
+        }
+        Map<String, RemotePreferenceSnapshot> snapshots = provider.readFiles(prefFileNames, prefKeys);
+        for (RemotePreferenceSnapshot snapshot : snapshots.values()) {
+            copyValues(snapshot.getValues());
+        }
+        return snapshots;
+    }
+
+    @Override
+    public SortedMap<String, Object> readRange(String prefFileName, String fromKey, String toKey, int limit) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().readRange(prefFileName, fromKey, toKey, limit);
+        }
+        Map<String, Object> values = copyValues(provider.readPreferenceRange(prefFileName, fromKey, toKey, limit).getValues());
+        return new TreeMap<String, Object>(values);
+    }
+
+    @Override
+    public Map<String, Integer> readTypes(String prefFileName) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().readTypes(prefFileName);
+        }
+        return RemoteUtils.getPreferenceTypes(provider.readPreferences(prefFileName, null));
+    }
+
+    @Override
+    public long writeBatch(String prefFileName, ContentValues[] values) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().writeBatch(prefFileName, values);
+        }
+        return provider.writePreferences(prefFileName, values);
+    }
+
+    @Override
+    public long[] writeFiles(String[] prefFileNames, ContentValues[][] values) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        if (provider == null) {
+            return getFallback().writeFiles(prefFileNames, values);
+        }
+        return provider.writeFiles(prefFileNames, values);
+    }
+
+    @Override
+    public void addObserver(String prefFileName, Observer observer) {
+        RemotePreferenceProvider provider = getLocalProvider();
+        synchronized (mObservers) {
+            if (mObservers.containsKey(observer)) return;
+            mObservers.put(observer, provider);
+        }
+        if (provider == null) {
+            getFallback().addObserver(prefFileName, observer);
+        } else {
+            provider.addLocalObserver(prefFileName, observer);
+        }
+    }
+
+    @Override
+    public void removeObserver(String prefFileName, Observer observer) {
+        RemotePreferenceProvider provider;
+        synchronized (mObservers) {
+            if (!mObservers.containsKey(observer)) return;
+            provider = mObservers.remove(observer);
+        }
+        if (provider == null) {
+            getFallback().removeObserver(prefFileName, observer);
+        } else {
+            provider.removeLocalObserver(prefFileName, observer);
+        }
+    }
+
+    /**
+     * Returns the provider instance if it is running in the current
+     * process, or {@code null} otherwise.
+     *
+     * @return The local provider instance, or {@code null}.
+     */
+    private RemotePreferenceProvider getLocalProvider() {
+        return RemotePreferenceProvider.getLocalProvider(mAuthority);
+    }
+
+    /**
+     * Returns the fallback transport, throwing an exception if there is
+     * no fallback.
+     *
+     * @return The fallback transport.
+     */
+    private RemotePreferenceTransport getFallback() {
+        if (mFallback == null) {
+            throw new RemotePreferenceAccessException("Provider is not running in the current process: " + mAuthority);
+        }
+        return mFallback;
+    }
+
+    /**
+     * Copies mutable preference values (i.e. string sets) so that the
+     * caller cannot modify the provider's copy of the value. Immutable
+     * values are returned as-is.
+     *
+     * @param value The preference value.
+     * @return A value that is safe to share with the caller.
+     */
+    private static Object copyValue(Object value) {
+        if (value instanceof Set<?>) {
+            return new HashSet<String>(RemoteUtils.castStringSet(value));
+        }
+        return value;
+    }
+
+    /**
+     * Applies {@link #copyValue(Object)} to every value in the map,
+     * in-place.
+     *
+     * @param map The map returned by the provider.
+     * @return The same map.
+     */
+    private static Map<String, Object> copyValues(Map<String, Object> map) {
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof Set<?>) {
+                entry.setValue(copyValue(entry.getValue()));
+            }
+        }
+        return map;
+    }
+}
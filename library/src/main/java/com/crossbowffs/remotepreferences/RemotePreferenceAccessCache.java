@@ -0,0 +1,107 @@
+package com.crossbowffs.remotepreferences;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of {@link RemotePreferenceProvider#checkAccess(String, String[], boolean)}
+ * for each calling UID, preference file, key, and access mode, so that
+ * repeated requests from the same caller do not have to run the check
+ * again. Decisions expire after a fixed duration, and the whole cache
+ * is cleared when packages are installed, updated, or removed, since
+ * that may change the identity behind a UID.
+ *
+ * <p>
+ * The number of cached decisions is bounded; the least recently used
+ * decisions are evicted first.
+ * </p>
+ */
+/* package */ class RemotePreferenceAccessCache {
+    private static final int MAX_SIZE = 1024;
+
+    private final long mDurationMillis;
+    private final LinkedHashMap<String, Decision> mDecisions;
+
+    public RemotePreferenceAccessCache(long durationMillis) {
+        mDurationMillis = durationMillis;
+        mDecisions = new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+                return size() > MAX_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached decision for the specified access.
+     *
+     * @param uid The UID of the caller.
+     * @param prefFileName The name of the preference file.
+     * @param prefKey The preference key, or {@code ""} for the whole file.
+     * @param write Whether the access modifies the preference.
+     * @return Whether the access is allowed, or {@code null} if there
+     *         is no cached decision.
+     */
+    public synchronized Boolean get(int uid, String prefFileName, String prefKey, boolean write) {
+        String cacheKey = getCacheKey(uid, prefFileName, prefKey, write);
+        Decision decision = mDecisions.get(cacheKey);
+        if (decision == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() >= decision.mExpiryTime) {
+            mDecisions.remove(cacheKey);
+            return null;
+        }
+        return decision.mAllowed;
+    }
+
+    /**
+     * Caches the decision for the specified access.
+     *
+     * @param uid The UID of the caller.
+     * @param prefFileName The name of the preference file.
+     * @param prefKey The preference key, or {@code ""} for the whole file.
+     * @param write Whether the access modifies the preference.
+     * @param allowed Whether the access is allowed.
+     */
+    public synchronized void put(int uid, String prefFileName, String prefKey, boolean write, boolean allowed) {
+        long expiryTime = SystemClock.elapsedRealtime() + mDurationMillis;
+        mDecisions.put(getCacheKey(uid, prefFileName, prefKey, write), new Decision(allowed, expiryTime));
+    }
+
+    /**
+     * Removes all cached decisions.
+     */
+    public synchronized void clear() {
+        mDecisions.clear();
+    }
+
+    /**
+     * Combines the components of an access into a single map key.
+     * File names cannot contain {@code '/'}, so the key is unambiguous.
+     *
+     * @param uid The UID of the caller.
+     * @param prefFileName The name of the preference file.
+     * @param prefKey The preference key.
+     * @param write Whether the access modifies the preference.
+     * @return The map key.
+     */
+    private static String getCacheKey(int uid, String prefFileName, String prefKey, boolean write) {
+        return uid + (write ? "/w/" : "/r/") + prefFileName + "/" + prefKey;
+    }
+
+    /**
+     * A cached access decision.
+     */
+    private static class Decision {
+        private final boolean mAllowed;
+        private final long mExpiryTime;
+
+        private Decision(boolean allowed, long expiryTime) {
+            mAllowed = allowed;
+            mExpiryTime = expiryTime;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package com.crossbowffs.remotepreferences;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client-side cache of preference values read from the provider.
+ * Entries are invalidated when a change notification is received
+ * for the corresponding key.
+ *
+ * <p>
+ * Since reads and change notifications race with each other, every
+ * write to the cache must be tagged with the version returned by
+ * {@link #getVersion()} before the value was read from the provider.
+ * If any invalidation happened in between, the write is discarded,
+ * since the value might be stale.
+ * </p>
+ *
+ * <p>
+ * Once the contents of the entire file have been stored using
+ * {@link #replaceAll(Map, long)}, the cache is <em>complete</em>: keys
+ * that are not in the cache are known not to exist, and lookups return
+ * {@link #ABSENT} instead of {@code null}. Keys that are invalidated
+ * individually become unknown again without affecting the other keys.
+ * </p>
+ *
+ * <p>
+ * Even if the cache is not complete, preferences that were read and
+ * found not to exist are remembered, so reads of keys that were never
+ * set don't need to contact the provider every time.
+ * </p>
+ *
+ * <p>
+ * The contents of a complete file are kept in a
+ * {@link RemotePreferenceCompactMap}. Values that change afterwards are
+ * kept in a small overlay map, which is folded back into the compact map
+ * the next time {@link #getAll()} is called.
+ * </p>
+ *
+ * <p>
+ * Values committed by this client are stored using
+ * {@link #putCommitted(Map, boolean, long)} as soon as the commit returns,
+ * tagged with the generation reported by the provider. Until a change
+ * notification or a snapshot of the file with the same or a newer
+ * generation arrives, older notifications and snapshots cannot
+ * overwrite them.
+ * </p>
+ *
+ * <p>
+ * The cache has an approximate size limit. When it is exceeded, the
+ * least recently used values in the overlay map are evicted first. If
+ * that is not enough, the compact map is dropped as a whole, since
+ * the cache can only answer reads of missing keys while it is complete.
+ * </p>
+ */
+/* package */ class RemotePreferenceCache {
+    /**
+     * Returned by {@link #get(String)} if the preference is known
+     * not to exist.
+     */
+    public static final Object ABSENT = new Object();
+
+    /**
+     * Returned by {@link #getType(String)} if the value is not cached.
+     */
+    public static final int TYPE_UNKNOWN = -1;
+
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private final LinkedHashMap<String, Object> mValues;
+    private final HashSet<String> mUnknownKeys;
+    private final HashMap<String, PendingWrite> mPendingWrites;
+    private final long mMaxSize;
+    private RemotePreferenceCompactMap mBase;
+    private long mVersion;
+    private long mPendingClearGeneration;
+    private long mValuesSize;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private boolean mClosed;
+
+    public RemotePreferenceCache(long maxSize) {
+        mValues = new LinkedHashMap<String, Object>(16, 0.75f, true);
+        mUnknownKeys = new HashSet<String>();
+        mPendingWrites = new HashMap<String, PendingWrite>();
+        mMaxSize = maxSize;
+        mBase = null;
+        mVersion = 0;
+        mPendingClearGeneration = RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        mValuesSize = 0;
+        mHitCount = 0;
+        mMissCount = 0;
+        mEvictionCount = 0;
+        mClosed = false;
+    }
+
+    /**
+     * Returns the current version of the cache. Pass this to
+     * {@link #put(String, Object, long)} or {@link #putAll(String[], Map, long)}.
+     *
+     * @return The current version of the cache.
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the cached value of the specified preference.
+     *
+     * @param key The preference key.
+     * @return The cached value, {@link #ABSENT} if the preference is known
+     *         not to exist, or {@code null} if the value is not cached.
+     */
+    public synchronized Object get(String key) {
+        Object value = null;
+        if (!mUnknownKeys.contains(key)) {
+            value = mValues.get(key);
+            if (value == null && mBase != null) {
+                int index = mBase.indexOf(key);
+                value = index >= 0 ? mBase.valueAt(index) : ABSENT;
+            }
+        }
+        if (value != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the type of the cached value of the specified preference.
+     * To read the value of a numeric or boolean preference without
+     * boxing it, call this method and {@link #getBits(String)} while
+     * holding the lock on this object.
+     *
+     * @param key The preference key.
+     * @return One of the {@link RemoteContract}{@code .TYPE_*} constants
+     *         ({@link RemoteContract#TYPE_NULL} if the preference is known
+     *         not to exist), or {@link #TYPE_UNKNOWN} if the value is not
+     *         cached.
+     */
+    public synchronized int getType(String key) {
+        int type = TYPE_UNKNOWN;
+        if (!mUnknownKeys.contains(key)) {
+            Object value = mValues.get(key);
+            if (value == ABSENT) {
+                type = RemoteContract.TYPE_NULL;
+            } else if (value != null) {
+                type = RemoteUtils.getPreferenceType(value);
+            } else if (mBase != null) {
+                int index = mBase.indexOf(key);
+                type = index >= 0 ? mBase.typeAt(index) : RemoteContract.TYPE_NULL;
+            }
+        }
+        // Misses are followed by a call to get(), which counts them
+        if (type != TYPE_UNKNOWN) {
+            mHitCount++;
+        }
+        return type;
+    }
+
+    /**
+     * Returns the raw value of a cached numeric or boolean preference,
+     * encoded as described in {@link RemotePreferenceCompactMap#toBits(Object)}.
+     * Only valid if {@link #getType(String)} returned a numeric or
+     * boolean type.
+     *
+     * @param key The preference key.
+     * @return The raw value of the preference.
+     */
+    public synchronized long getBits(String key) {
+        Object value = mValues.get(key);
+        if (value != null) {
+            return RemotePreferenceCompactMap.toBits(value);
+        }
+        return mBase.bitsAt(mBase.indexOf(key));
+    }
+
+    /**
+     * Returns all cached values, if the cache is complete. The returned
+     * map is read-only, and is not affected by later changes to the cache.
+     *
+     * @return A map containing all preferences, or {@code null} if
+     *         the cache is not complete.
+     */
+    public synchronized Map<String, Object> getAll() {
+        if (mBase == null || !mUnknownKeys.isEmpty()) {
+            return null;
+        }
+        if (!mValues.isEmpty()) {
+            mBase = new RemotePreferenceCompactMap(getMergedValues());
+            clearValues();
+            trimToSize(mMaxSize);
+        }
+        return mBase;
+    }
+
+    /**
+     * Caches the value of a preference, if there have been no
+     * invalidations since {@code version} was obtained.
+     *
+     * @param key The preference key.
+     * @param value The preference value, or {@code null} if the
+     *              preference does not exist.
+     * @param version The version of the cache before the value was read.
+     */
+    public synchronized void put(String key, Object value, long version) {
+        if (version != mVersion || mClosed) {
+            return;
+        }
+        setValue(key, value);
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Caches multiple preference values at once, if there have been no
+     * invalidations since {@code version} was obtained. Keys that are
+     * not in {@code values} are cached as not existing.
+     *
+     * @param keys The preference keys that were read.
+     * @param values The values of the preferences that exist.
+     * @param version The version of the cache before the values were read.
+     */
+    public synchronized void putAll(String[] keys, Map<String, ?> values, long version) {
+        if (version != mVersion || mClosed) {
+            return;
+        }
+        for (String key : keys) {
+            setValue(key, values.get(key));
+        }
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Caches values that were just committed to the provider by this
+     * client. Unlike {@link #put(String, Object, long)}, this always
+     * succeeds, and causes any in-flight writes to the cache to be
+     * discarded. If the generation is known, the values are protected
+     * from older change notifications and snapshots until they are
+     * retired by a newer one.
+     *
+     * @param values The committed values, mapped to {@code null} for
+     *               removed preferences.
+     * @param cleared Whether the file was cleared before the values
+     *                were written.
+     * @param generation The generation of the file after the commit, or
+     *                   {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION}.
+     */
+    public synchronized void putCommitted(Map<String, ?> values, boolean cleared, long generation) {
+        mVersion++;
+        if (mClosed) {
+            return;
+        }
+        if (cleared) {
+            // The committed values are now the entire file
+            clearValues();
+            mUnknownKeys.clear();
+            mBase = new RemotePreferenceCompactMap(Collections.<String, Object>emptyMap());
+            mPendingWrites.clear();
+            mPendingClearGeneration = generation;
+        }
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            setValue(entry.getKey(), entry.getValue());
+            if (generation != RemotePreferenceSnapshot.UNKNOWN_GENERATION) {
+                mPendingWrites.put(entry.getKey(), new PendingWrite(freezeValue(entry.getValue()), generation));
+            } else {
+                mPendingWrites.remove(entry.getKey());
+            }
+        }
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Applies a change notification to the cache. Notifications that
+     * are older than a value committed by this client are ignored.
+     *
+     * @param key The preference key, or {@code null} or {@code ""}
+     *            if the entire file was cleared.
+     * @param value The new value ({@code null} if the preference was
+     *              removed), or {@link RemotePreferenceTransport#UNKNOWN_VALUE}
+     *              if the notification did not include it.
+     * @param generation The generation of the file when the notification
+     *                   was sent, or {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION}.
+     */
+    public synchronized void applyNotification(String key, Object value, long generation) {
+        if (mClosed) {
+            return;
+        }
+        boolean cleared = key == null || key.length() == 0;
+        if (generation != RemotePreferenceSnapshot.UNKNOWN_GENERATION) {
+            if (generation < mPendingClearGeneration) {
+                return;
+            }
+            PendingWrite pending = cleared ? null : mPendingWrites.get(key);
+            if (pending != null && generation < pending.mGeneration) {
+                return;
+            }
+        }
+
+        if (value == RemotePreferenceTransport.UNKNOWN_VALUE) {
+            invalidate(key);
+        } else {
+            update(key, value);
+        }
+
+        if (!cleared) {
+            mPendingWrites.remove(key);
+            return;
+        }
+
+        // Values committed after the file was cleared still apply
+        mPendingClearGeneration = RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        Iterator<Map.Entry<String, PendingWrite>> it = mPendingWrites.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PendingWrite> entry = it.next();
+            if (generation == RemotePreferenceSnapshot.UNKNOWN_GENERATION ||
+                isRetiredBy(entry.getValue().mGeneration, generation)) {
+                it.remove();
+            } else {
+                setValue(entry.getKey(), entry.getValue().mValue);
+            }
+        }
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Replaces the contents of the cache with the contents of the entire
+     * preference file, if there have been no invalidations since
+     * {@code version} was obtained. Afterwards, the cache is complete.
+     * Values committed by this client that are newer than the snapshot
+     * are applied on top of it.
+     *
+     * @param values All preferences in the file.
+     * @param version The version of the cache before the values were read.
+     * @param generation The generation of the snapshot, or
+     *                   {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION}.
+     * @return If the cache was already complete, the preferences that
+     *         changed, mapped to their new values ({@code null} if removed);
+     *         otherwise an empty map. Returns {@code null} if the cache was
+     *         modified since {@code version} was obtained.
+     */
+    public synchronized Map<String, Object> replaceAll(Map<String, ?> values, long version, long generation) {
+        if (version != mVersion || mClosed) {
+            return null;
+        }
+        if (!mPendingWrites.isEmpty() || mPendingClearGeneration != RemotePreferenceSnapshot.UNKNOWN_GENERATION) {
+            values = applyPendingWrites(values, generation);
+        }
+
+        HashMap<String, Object> changes = new HashMap<String, Object>();
+        if (mBase != null) {
+            Map<String, Object> oldValues = getMergedValues();
+            for (String key : oldValues.keySet()) {
+                if (!values.containsKey(key)) {
+                    changes.put(key, null);
+                }
+            }
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                if (!entry.getValue().equals(oldValues.get(entry.getKey()))) {
+                    changes.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        // Reads that started before this snapshot was taken
+        // must not overwrite it
+        mVersion++;
+        clearValues();
+        mUnknownKeys.clear();
+        mBase = new RemotePreferenceCompactMap(values);
+        trimToSize(mMaxSize);
+        return changes;
+    }
+
+    /**
+     * Removes a preference from the cache.
+     *
+     * @param key The preference key, or {@code null} or {@code ""}
+     *            to clear the entire cache.
+     */
+    public synchronized void invalidate(String key) {
+        mVersion++;
+        if (key == null || key.length() == 0) {
+            clearValues();
+            mUnknownKeys.clear();
+            mBase = null;
+        } else {
+            removeValue(key);
+            if (mBase != null) {
+                mUnknownKeys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Replaces the cached value of a preference with a value received
+     * in a change notification. Like {@link #invalidate(String)}, this
+     * causes any in-flight writes to the cache to be discarded.
+     *
+     * @param key The preference key, or {@code null} or {@code ""}
+     *            to clear the entire cache.
+     * @param value The new value, or {@code null} if the preference
+     *              was removed.
+     */
+    public synchronized void update(String key, Object value) {
+        invalidate(key);
+        if (key != null && key.length() != 0) {
+            setValue(key, value);
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Empties the cache and stops it from storing any more values. Used
+     * once the cache no longer receives change notifications, since it
+     * would otherwise return stale values.
+     */
+    public synchronized void close() {
+        invalidate(null);
+        mPendingWrites.clear();
+        mPendingClearGeneration = RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        mClosed = true;
+    }
+
+    /**
+     * Evicts values until the cache is no larger than the specified
+     * size. Evicted values are read from the provider again the next
+     * time they are needed.
+     *
+     * @param maxSize The maximum size of the cache, in bytes.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Object>> it = mValues.entrySet().iterator();
+        while (getSize() > maxSize && it.hasNext()) {
+            Map.Entry<String, Object> entry = it.next();
+            mValuesSize -= estimateSize(entry.getKey(), entry.getValue());
+            it.remove();
+            if (mBase != null) {
+                mUnknownKeys.add(entry.getKey());
+            }
+            mEvictionCount++;
+        }
+
+        if (getSize() > maxSize && mBase != null) {
+            mEvictionCount += mBase.size();
+            mBase = null;
+            mUnknownKeys.clear();
+        }
+    }
+
+    /**
+     * Returns the approximate amount of memory used by the cache.
+     *
+     * @return The size of the cache, in bytes.
+     */
+    public synchronized long getSize() {
+        return mValuesSize + (mBase != null ? mBase.getByteSize() : 0);
+    }
+
+    /**
+     * Returns statistics about how the cache has been used.
+     *
+     * @return A snapshot of the cache statistics.
+     */
+    public synchronized RemotePreferenceCacheStats getStats() {
+        return new RemotePreferenceCacheStats(mHitCount, mMissCount, mEvictionCount, getSize(), mMaxSize);
+    }
+
+    /**
+     * Applies the values committed by this client that are newer than a
+     * snapshot of the file, and retires the rest.
+     *
+     * @param values The contents of the snapshot.
+     * @param generation The generation of the snapshot.
+     * @return The contents of the snapshot with the newer values applied.
+     */
+    private Map<String, ?> applyPendingWrites(Map<String, ?> values, long generation) {
+        HashMap<String, Object> merged = new HashMap<String, Object>();
+        if (isRetiredBy(mPendingClearGeneration, generation)) {
+            merged.putAll(values);
+            mPendingClearGeneration = RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        }
+
+        Iterator<Map.Entry<String, PendingWrite>> it = mPendingWrites.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PendingWrite> entry = it.next();
+            if (isRetiredBy(entry.getValue().mGeneration, generation)) {
+                it.remove();
+            } else if (entry.getValue().mValue == null) {
+                merged.remove(entry.getKey());
+            } else {
+                merged.put(entry.getKey(), entry.getValue().mValue);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns whether a value committed by this client is reflected by
+     * a notification or snapshot with the specified generation. If the
+     * generation of the notification or snapshot is unknown, it is
+     * assumed to be older.
+     *
+     * @param pendingGeneration The generation of the committed value,
+     *                          or {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION}
+     *                          if there is none.
+     * @param generation The generation of the notification or snapshot.
+     * @return Whether the committed value can be retired.
+     */
+    private static boolean isRetiredBy(long pendingGeneration, long generation) {
+        if (pendingGeneration == RemotePreferenceSnapshot.UNKNOWN_GENERATION) {
+            return true;
+        }
+        return generation != RemotePreferenceSnapshot.UNKNOWN_GENERATION && generation >= pendingGeneration;
+    }
+
+    /**
+     * Stores the value of a preference in the overlay map.
+     *
+     * @param key The preference key.
+     * @param value The preference value, or {@code null} if the
+     *              preference does not exist.
+     */
+    private void setValue(String key, Object value) {
+        mUnknownKeys.remove(key);
+        removeValue(key);
+        if (value != null) {
+            value = freezeValue(value);
+        } else {
+            // Remember that the preference doesn't exist; this also
+            // hides the old value in the compact map, if any
+            value = ABSENT;
+        }
+        mValues.put(key, value);
+        mValuesSize += estimateSize(key, value);
+    }
+
+    /**
+     * Removes a value from the overlay map.
+     *
+     * @param key The preference key.
+     */
+    private void removeValue(String key) {
+        Object value = mValues.remove(key);
+        if (value != null) {
+            mValuesSize -= estimateSize(key, value);
+        }
+    }
+
+    /**
+     * Removes all values from the overlay map.
+     */
+    private void clearValues() {
+        mValues.clear();
+        mValuesSize = 0;
+    }
+
+    /**
+     * Returns the approximate amount of memory used by an entry
+     * in the overlay map.
+     *
+     * @param key The preference key.
+     * @param value The preference value, or {@link #ABSENT}.
+     * @return The size of the entry, in bytes.
+     */
+    private static long estimateSize(String key, Object value) {
+        long size = ENTRY_OVERHEAD + RemotePreferenceCompactMap.estimateSize(key);
+        if (value != ABSENT) {
+            size += RemotePreferenceCompactMap.estimateSize(value);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the contents of the compact map with the overlay applied.
+     * Unknown keys are left out.
+     *
+     * @return A map containing all cached preferences.
+     */
+    private Map<String, Object> getMergedValues() {
+        HashMap<String, Object> values = new HashMap<String, Object>(mBase);
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            if (entry.getValue() == ABSENT) {
+                values.remove(entry.getKey());
+            } else {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : mUnknownKeys) {
+            values.remove(key);
+        }
+        return values;
+    }
+
+    /**
+     * Makes mutable preference values (i.e. string sets) read-only, since
+     * cached values are shared between all callers.
+     *
+     * @param value The preference value.
+     * @return A read-only version of the value.
+     */
+    private static Object freezeValue(Object value) {
+        if (value instanceof Set<?>) {
+            return Collections.unmodifiableSet(RemoteUtils.castStringSet(value));
+        }
+        return value;
+    }
+
+    /**
+     * A value committed by this client, along with the generation of
+     * the file after the commit.
+     */
+    private static class PendingWrite {
+        private final Object mValue;
+        private final long mGeneration;
+
+        private PendingWrite(Object value, long generation) {
+            mValue = value;
+            mGeneration = generation;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.crossbowffs.remotepreferences;
+
+/**
+ * Statistics about the value cache of a {@link RemotePreferences}
+ * object, as returned by {@link RemotePreferences#getCacheStats()}.
+ * This is a snapshot; it is not updated as the cache is used.
+ */
+public class RemotePreferenceCacheStats {
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mEvictionCount;
+    private final long mSize;
+    private final long mMaxSize;
+
+    /* package */ RemotePreferenceCacheStats(long hitCount, long missCount, long evictionCount, long size, long maxSize) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mEvictionCount = evictionCount;
+        mSize = size;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the number of reads that were answered by the cache,
+     * including reads of preferences that are known not to exist.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of reads that had to contact the provider.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the fraction of reads that were answered by the cache.
+     *
+     * @return The hit rate, between 0 and 1, or 0 if nothing was read yet.
+     */
+    public double getHitRate() {
+        long total = mHitCount + mMissCount;
+        return total == 0 ? 0 : (double)mHitCount / total;
+    }
+
+    /**
+     * Returns the number of values that were evicted from the cache,
+     * either because it grew too large or because the system was
+     * low on memory.
+     *
+     * @return The number of evicted values.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the approximate amount of memory used by the cache.
+     *
+     * @return The size of the cache, in bytes.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum size of the cache, as set by
+     * {@link RemotePreferenceOptions#setCacheMaxSize(long)}.
+     *
+     * @return The maximum size of the cache, in bytes.
+     */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "RemotePreferenceCacheStats{" +
+            "hits=" + mHitCount +
+            ", misses=" + mMissCount +
+            ", evictions=" + mEvictionCount +
+            ", size=" + mSize +
+            ", maxSize=" + mMaxSize +
+            "}";
+    }
+}
@@ -0,0 +1,309 @@
+package com.crossbowffs.remotepreferences;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable, memory efficient map of preference values. Keys are kept
+ * in a sorted array and looked up using binary search. Numeric and
+ * boolean values are stored unboxed in a {@code long} array, so only
+ * strings and string sets need an object slot. Values are only boxed
+ * when they are accessed through the {@link Map} interface; use
+ * {@link #indexOf(String)}, {@link #typeAt(int)} and {@link #bitsAt(int)}
+ * to read primitive values without allocating.
+ */
+/* package */ class RemotePreferenceCompactMap extends AbstractMap<String, Object> {
+    private static final int REFERENCE_SIZE = 4;
+    private static final int SLOT_SIZE = REFERENCE_SIZE + 1 + 8;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int SET_OVERHEAD = 64;
+    private static final int SET_ENTRY_OVERHEAD = 32;
+    private static final int BOXED_SIZE = 24;
+
+    private final String[] mKeys;
+    private final byte[] mTypes;
+    private final long[] mBits;
+    private final Object[] mObjects;
+    private final long mByteSize;
+    private Set<Map.Entry<String, Object>> mEntrySet;
+
+    /**
+     * Copies the specified preferences. Entries with {@code null}
+     * values are skipped, and string sets are made read-only.
+     *
+     * @param values The preferences to copy.
+     */
+    public RemotePreferenceCompactMap(Map<String, ?> values) {
+        int size = 0;
+        int objectCount = 0;
+        String[] keys = new String[values.size()];
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value != null) {
+                keys[size++] = entry.getKey();
+                if (value instanceof String || value instanceof Set<?>) {
+                    objectCount++;
+                }
+            }
+        }
+        if (size != keys.length) {
+            String[] trimmed = new String[size];
+            System.arraycopy(keys, 0, trimmed, 0, size);
+            keys = trimmed;
+        }
+        Arrays.sort(keys);
+
+        mKeys = keys;
+        mTypes = new byte[size];
+        mBits = new long[size];
+        mObjects = new Object[objectCount];
+        int objectIndex = 0;
+        long byteSize = 0;
+        for (int i = 0; i < size; ++i) {
+            Object value = values.get(keys[i]);
+            int type = RemoteUtils.getPreferenceType(value);
+            mTypes[i] = (byte)type;
+            byteSize += SLOT_SIZE + estimateSize(keys[i]);
+            if (type == RemoteContract.TYPE_STRING) {
+                mObjects[objectIndex] = value;
+                mBits[i] = objectIndex++;
+                byteSize += REFERENCE_SIZE + estimateSize(value);
+            } else if (type == RemoteContract.TYPE_STRING_SET) {
+                mObjects[objectIndex] = Collections.unmodifiableSet(RemoteUtils.castStringSet(value));
+                mBits[i] = objectIndex++;
+                byteSize += REFERENCE_SIZE + estimateSize(value);
+            } else {
+                mBits[i] = toBits(value);
+            }
+        }
+        mByteSize = byteSize;
+    }
+
+    /**
+     * Returns the approximate amount of memory used by this map.
+     *
+     * @return The size of this map, in bytes.
+     */
+    public long getByteSize() {
+        return mByteSize;
+    }
+
+    /**
+     * Returns the index of the specified preference.
+     *
+     * @param key The preference key.
+     * @return The index of the preference, or a negative value if
+     *         the preference does not exist.
+     */
+    public int indexOf(String key) {
+        return Arrays.binarySearch(mKeys, key);
+    }
+
+    /**
+     * Returns the type of the preference at the specified index.
+     *
+     * @param index The index returned by {@link #indexOf(String)}.
+     * @return One of the {@link RemoteContract}{@code .TYPE_*} constants.
+     */
+    public int typeAt(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * Returns the raw value of a numeric or boolean preference at the
+     * specified index. See {@link #toBits(Object)} for the encoding.
+     *
+     * @param index The index returned by {@link #indexOf(String)}.
+     * @return The raw value of the preference.
+     */
+    public long bitsAt(int index) {
+        return mBits[index];
+    }
+
+    /**
+     * Returns the value of the preference at the specified index,
+     * boxing it if necessary.
+     *
+     * @param index The index returned by {@link #indexOf(String)}.
+     * @return The value of the preference.
+     */
+    public Object valueAt(int index) {
+        int type = mTypes[index];
+        if (type == RemoteContract.TYPE_STRING || type == RemoteContract.TYPE_STRING_SET) {
+            return mObjects[(int)mBits[index]];
+        }
+        return fromBits(type, mBits[index]);
+    }
+
+    @Override
+    public int size() {
+        return mKeys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String)key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = indexOf((String)key);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public int size() {
+                    return mKeys.length;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    /**
+     * Returns the approximate amount of memory used by a preference key
+     * or value. This is only meant for enforcing cache size limits, so
+     * it does not try to be exact.
+     *
+     * @param value The preference key or value.
+     * @return The size of the object, in bytes.
+     */
+    public static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String)value).length();
+        } else if (value instanceof Set<?>) {
+            long size = SET_OVERHEAD;
+            for (String s : RemoteUtils.castStringSet(value)) {
+                size += SET_ENTRY_OVERHEAD + estimateSize(s);
+            }
+            return size;
+        } else {
+            return BOXED_SIZE;
+        }
+    }
+
+    /**
+     * Encodes a numeric or boolean preference value as a {@code long}.
+     * Floats are stored as their raw bits, and booleans as 0 or 1.
+     *
+     * @param value The preference value.
+     * @return The raw value.
+     */
+    public static long toBits(Object value) {
+        if (value instanceof Integer) {
+            return (Integer)value;
+        } else if (value instanceof Long) {
+            return (Long)value;
+        } else if (value instanceof Float) {
+            return Float.floatToRawIntBits((Float)value);
+        } else if (value instanceof Boolean) {
+            return (Boolean)value ? 1 : 0;
+        } else {
+            throw new AssertionError("Value is not a primitive: " + value);
+        }
+    }
+
+    /**
+     * Decodes a value encoded by {@link #toBits(Object)}.
+     *
+     * @param type The type of the preference.
+     * @param bits The raw value.
+     * @return The boxed preference value.
+     */
+    public static Object fromBits(int type, long bits) {
+        switch (type) {
+        case RemoteContract.TYPE_INT:
+            return (int)bits;
+        case RemoteContract.TYPE_LONG:
+            return bits;
+        case RemoteContract.TYPE_FLOAT:
+            return Float.intBitsToFloat((int)bits);
+        case RemoteContract.TYPE_BOOLEAN:
+            return bits != 0;
+        default:
+            throw new AssertionError("Type is not a primitive: " + type);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+        private int mIndex = 0;
+
+        @Override
+        public boolean hasNext() {
+            return mIndex < mKeys.length;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (mIndex >= mKeys.length) {
+                throw new NoSuchElementException();
+            }
+            return new Entry(mIndex++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class Entry implements Map.Entry<String, Object> {
+        private final int mIndex;
+
+        private Entry(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public String getKey() {
+            return mKeys[mIndex];
+        }
+
+        @Override
+        public Object getValue() {
+            return valueAt(mIndex);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Map.Entry<?, ?>)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>)obj;
+            return getKey().equals(other.getKey()) && getValue().equals(other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
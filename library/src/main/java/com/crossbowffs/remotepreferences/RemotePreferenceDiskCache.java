@@ -0,0 +1,242 @@
+package com.crossbowffs.remotepreferences;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores a snapshot of a remote preference file in the client's own cache
+ * directory, so that a new process can serve reads without waiting for
+ * the provider to start. The age of the snapshot is tracked using the
+ * modification time of the file, which is refreshed whenever the snapshot
+ * is confirmed to be up to date.
+ */
+/* package */ class RemotePreferenceDiskCache {
+    private static final String CACHE_DIR_NAME = "remotepreferences";
+    private static final int MAGIC = 0x52505363;
+    private static final int FORMAT_VERSION = 1;
+    private static final long MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    private final File mFile;
+
+    public RemotePreferenceDiskCache(Context context, String authority, String prefFileName) {
+        File dir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+        mFile = new File(dir, Uri.encode(authority + "/" + prefFileName));
+    }
+
+    /**
+     * Loads the snapshot from disk. Snapshots that cannot be parsed are
+     * deleted.
+     *
+     * @param maxAgeMillis The maximum age of the snapshot, in milliseconds.
+     * @return The snapshot, or {@code null} if there is no snapshot, it is
+     *         older than {@code maxAgeMillis}, or it could not be read.
+     */
+    public RemotePreferenceSnapshot load(long maxAgeMillis) {
+        long age = System.currentTimeMillis() - mFile.lastModified();
+        if (age < 0 || age > maxAgeMillis) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = openFile(mFile);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            long generation = in.readLong();
+            int count = readLength(in);
+            HashMap<String, Object> values = new HashMap<String, Object>(count);
+            for (int i = 0; i < count; ++i) {
+                String key = readString(in);
+                values.put(key, readValue(in));
+            }
+            return new RemotePreferenceSnapshot(values, generation);
+        } catch (IOException e) {
+            // Missing or corrupted snapshot; the cache is best-effort,
+            // so just fall back to reading from the provider
+            mFile.delete();
+            return null;
+        } catch (RuntimeException e) {
+            // Also a corrupted snapshot (e.g. invalid UTF-8)
+            mFile.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Saves a snapshot to disk, replacing the existing snapshot. The
+     * snapshot is first written to a temporary file, so a concurrent
+     * {@link #load(long)} never sees a partially written snapshot.
+     *
+     * @param snapshot The snapshot to save.
+     */
+    public void save(RemotePreferenceSnapshot snapshot) {
+        File dir = mFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+
+        File tmpFile = new File(dir, mFile.getName() + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshot.getGeneration());
+            out.writeInt(snapshot.getValues().size());
+            for (Map.Entry<String, Object> entry : snapshot.getValues().entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + mFile);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Marks the snapshot on disk as up to date, without rewriting it.
+     */
+    public void touch() {
+        mFile.setLastModified(System.currentTimeMillis());
+    }
+
+    /* package */ static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /* package */ static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads a length or element count, checking that it is not larger
+     * than the rest of the file. Every element takes up at least one
+     * byte, so this bounds the memory allocated for a corrupted file.
+     * The stream must have been opened with {@link #openFile(File)}.
+     *
+     * @param in The stream to read from.
+     * @return The length.
+     */
+    /* package */ static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads an entire file into memory, so that {@link #readLength(DataInputStream)}
+     * knows exactly how many bytes remain.
+     *
+     * @param file The file to read.
+     * @return A stream over the contents of the file.
+     */
+    /* package */ static DataInputStream openFile(File file) throws IOException {
+        long length = file.length();
+        if (length > MAX_FILE_SIZE) {
+            throw new IOException("File too large: " + length);
+        }
+        byte[] bytes = new byte[(int)length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            closeQuietly(in);
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        int type = RemoteUtils.getPreferenceType(value);
+        out.writeByte(type);
+        switch (type) {
+        case RemoteContract.TYPE_STRING:
+            writeString(out, (String)value);
+            break;
+        case RemoteContract.TYPE_STRING_SET:
+            Set<String> stringSet = RemoteUtils.castStringSet(value);
+            out.writeInt(stringSet.size());
+            for (String s : stringSet) {
+                writeString(out, s);
+            }
+            break;
+        case RemoteContract.TYPE_INT:
+            out.writeInt((Integer)value);
+            break;
+        case RemoteContract.TYPE_LONG:
+            out.writeLong((Long)value);
+            break;
+        case RemoteContract.TYPE_FLOAT:
+            out.writeFloat((Float)value);
+            break;
+        case RemoteContract.TYPE_BOOLEAN:
+            out.writeBoolean((Boolean)value);
+            break;
+        default:
+            throw new IOException("Cannot write value of type " + type);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+        case RemoteContract.TYPE_STRING:
+            return readString(in);
+        case RemoteContract.TYPE_STRING_SET:
+            int count = readLength(in);
+            HashSet<String> stringSet = new HashSet<String>(count);
+            for (int i = 0; i < count; ++i) {
+                stringSet.add(readString(in));
+            }
+            return stringSet;
+        case RemoteContract.TYPE_INT:
+            return in.readInt();
+        case RemoteContract.TYPE_LONG:
+            return in.readLong();
+        case RemoteContract.TYPE_FLOAT:
+            return in.readFloat();
+        case RemoteContract.TYPE_BOOLEAN:
+            return in.readBoolean();
+        default:
+            throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    /* package */ static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+}
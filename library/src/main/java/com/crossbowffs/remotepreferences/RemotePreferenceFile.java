@@ -7,19 +7,47 @@ package com.crossbowffs.remotepreferences;
 public class RemotePreferenceFile {
     private final String mFileName;
     private final boolean mIsDeviceProtected;
+    private final boolean mIsLazy;
 
     /**
      * Initializes the preference file information. If you are targeting Android
      * N or above and the preference needs to be accessed before the first unlock,
      * set {@code isDeviceProtected} to {@code true}.
      *
+     * <p>
+     * If {@code isLazy} is {@code true}, the provider does not open the
+     * file when it is created, but when the file is first accessed through
+     * the provider (or when a client in the same process starts observing
+     * it). This shortens app startup when exposing many files. However,
+     * changes made directly through {@link android.content.SharedPreferences}
+     * before then are not reported to clients, so only use this for files
+     * that clients read before listening for changes.
+     * </p>
+     *
      * @param fileName Name of the preference file.
      * @param isDeviceProtected {@code true} if the preference file is device protected,
      *                          {@code false} if it is credential protected.
+     * @param isLazy {@code true} if the preference file should be opened on
+     *               first access, {@code false} if it should be opened when
+     *               the provider is created.
      */
-    public RemotePreferenceFile(String fileName, boolean isDeviceProtected) {
+    public RemotePreferenceFile(String fileName, boolean isDeviceProtected, boolean isLazy) {
         mFileName = fileName;
         mIsDeviceProtected = isDeviceProtected;
+        mIsLazy = isLazy;
+    }
+
+    /**
+     * Initializes the preference file information. If you are targeting Android
+     * N or above and the preference needs to be accessed before the first unlock,
+     * set {@code isDeviceProtected} to {@code true}.
+     *
+     * @param fileName Name of the preference file.
+     * @param isDeviceProtected {@code true} if the preference file is device protected,
+     *                          {@code false} if it is credential protected.
+     */
+    public RemotePreferenceFile(String fileName, boolean isDeviceProtected) {
+        this(fileName, isDeviceProtected, false);
     }
 
     /**
@@ -51,6 +79,17 @@ public class RemotePreferenceFile {
         return mIsDeviceProtected;
     }
 
+    /**
+     * Returns whether the provider opens the preference file on first
+     * access rather than when it is created.
+     *
+     * @return {@code true} if the preference file is opened lazily,
+     *         {@code false} if it is opened when the provider is created.
+     */
+    public boolean isLazy() {
+        return mIsLazy;
+    }
+
     /**
      * Converts an array of preference file names to {@link RemotePreferenceFile}
      * objects. Assumes all preference files are NOT in device protected storage.
@@ -0,0 +1,26 @@
+package com.crossbowffs.remotepreferences;
+
+/**
+ * Decides whether a preference file that was not explicitly registered
+ * with a {@link RemotePreferenceProvider} should be exposed anyway. This
+ * allows a provider to expose files whose names are not known in advance
+ * (e.g. one file per account) without opening all of them at startup.
+ *
+ * <p>
+ * Resolvers are called from binder threads, possibly concurrently, so
+ * implementations must be thread safe. A file is resolved at most once;
+ * afterwards it behaves like a file registered with
+ * {@link RemotePreferenceProvider#registerFile(RemotePreferenceFile)}.
+ * </p>
+ */
+public interface RemotePreferenceFileResolver {
+    /**
+     * Returns the preference file with the specified name, or {@code null}
+     * if this resolver does not expose it. The file name of the returned
+     * object must be {@code prefFileName}.
+     *
+     * @param prefFileName The name of the preference file being accessed.
+     * @return The preference file to expose, or {@code null}.
+     */
+    RemotePreferenceFile resolveFile(String prefFileName);
+}
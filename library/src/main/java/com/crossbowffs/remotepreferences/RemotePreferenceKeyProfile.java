@@ -0,0 +1,162 @@
+package com.crossbowffs.remotepreferences;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of how often each preference is read, so that the most
+ * frequently read preferences can be fetched in a single request the
+ * next time the process starts. The profile is stored in the client's
+ * own cache directory. Counts loaded from disk are halved, so that keys
+ * which are no longer read eventually drop out of the profile.
+ */
+/* package */ class RemotePreferenceKeyProfile {
+    private static final String PROFILE_DIR_NAME = "remotepreferences_profiles";
+    private static final int MAGIC = 0x5250486b;
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_HOT_KEYS = 64;
+    private static final int MAX_TRACKED_KEYS = MAX_HOT_KEYS * 4;
+    private static final int MIN_SAVE_INTERVAL = 8;
+    private static final int MAX_SAVE_INTERVAL = 256;
+
+    private final File mFile;
+    private final HashMap<String, Integer> mCounts;
+    private int mUnsavedCount;
+    private int mSaveInterval;
+
+    public RemotePreferenceKeyProfile(Context context, String authority, String prefFileName) {
+        File dir = new File(context.getCacheDir(), PROFILE_DIR_NAME);
+        mFile = new File(dir, Uri.encode(authority + "/" + prefFileName));
+        mCounts = new HashMap<String, Integer>();
+        mUnsavedCount = 0;
+        mSaveInterval = MIN_SAVE_INTERVAL;
+    }
+
+    /**
+     * Loads the profile from disk, merging it with the accesses
+     * recorded so far. Profiles that cannot be parsed are deleted.
+     *
+     * @return The hot keys, most frequently read first. Empty if
+     *         there is no profile or it could not be read.
+     */
+    public synchronized String[] load() {
+        ArrayList<String> keys = new ArrayList<String>();
+        DataInputStream in = null;
+        try {
+            in = RemotePreferenceDiskCache.openFile(mFile);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return new String[0];
+            }
+            int count = RemotePreferenceDiskCache.readLength(in);
+            for (int i = 0; i < count; ++i) {
+                String key = RemotePreferenceDiskCache.readString(in);
+                int decayed = in.readInt() / 2;
+                keys.add(key);
+                if (decayed > 0) {
+                    Integer current = mCounts.get(key);
+                    mCounts.put(key, (current != null ? current : 0) + decayed);
+                }
+            }
+        } catch (IOException e) {
+            // No profile yet, or it was corrupted; it will be
+            // rebuilt from the accesses in this process
+            mFile.delete();
+            keys.clear();
+        } catch (RuntimeException e) {
+            // Also a corrupted profile (e.g. invalid UTF-8)
+            mFile.delete();
+            keys.clear();
+        } finally {
+            RemotePreferenceDiskCache.closeQuietly(in);
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Records a read of the specified preference.
+     *
+     * @param key The preference key.
+     * @return Whether enough reads have been recorded since the last
+     *         save that the caller should call {@link #save()}.
+     */
+    public synchronized boolean record(String key) {
+        Integer current = mCounts.get(key);
+        mCounts.put(key, current != null ? current + 1 : 1);
+        if (++mUnsavedCount < mSaveInterval) {
+            return false;
+        }
+
+        // Save early so short-lived processes still leave a profile
+        // behind, then back off since the profile changes slowly
+        mUnsavedCount = 0;
+        mSaveInterval = Math.min(mSaveInterval * 2, MAX_SAVE_INTERVAL);
+        return true;
+    }
+
+    /**
+     * Saves the most frequently read keys to disk. Rarely read keys
+     * are also forgotten in memory, to bound the size of the profile.
+     */
+    public void save() {
+        String[] keys;
+        int[] counts;
+        synchronized (this) {
+            List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(mCounts.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            keys = new String[Math.min(entries.size(), MAX_HOT_KEYS)];
+            counts = new int[keys.length];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = entries.get(i).getKey();
+                counts[i] = entries.get(i).getValue();
+            }
+            for (int i = MAX_TRACKED_KEYS; i < entries.size(); ++i) {
+                mCounts.remove(entries.get(i).getKey());
+            }
+        }
+
+        File dir = mFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+
+        File tmpFile = new File(dir, mFile.getName() + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; ++i) {
+                RemotePreferenceDiskCache.writeString(out, keys[i]);
+                out.writeInt(counts[i]);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + mFile);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+        } finally {
+            RemotePreferenceDiskCache.closeQuietly(out);
+        }
+    }
+}
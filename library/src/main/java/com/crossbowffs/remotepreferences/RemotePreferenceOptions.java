@@ -0,0 +1,521 @@
+package com.crossbowffs.remotepreferences;
+
+import android.content.ComponentName;
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Optional settings for {@link RemotePreferences}. All setters return
+ * the options object itself, so calls can be chained:
+ *
+ * <pre>
+ * new RemotePreferences(context, authority, prefFileName, new RemotePreferenceOptions()
+ *     .setStrictMode(true)
+ *     .setTransport(RemotePreferenceOptions.TRANSPORT_CALL));
+ * </pre>
+ *
+ * The options are copied when the {@link RemotePreferences} object is
+ * created; modifying them afterwards has no effect on existing objects.
+ * Two options objects are equal if all of their settings are equal;
+ * executors and handlers are compared by identity.
+ */
+public class RemotePreferenceOptions {
+    /**
+     * Calls directly into the provider if it is running in the current
+     * process, otherwise uses {@link #TRANSPORT_CURSOR}. This is the default.
+     */
+    public static final int TRANSPORT_AUTO = 0;
+
+    /**
+     * Uses the {@link android.content.ContentResolver} query and
+     * bulkInsert methods. Works with all versions of the provider.
+     */
+    public static final int TRANSPORT_CURSOR = 1;
+
+    /**
+     * Uses the {@link android.content.ContentResolver} call method, which
+     * is cheaper than setting up a cursor for every read. Requires API 11
+     * or above, and a provider using the same version of this library.
+     */
+    public static final int TRANSPORT_CALL = 2;
+
+    /**
+     * Only calls directly into a provider running in the current
+     * process. All operations will fail if the provider is not
+     * running in the current process.
+     */
+    public static final int TRANSPORT_LOCAL = 3;
+
+    /**
+     * Binds to a {@link RemotePreferenceService} and talks to it over
+     * a persistent binder connection. Until the service is connected,
+     * {@link #TRANSPORT_CURSOR} is used. Requires a service component
+     * to be set with {@link #setServiceComponent(ComponentName)}.
+     */
+    public static final int TRANSPORT_SERVICE = 4;
+
+    private boolean mStrictMode;
+    private int mTransport;
+    private ComponentName mServiceComponent;
+    private Executor mExecutor;
+    private boolean mCacheEnabled;
+    private long mCacheMaxSize;
+    private Executor mCallbackExecutor;
+    private Handler mCallbackHandler;
+    private boolean mCoalesceCallbacks;
+    private int mCircuitBreakerThreshold;
+    private long mCircuitBreakerBackoffMillis;
+    private boolean mPersistentCacheEnabled;
+    private long mPersistentCacheMaxAgeMillis;
+    private boolean mAdaptivePrefetchEnabled;
+
+    /**
+     * Initializes the options with their default values.
+     */
+    public RemotePreferenceOptions() {
+        mStrictMode = false;
+        mTransport = TRANSPORT_AUTO;
+        mCacheEnabled = false;
+        mCacheMaxSize = Long.MAX_VALUE;
+        mCoalesceCallbacks = false;
+        mCircuitBreakerThreshold = 0;
+        mCircuitBreakerBackoffMillis = 0;
+        mPersistentCacheEnabled = false;
+        mPersistentCacheMaxAgeMillis = Long.MAX_VALUE;
+        mAdaptivePrefetchEnabled = false;
+    }
+
+    /**
+     * Initializes the options with the values copied from another
+     * options object.
+     *
+     * @param other The options to copy.
+     */
+    public RemotePreferenceOptions(RemotePreferenceOptions other) {
+        mStrictMode = other.mStrictMode;
+        mTransport = other.mTransport;
+        mServiceComponent = other.mServiceComponent;
+        mExecutor = other.mExecutor;
+        mCacheEnabled = other.mCacheEnabled;
+        mCacheMaxSize = other.mCacheMaxSize;
+        mCallbackExecutor = other.mCallbackExecutor;
+        mCallbackHandler = other.mCallbackHandler;
+        mCoalesceCallbacks = other.mCoalesceCallbacks;
+        mCircuitBreakerThreshold = other.mCircuitBreakerThreshold;
+        mCircuitBreakerBackoffMillis = other.mCircuitBreakerBackoffMillis;
+        mPersistentCacheEnabled = other.mPersistentCacheEnabled;
+        mPersistentCacheMaxAgeMillis = other.mPersistentCacheMaxAgeMillis;
+        mAdaptivePrefetchEnabled = other.mAdaptivePrefetchEnabled;
+    }
+
+    /**
+     * Sets whether strict mode is enabled. If {@code true} and the remote
+     * preference provider cannot be accessed, read/write operations will
+     * throw a {@link RemotePreferenceAccessException}. Otherwise, default
+     * values will be returned. Defaults to {@code false}.
+     *
+     * @param strictMode Whether strict mode is enabled.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setStrictMode(boolean strictMode) {
+        mStrictMode = strictMode;
+        return this;
+    }
+
+    /**
+     * Returns whether strict mode is enabled.
+     *
+     * @return Whether strict mode is enabled.
+     */
+    public boolean isStrictMode() {
+        return mStrictMode;
+    }
+
+    /**
+     * Sets the mechanism used to communicate with the preference provider.
+     * Defaults to {@link #TRANSPORT_AUTO}.
+     *
+     * @param transport One of the {@code TRANSPORT_*} constants.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setTransport(int transport) {
+        if (transport < TRANSPORT_AUTO || transport > TRANSPORT_SERVICE) {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        mTransport = transport;
+        return this;
+    }
+
+    /**
+     * Returns the mechanism used to communicate with the preference provider.
+     *
+     * @return One of the {@code TRANSPORT_*} constants.
+     */
+    public int getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Sets the {@link RemotePreferenceService} to bind to when using
+     * {@link #TRANSPORT_SERVICE}.
+     *
+     * @param serviceComponent The component name of the service.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setServiceComponent(ComponentName serviceComponent) {
+        mServiceComponent = serviceComponent;
+        return this;
+    }
+
+    /**
+     * Returns the {@link RemotePreferenceService} to bind to when using
+     * {@link #TRANSPORT_SERVICE}.
+     *
+     * @return The component name of the service, or {@code null} if not set.
+     */
+    public ComponentName getServiceComponent() {
+        return mServiceComponent;
+    }
+
+    /**
+     * Sets the executor used to run asynchronous reads, such as
+     * {@link RemotePreferences#getIntAsync(String, int)} and
+     * {@link RemotePreferences#prefetch(String...)}. If not set,
+     * a small pool of background threads shared by all
+     * {@link RemotePreferences} objects is used.
+     *
+     * @param executor The executor, or {@code null} to use the default.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setExecutor(Executor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Returns the executor used to run asynchronous reads.
+     *
+     * @return The executor, or {@code null} if the default is used.
+     */
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Sets whether values read from the provider are cached in memory.
+     * Cached values are invalidated when the provider reports that they
+     * have changed, so reads are only as fresh as change notifications
+     * are timely. String sets returned from the cache are read-only.
+     * Defaults to {@code false}.
+     *
+     * @param cacheEnabled Whether values should be cached.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setCacheEnabled(boolean cacheEnabled) {
+        mCacheEnabled = cacheEnabled;
+        return this;
+    }
+
+    /**
+     * Returns whether values read from the provider are cached in memory.
+     *
+     * @return Whether values are cached.
+     */
+    public boolean isCacheEnabled() {
+        return mCacheEnabled;
+    }
+
+    /**
+     * Sets the approximate maximum amount of memory used by the cache.
+     * When the cache grows beyond this size, the least recently used
+     * values are evicted and read from the provider again the next time
+     * they are needed. The cache is also shrunk when the system is low
+     * on memory. Defaults to no limit.
+     *
+     * @param maxBytes The maximum size of the cache, in bytes.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setCacheMaxSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative");
+        }
+        mCacheMaxSize = maxBytes;
+        return this;
+    }
+
+    /**
+     * Returns the approximate maximum amount of memory used by the cache.
+     *
+     * @return The maximum size of the cache, in bytes.
+     */
+    public long getCacheMaxSize() {
+        return mCacheMaxSize;
+    }
+
+    /**
+     * Sets the executor used to invoke
+     * {@link android.content.SharedPreferences.OnSharedPreferenceChangeListener}
+     * callbacks. This replaces any handler set with
+     * {@link #setCallbackHandler(Handler)}. If neither is set, callbacks
+     * are invoked on the main thread.
+     *
+     * <p>
+     * If the executor runs tasks concurrently, callbacks for the same
+     * listener may also run concurrently; use a serial executor if the
+     * listener is not thread-safe.
+     * </p>
+     *
+     * @param callbackExecutor The executor, or {@code null} to use the main thread.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+        mCallbackHandler = null;
+        return this;
+    }
+
+    /**
+     * Returns the executor used to invoke preference change callbacks.
+     *
+     * @return The executor, or {@code null} if not set.
+     */
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * Sets the handler used to invoke
+     * {@link android.content.SharedPreferences.OnSharedPreferenceChangeListener}
+     * callbacks, for example one running on a background
+     * {@link android.os.HandlerThread}. This replaces any executor set
+     * with {@link #setCallbackExecutor(Executor)}. If neither is set,
+     * callbacks are invoked on the main thread.
+     *
+     * @param callbackHandler The handler, or {@code null} to use the main thread.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setCallbackHandler(Handler callbackHandler) {
+        mCallbackHandler = callbackHandler;
+        mCallbackExecutor = null;
+        return this;
+    }
+
+    /**
+     * Returns the handler used to invoke preference change callbacks.
+     *
+     * @return The handler, or {@code null} if not set.
+     */
+    public Handler getCallbackHandler() {
+        return mCallbackHandler;
+    }
+
+    /**
+     * Sets whether change callbacks are coalesced. If {@code true},
+     * changes that arrive while a callback is already waiting to be
+     * dispatched are merged into it, and each listener is invoked at
+     * most once per changed key in each batch. This reduces the number
+     * of tasks posted when preferences change at a high rate, at the
+     * cost of not reporting every individual change. Defaults to
+     * {@code false}.
+     *
+     * @param coalesceCallbacks Whether to coalesce change callbacks.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setCoalesceCallbacks(boolean coalesceCallbacks) {
+        mCoalesceCallbacks = coalesceCallbacks;
+        return this;
+    }
+
+    /**
+     * Returns whether change callbacks are coalesced.
+     *
+     * @return Whether change callbacks are coalesced.
+     */
+    public boolean isCoalesceCallbacks() {
+        return mCoalesceCallbacks;
+    }
+
+    /**
+     * Enables the circuit breaker. After {@code failureThreshold}
+     * consecutive requests fail because the provider could not be
+     * reached (e.g. it is disabled or not installed), all requests fail
+     * immediately for {@code backoffMillis} milliseconds, without
+     * contacting the provider. In non-strict mode, this means that
+     * default values are returned. After the backoff period, the provider
+     * is probed again in the background; the backoff period doubles with
+     * every failed probe. Disabled by default.
+     *
+     * @param failureThreshold The number of consecutive failures after which
+     *                         requests are short-circuited, or 0 to disable
+     *                         the circuit breaker.
+     * @param backoffMillis How long to wait before probing the provider again.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setCircuitBreaker(int failureThreshold, long backoffMillis) {
+        if (failureThreshold < 0) {
+            throw new IllegalArgumentException("Failure threshold must not be negative");
+        }
+        if (backoffMillis < 0) {
+            throw new IllegalArgumentException("Backoff period must not be negative");
+        }
+        mCircuitBreakerThreshold = failureThreshold;
+        mCircuitBreakerBackoffMillis = backoffMillis;
+        return this;
+    }
+
+    /**
+     * Returns the number of consecutive failures after which requests
+     * are short-circuited.
+     *
+     * @return The failure threshold, or 0 if the circuit breaker is disabled.
+     */
+    public int getCircuitBreakerThreshold() {
+        return mCircuitBreakerThreshold;
+    }
+
+    /**
+     * Returns how long requests are short-circuited before the provider
+     * is probed again.
+     *
+     * @return The initial backoff period, in milliseconds.
+     */
+    public long getCircuitBreakerBackoffMillis() {
+        return mCircuitBreakerBackoffMillis;
+    }
+
+    /**
+     * Sets whether a snapshot of the preference file is saved to the
+     * cache directory of the calling app. If enabled, the first read in
+     * a new process loads the saved snapshot (if it is not older than
+     * {@link #setPersistentCacheMaxAge(long)}) in the background. Once
+     * it is loaded, reads are served from it without waiting for the
+     * provider, and the snapshot is revalidated against the provider
+     * in the background. Change listeners are notified of any differences
+     * found during revalidation. This implies
+     * {@link #setCacheEnabled(boolean)}. Defaults to {@code false}.
+     *
+     * <p>
+     * Note that this stores a copy of the preferences in the caller's
+     * storage, outside of the provider's control.
+     * </p>
+     *
+     * @param persistentCacheEnabled Whether the snapshot is saved.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setPersistentCacheEnabled(boolean persistentCacheEnabled) {
+        mPersistentCacheEnabled = persistentCacheEnabled;
+        return this;
+    }
+
+    /**
+     * Returns whether a snapshot of the preference file is saved
+     * to the cache directory of the calling app.
+     *
+     * @return Whether the snapshot is saved.
+     */
+    public boolean isPersistentCacheEnabled() {
+        return mPersistentCacheEnabled;
+    }
+
+    /**
+     * Sets how old a saved snapshot may be before it is ignored. The
+     * age is measured from the last time the snapshot was confirmed to
+     * match the provider. Defaults to no limit.
+     *
+     * @param maxAgeMillis The maximum age of the snapshot, in milliseconds.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setPersistentCacheMaxAge(long maxAgeMillis) {
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Maximum age must not be negative");
+        }
+        mPersistentCacheMaxAgeMillis = maxAgeMillis;
+        return this;
+    }
+
+    /**
+     * Returns how old a saved snapshot may be before it is ignored.
+     *
+     * @return The maximum age of the snapshot, in milliseconds.
+     */
+    public long getPersistentCacheMaxAge() {
+        return mPersistentCacheMaxAgeMillis;
+    }
+
+    /**
+     * Sets whether the most frequently read preferences are fetched in
+     * advance. If enabled, reads are counted per key and the counts are
+     * saved to the cache directory of the calling app. The first read in
+     * a new process then fetches all of the previously hot keys in a
+     * single request, instead of one request per key. Older counts are
+     * gradually forgotten, so the set of keys follows changes in how the
+     * preferences are used. This implies {@link #setCacheEnabled(boolean)}.
+     * Defaults to {@code false}.
+     *
+     * @param adaptivePrefetchEnabled Whether hot keys are prefetched.
+     * @return This options object.
+     */
+    public RemotePreferenceOptions setAdaptivePrefetchEnabled(boolean adaptivePrefetchEnabled) {
+        mAdaptivePrefetchEnabled = adaptivePrefetchEnabled;
+        return this;
+    }
+
+    /**
+     * Returns whether the most frequently read preferences are
+     * fetched in advance.
+     *
+     * @return Whether hot keys are prefetched.
+     */
+    public boolean isAdaptivePrefetchEnabled() {
+        return mAdaptivePrefetchEnabled;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RemotePreferenceOptions)) {
+            return false;
+        }
+        RemotePreferenceOptions other = (RemotePreferenceOptions)obj;
+        return mStrictMode == other.mStrictMode &&
+            mTransport == other.mTransport &&
+            equal(mServiceComponent, other.mServiceComponent) &&
+            mExecutor == other.mExecutor &&
+            mCacheEnabled == other.mCacheEnabled &&
+            mCacheMaxSize == other.mCacheMaxSize &&
+            mCallbackExecutor == other.mCallbackExecutor &&
+            mCallbackHandler == other.mCallbackHandler &&
+            mCoalesceCallbacks == other.mCoalesceCallbacks &&
+            mCircuitBreakerThreshold == other.mCircuitBreakerThreshold &&
+            mCircuitBreakerBackoffMillis == other.mCircuitBreakerBackoffMillis &&
+            mPersistentCacheEnabled == other.mPersistentCacheEnabled &&
+            mPersistentCacheMaxAgeMillis == other.mPersistentCacheMaxAgeMillis &&
+            mAdaptivePrefetchEnabled == other.mAdaptivePrefetchEnabled;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mStrictMode ? 1 : 0;
+        result = 31 * result + mTransport;
+        result = 31 * result + (mServiceComponent != null ? mServiceComponent.hashCode() : 0);
+        result = 31 * result + System.identityHashCode(mExecutor);
+        result = 31 * result + (mCacheEnabled ? 1 : 0);
+        result = 31 * result + (int)(mCacheMaxSize ^ (mCacheMaxSize >>> 32));
+        result = 31 * result + System.identityHashCode(mCallbackExecutor);
+        result = 31 * result + System.identityHashCode(mCallbackHandler);
+        result = 31 * result + (mCoalesceCallbacks ? 1 : 0);
+        result = 31 * result + mCircuitBreakerThreshold;
+        result = 31 * result + (int)(mCircuitBreakerBackoffMillis ^ (mCircuitBreakerBackoffMillis >>> 32));
+        result = 31 * result + (mPersistentCacheEnabled ? 1 : 0);
+        result = 31 * result + (int)(mPersistentCacheMaxAgeMillis ^ (mPersistentCacheMaxAgeMillis >>> 32));
+        result = 31 * result + (mAdaptivePrefetchEnabled ? 1 : 0);
+        return result;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
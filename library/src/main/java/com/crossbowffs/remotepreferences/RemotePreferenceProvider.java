@@ -1,18 +1,50 @@
 package com.crossbowffs.remotepreferences;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 /**
  * <p>
@@ -29,7 +61,10 @@ import java.util.Map;
  *
  * <p>
  * For granular access control, override {@link #checkAccess(String, String, boolean)}
- * and return {@code false} to deny the operation.
+ * and return {@code false} to deny the operation. If checking access is
+ * expensive, also override {@link #checkAccess(String, String[], boolean)}
+ * to check a batch of keys at once, and {@link #getAccessCacheDuration()}
+ * to remember decisions for each caller.
  * </p>
  *
  * <p>
@@ -57,9 +92,35 @@ import java.util.Map;
  *
  * delete(uri = content://authority/foo)
  * = getSharedPreferences("foo").edit().clear().commit()
+ *
+ * query(uri = content://authority/foo, selection = "keys", selectionArgs = ["bar", "baz"])
+ * = getSharedPreferences("foo").get("bar"), getSharedPreferences("foo").get("baz")
+ *
+ * query(uri = content://authority/foo, selection = "prefix", selectionArgs = ["bar."])
+ * = all preferences in getSharedPreferences("foo") whose keys start with "bar."
+ *
+ * query(uri = content://authority/foo, selection = "range", selectionArgs = ["bar", "baz"])
+ * = all preferences in getSharedPreferences("foo") with "bar" &lt;= key &lt; "baz"
+ *
+ * query(uri = content://authority/foo, selection = "range", selectionArgs = ["bar\0", null, "100"])
+ * = the first 100 preferences in getSharedPreferences("foo") with "bar" &lt; key
  * </pre>
  *
  * <p>
+ * The preference files passed to the constructor are exposed for the
+ * lifetime of the provider. Files may also be exposed at runtime using
+ * {@link #registerFile(RemotePreferenceFile)}, or on demand using
+ * {@link #registerFileResolver(RemotePreferenceFileResolver)}.
+ * </p>
+ *
+ * <p>
+ * On API 11 and above, the provider also implements
+ * {@link #call(String, String, Bundle)}, which {@link RemotePreferences}
+ * can use instead of the cursor-based methods above. All of these
+ * entry points share the same access checks.
+ * </p>
+ *
+ * <p>
  * Also note that if you are querying string sets, they will be returned
  * in a serialized form: {@code ["foo;bar", "baz"]} is converted to
  * {@code "foo\\;bar;baz;"} (note the trailing semicolon). Booleans are
@@ -67,12 +128,34 @@ import java.util.Map;
  * if you are using raw queries; all of these subtleties are transparently
  * handled by {@link RemotePreferences}.
  * </p>
+ *
+ * <p>
+ * If a {@link RemotePreferences} instance is created in the same process
+ * as the provider, it will bypass the {@link ContentResolver} and call
+ * directly into the provider. The same access checks still apply.
+ * </p>
  */
 public abstract class RemotePreferenceProvider extends ContentProvider implements SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final Map<String, RemotePreferenceProvider> sLocalProviders =
+        new ConcurrentHashMap<String, RemotePreferenceProvider>();
+    private static final int MAX_NOTIFICATION_VALUE_LENGTH = 1024;
+    private static final long STAGED_WRITE_TIMEOUT_MS = 60 * 1000;
+    private static final int MAX_STAGED_WRITES_PER_UID = 8;
+    private static final long MAX_STAGED_BYTES_PER_UID = 4 * 1024 * 1024;
+
+    private final String mAuthority;
     private final Uri mBaseUri;
-    private final RemotePreferenceFile[] mPrefFiles;
-    private final Map<String, SharedPreferences> mPreferences;
+    private final ConcurrentHashMap<String, PreferenceFileHolder> mPreferences;
+    private final Map<SharedPreferences, RemotePreferenceFile> mPreferenceFiles;
+    private final List<RemotePreferenceFileResolver> mFileResolvers;
     private final RemotePreferenceUriParser mUriParser;
+    private final Map<String, List<RemotePreferenceTransport.Observer>> mLocalObservers;
+    private final Map<String, StagedWrite> mStagedWrites;
+    private final Map<String, SortedSnapshot> mSortedSnapshots;
+    private final Map<String, DeferredChanges> mDeferredChanges;
+    private final Handler mMainHandler;
+    private RemotePreferenceAccessCache mAccessCache;
+    private volatile Context mDeviceProtectedContext;
 
     /**
      * Initializes the remote preference provider with the specified
@@ -102,10 +185,20 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
      * @param prefFiles The preference files to expose.
      */
     public RemotePreferenceProvider(String authority, RemotePreferenceFile[] prefFiles) {
+        mAuthority = authority;
         mBaseUri = Uri.parse("content://" + authority);
-        mPrefFiles = prefFiles;
-        mPreferences = new HashMap<String, SharedPreferences>(prefFiles.length);
+        mPreferences = new ConcurrentHashMap<String, PreferenceFileHolder>();
+        mPreferenceFiles = new ConcurrentHashMap<SharedPreferences, RemotePreferenceFile>();
+        mFileResolvers = new CopyOnWriteArrayList<RemotePreferenceFileResolver>();
+        for (RemotePreferenceFile file : prefFiles) {
+            mPreferences.put(file.getFileName(), new PreferenceFileHolder(file));
+        }
         mUriParser = new RemotePreferenceUriParser(authority);
+        mLocalObservers = new ConcurrentHashMap<String, List<RemotePreferenceTransport.Observer>>();
+        mStagedWrites = new HashMap<String, StagedWrite>();
+        mSortedSnapshots = new HashMap<String, SortedSnapshot>();
+        mDeferredChanges = new HashMap<String, DeferredChanges>();
+        mMainHandler = new Handler(Looper.getMainLooper());
     }
 
     /**
@@ -117,6 +210,13 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
      * over a blacklist (your default case should be {@code return false},
      * not {@code return true}).
      *
+     * <p>
+     * Callers in the same process as the provider invoke this method
+     * directly rather than through a binder transaction. In that case,
+     * {@link #getCallingPackage()} returns {@code null}, so make sure your
+     * implementation fails closed.
+     * </p>
+     *
      * @param prefFileName The name of the preference file.
      * @param prefKey The preference key. This is an empty string when handling the
      *                {@link SharedPreferences#getAll()} and
@@ -128,8 +228,183 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
         return true;
     }
 
+    /**
+     * Checks whether all of the specified preferences are accessible by
+     * callers. This is called instead of {@link #checkAccess(String, String, boolean)}
+     * when a request reads or writes multiple preferences at once. The
+     * default implementation calls {@link #checkAccess(String, String, boolean)}
+     * for each key. Override this method if part of the check (e.g.
+     * looking up the calling package) can be shared between keys.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The preference keys, as described in
+     *                 {@link #checkAccess(String, String, boolean)}.
+     * @param write {@code true} for put/remove/clear operations; {@code false} for get operations.
+     * @return {@code true} if access to every key is allowed; {@code false} otherwise.
+     */
+    protected boolean checkAccess(String prefFileName, String[] prefKeys, boolean write) {
+        for (String prefKey : prefKeys) {
+            if (!checkAccess(prefFileName, prefKey, write)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long the results of {@link #checkAccess(String, String[], boolean)}
+     * may be reused for later requests from the same caller (i.e. the
+     * same UID), in milliseconds. Decisions are cached per preference
+     * file, key, and access mode, and are discarded whenever a package is
+     * installed, updated, or removed. Callers in the same process as the
+     * provider are never cached. The default implementation returns 0,
+     * which disables the cache.
+     *
+     * <p>
+     * Only enable this if your checks depend solely on the identity of
+     * the calling app, and not e.g. on the current time or on the values
+     * of other preferences.
+     * </p>
+     *
+     * @return The cache duration in milliseconds, or 0 to disable the cache.
+     */
+    protected long getAccessCacheDuration() {
+        return 0;
+    }
+
+    /**
+     * Returns the executor used to open lazily loaded preference files
+     * (see {@link RemotePreferenceFile#isLazy()}) in the background after
+     * the provider is created, so that they are usually ready by the time
+     * they are first accessed. Each file is opened by a separate task, so
+     * a multi-threaded executor opens them in parallel. The default
+     * implementation returns {@code null}, which means lazily loaded files
+     * are only opened when they are first accessed.
+     *
+     * @return The executor to use, or {@code null} to disable preloading.
+     */
+    protected Executor getPreloadExecutor() {
+        return null;
+    }
+
+    /**
+     * Exposes an additional preference file through the provider. Unless
+     * the file is lazily loaded, it is opened immediately (or in
+     * {@link #onCreate()}, if the provider has not been created yet).
+     * This method is thread safe, and may be called at any time.
+     *
+     * @param prefFile The preference file to expose.
+     * @throws IllegalArgumentException if a file with the same name is
+     *                                  already exposed.
+     */
+    public void registerFile(RemotePreferenceFile prefFile) {
+        String prefFileName = prefFile.getFileName();
+        PreferenceFileHolder holder = new PreferenceFileHolder(prefFile);
+        if (mPreferences.putIfAbsent(prefFileName, holder) != null) {
+            throw new IllegalArgumentException("Preference file already registered: " + prefFileName);
+        }
+        if (!prefFile.isLazy() && getContext() != null) {
+            holder.get();
+        }
+    }
+
+    /**
+     * Stops exposing a preference file through the provider. The file
+     * itself is not modified. If a registered resolver still matches the
+     * file name, the file will be resolved again on its next access.
+     * This method is thread safe, and may be called at any time.
+     *
+     * @param prefFileName The name of the preference file.
+     * @return {@code true} if the file was exposed, {@code false} otherwise.
+     */
+    public boolean unregisterFile(String prefFileName) {
+        PreferenceFileHolder holder = mPreferences.remove(prefFileName);
+        if (holder == null) {
+            return false;
+        }
+        holder.close();
+        synchronized (mSortedSnapshots) {
+            mSortedSnapshots.remove(prefFileName);
+        }
+        return true;
+    }
+
+    /**
+     * Registers a resolver that is consulted when a client accesses a
+     * preference file that is not exposed yet. Resolved files are opened
+     * on first access, regardless of {@link RemotePreferenceFile#isLazy()}.
+     * Resolvers are consulted in the order they were registered.
+     *
+     * @param resolver The resolver to register.
+     */
+    public void registerFileResolver(RemotePreferenceFileResolver resolver) {
+        mFileResolvers.add(resolver);
+    }
+
+    /**
+     * Unregisters a resolver previously registered with
+     * {@link #registerFileResolver(RemotePreferenceFileResolver)}.
+     * Files that it already resolved remain exposed until they are
+     * unregistered with {@link #unregisterFile(String)}.
+     *
+     * @param resolver The resolver to unregister.
+     */
+    public void unregisterFileResolver(RemotePreferenceFileResolver resolver) {
+        mFileResolvers.remove(resolver);
+    }
+
+    /**
+     * Exposes all preference files whose names match the specified
+     * pattern. This is a shortcut for registering a
+     * {@link RemotePreferenceFileResolver}.
+     *
+     * @param pattern The pattern that file names must match in full.
+     * @param isDeviceProtected {@code true} if the matching files are device
+     *                          protected, {@code false} if they are
+     *                          credential protected.
+     * @return The resolver that was registered, which may be passed to
+     *         {@link #unregisterFileResolver(RemotePreferenceFileResolver)}.
+     */
+    public RemotePreferenceFileResolver registerFilePattern(final Pattern pattern, final boolean isDeviceProtected) {
+        RemotePreferenceFileResolver resolver = new RemotePreferenceFileResolver() {
+            @Override
+            public RemotePreferenceFile resolveFile(String prefFileName) {
+                if (!pattern.matcher(prefFileName).matches()) {
+                    return null;
+                }
+                return new RemotePreferenceFile(prefFileName, isDeviceProtected, true);
+            }
+        };
+        registerFileResolver(resolver);
+        return resolver;
+    }
+
+    /**
+     * Checks whether the new value of a preference may be attached to the
+     * change notification that is sent when it changes. This allows
+     * clients to receive the new value without making another request.
+     * The default implementation returns {@code false}.
+     *
+     * <p>
+     * Change notifications are NOT subject to {@link #checkAccess(String, String, boolean)}:
+     * any app that can observe this provider's URIs (or bind to its
+     * {@link RemotePreferenceService}) will see the value. Only return
+     * {@code true} for preferences that are not sensitive. Clients in the
+     * same process as the provider always receive the new value.
+     * </p>
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKey The preference key that changed.
+     * @return {@code true} if the value may be included; {@code false} otherwise.
+     */
+    protected boolean includeValueInChangeNotification(String prefFileName, String prefKey) {
+        return false;
+    }
+
     /**
      * Called at application startup to register preference change listeners.
+     * Preference files that are loaded lazily are opened (and their
+     * listeners registered) when they are first accessed instead.
      *
      * @return Always returns {@code true}.
      */
@@ -138,18 +413,104 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
         // We register the shared preference listeners whenever the provider
         // is created. This method is called before almost all other code in
         // the app, which ensures that we never miss a preference change.
-        for (RemotePreferenceFile file : mPrefFiles) {
-            Context context = getContext();
-            if (file.isDeviceProtected() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                context = context.createDeviceProtectedStorageContext();
+        ArrayList<PreferenceFileHolder> lazyFiles = new ArrayList<PreferenceFileHolder>();
+        for (PreferenceFileHolder holder : mPreferences.values()) {
+            if (holder.mFile.isLazy()) {
+                lazyFiles.add(holder);
+            } else {
+                holder.get();
+            }
+        }
+
+        Executor preloadExecutor = getPreloadExecutor();
+        if (preloadExecutor != null) {
+            for (final PreferenceFileHolder holder : lazyFiles) {
+                preloadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        holder.get();
+                    }
+                });
             }
-            SharedPreferences prefs = getSharedPreferences(context, file.getFileName());
-            prefs.registerOnSharedPreferenceChangeListener(this);
-            mPreferences.put(file.getFileName(), prefs);
         }
+
+        long accessCacheDuration = getAccessCacheDuration();
+        if (accessCacheDuration > 0) {
+            mAccessCache = new RemotePreferenceAccessCache(accessCacheDuration);
+            registerPackageReceiver();
+        }
+
+        // Only publish ourselves once all the preference files are
+        // loaded, otherwise a local client could observe a half
+        // initialized provider.
+        sLocalProviders.put(mAuthority, this);
         return true;
     }
 
+    /**
+     * Clears the access decision cache whenever a package is installed,
+     * updated, or removed, since the app behind a UID may have changed.
+     */
+    private void registerPackageReceiver() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mAccessCache.clear();
+            }
+        }, filter);
+    }
+
+    /**
+     * Opens a preference file and starts listening for changes to it.
+     *
+     * @param file The preference file to open.
+     * @return The {@link SharedPreferences} instance for the file.
+     */
+    private SharedPreferences openSharedPreferences(RemotePreferenceFile file) {
+        SharedPreferences prefs = getSharedPreferences(getPreferenceContext(file), file.getFileName());
+        mPreferenceFiles.put(prefs, file);
+        prefs.registerOnSharedPreferenceChangeListener(this);
+        return prefs;
+    }
+
+    /**
+     * Returns the context used to access the specified preference file.
+     * The device protected storage context is shared between all files,
+     * since creating one is relatively expensive.
+     *
+     * @param file The preference file.
+     * @return The context in which the preference file is stored.
+     */
+    private Context getPreferenceContext(RemotePreferenceFile file) {
+        Context context = getContext();
+        if (file.isDeviceProtected() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            Context deviceContext = mDeviceProtectedContext;
+            if (deviceContext == null) {
+                deviceContext = context.createDeviceProtectedStorageContext();
+                mDeviceProtectedContext = deviceContext;
+            }
+            context = deviceContext;
+        }
+        return context;
+    }
+
+    /**
+     * Returns the provider instance with the specified authority if it
+     * lives in the current process, or {@code null} otherwise.
+     *
+     * @param authority The authority of the provider.
+     * @return The local provider instance, or {@code null} if not found.
+     */
+    /* package */ static RemotePreferenceProvider getLocalProvider(String authority) {
+        return sLocalProviders.get(authority);
+    }
+
     /**
      * Generate {@link SharedPreferences} to store the key-value data.
      * Override this method to provide a custom implementation of {@link SharedPreferences}.
@@ -168,12 +529,26 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
      * cursor will contain a single row containing the queried preference.
      * If {@code uri} is in the form {@code content://authority/prefFileName},
      * the cursor will contain one row for each preference in the specified
-     * file.
+     * file, or if {@code selection} is {@link RemoteContract#SELECTION_KEYS},
+     * one row for each preference key in {@code selectionArgs} that exists.
+     * If {@code selection} is {@link RemoteContract#SELECTION_PREFIX} or
+     * {@link RemoteContract#SELECTION_RANGE}, the cursor contains the
+     * preferences whose keys start with {@code selectionArgs[0]}, or are
+     * between {@code selectionArgs[0]} (inclusive) and {@code selectionArgs[1]}
+     * (exclusive), in key order. A {@code null} bound is unbounded.
+     * For range queries, {@code selectionArgs[2]} optionally limits the
+     * number of rows returned; to fetch the next page, query again starting
+     * from the last key of the previous page followed by {@code '\0'}.
      *
      * @param uri Specifies the preference file and key (optional) to query.
      * @param projection Specifies which fields should be returned in the cursor.
-     * @param selection Ignored.
-     * @param selectionArgs Ignored.
+     *                   Values are only serialized if the value column is requested.
+     * @param selection {@link RemoteContract#SELECTION_KEYS},
+     *                  {@link RemoteContract#SELECTION_PREFIX}, or
+     *                  {@link RemoteContract#SELECTION_RANGE} to only return some
+     *                  of the preferences; other values are ignored.
+     * @param selectionArgs The keys, prefix, or range to return, if
+     *                      {@code selection} is set.
      * @param sortOrder Ignored.
      * @return A cursor used to access the queried preference data.
      */
@@ -181,9 +556,6 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         RemotePreferencePath prefPath = mUriParser.parse(uri);
 
-        SharedPreferences prefs = getSharedPreferencesOrThrow(prefPath, false);
-        Map<String, ?> prefMap = prefs.getAll();
-
         // If no projection is specified, we return all columns.
         if (projection == null) {
             projection = RemoteContract.COLUMN_ALL;
@@ -191,12 +563,34 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
 
         // Fill out the cursor with the preference data. If the caller
         // didn't ask for a particular preference, we return all of them.
-        MatrixCursor cursor = new MatrixCursor(projection);
+        RemotePreferenceSnapshot snapshot;
+        if (isSingleKey(prefPath.key)) {
+            snapshot = readSnapshot(prefPath.fileName, new String[] {prefPath.key});
+        } else if (RemoteContract.SELECTION_PREFIX.equals(selection)) {
+            String prefix = getSelectionArg(selectionArgs, 0);
+            String toKey = prefix != null ? RemoteUtils.getPrefixEnd(prefix) : null;
+            snapshot = readPreferenceRange(prefPath.fileName, prefix, toKey, 0);
+        } else if (RemoteContract.SELECTION_RANGE.equals(selection)) {
+            String fromKey = getSelectionArg(selectionArgs, 0);
+            String toKey = getSelectionArg(selectionArgs, 1);
+            int limit = parseLimit(getSelectionArg(selectionArgs, 2));
+            snapshot = readPreferenceRange(prefPath.fileName, fromKey, toKey, limit);
+        } else {
+            String[] prefKeys = null;
+            if (RemoteContract.SELECTION_KEYS.equals(selection)) {
+                prefKeys = (selectionArgs != null) ? selectionArgs : new String[0];
+            }
+            snapshot = readSnapshot(prefPath.fileName, prefKeys);
+        }
+
+        Bundle extras = new Bundle();
+        extras.putLong(RemoteContract.EXTRA_GENERATION, snapshot.getGeneration());
+        MatrixCursor cursor = new PreferenceCursor(projection, extras);
         if (isSingleKey(prefPath.key)) {
-            Object prefValue = prefMap.get(prefPath.key);
+            Object prefValue = snapshot.getValues().get(prefPath.key);
             cursor.addRow(buildRow(projection, prefPath.key, prefValue));
         } else {
-            for (Map.Entry<String, ?> entry : prefMap.entrySet()) {
+            for (Map.Entry<String, Object> entry : snapshot.getValues().entrySet()) {
                 String prefKey = entry.getKey();
                 Object prefValue = entry.getValue();
                 cursor.addRow(buildRow(projection, prefKey, prefValue));
@@ -235,12 +629,12 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
         RemotePreferencePath prefPath = mUriParser.parse(uri);
         String prefKey = getKeyFromUriOrValues(prefPath, values);
 
-        SharedPreferences prefs = getSharedPreferencesOrThrow(prefPath, true);
-        SharedPreferences.Editor editor = prefs.edit();
+        PreferenceFileHolder holder = getPreferenceFileOrThrow(prefPath, true);
+        SharedPreferences.Editor editor = holder.get().edit();
 
         putPreference(editor, prefKey, values);
 
-        if (editor.commit()) {
+        if (commitPreferences(holder, editor, !isSingleKey(prefKey)) != RemotePreferenceTransport.WRITE_FAILED) {
             return getPreferenceUri(prefPath.fileName, prefKey);
         } else {
             return null;
@@ -264,16 +658,7 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
             throw new IllegalArgumentException("Cannot bulk insert with single key URI");
         }
 
-        SharedPreferences prefs = getSharedPreferencesByName(prefPath.fileName);
-        SharedPreferences.Editor editor = prefs.edit();
-
-        for (ContentValues value : values) {
-            String prefKey = getKeyFromValues(value);
-            checkAccessOrThrow(prefPath.withKey(prefKey), true);
-            putPreference(editor, prefKey, value);
-        }
-
-        if (editor.commit()) {
+        if (writePreferences(prefPath.fileName, values) != RemotePreferenceTransport.WRITE_FAILED) {
             return values.length;
         } else {
             return 0;
@@ -295,8 +680,8 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         RemotePreferencePath prefPath = mUriParser.parse(uri);
 
-        SharedPreferences prefs = getSharedPreferencesOrThrow(prefPath, true);
-        SharedPreferences.Editor editor = prefs.edit();
+        PreferenceFileHolder holder = getPreferenceFileOrThrow(prefPath, true);
+        SharedPreferences.Editor editor = holder.get().edit();
 
         if (isSingleKey(prefPath.key)) {
             editor.remove(prefPath.key);
@@ -307,7 +692,7 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
         // There's no reliable method of getting the actual number of
         // preference values changed, so callers should not rely on this
         // value. A return value of 1 means success, 0 means failure.
-        if (editor.commit()) {
+        if (commitPreferences(holder, editor, !isSingleKey(prefPath.key)) != RemotePreferenceTransport.WRITE_FAILED) {
             return 1;
         } else {
             return 0;
@@ -336,162 +721,1219 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
     }
 
     /**
-     * Listener for preference value changes in the local application.
-     * Re-raises the event through the
-     * {@link ContentResolver#notifyChange(Uri, ContentObserver)} API
-     * to any registered {@link ContentObserver} objects. Note that this
-     * is NOT called for {@link SharedPreferences.Editor#clear()}.
+     * Handles requests from {@link RemotePreferences} using the
+     * {@code call()} transport. {@code arg} is the name of the preference
+     * file, and {@code extras} contains the method arguments. See
+     * {@link RemoteContract} for the supported methods.
      *
-     * @param prefs The preference file that changed.
-     * @param prefKey The preference key that changed.
-     */
-    @Override
-    public void onSharedPreferenceChanged(SharedPreferences prefs, String prefKey) {
-        RemotePreferenceFile prefFile = getSharedPreferencesFile(prefs);
-        Uri uri = getPreferenceUri(prefFile.getFileName(), prefKey);
-        Context context = getContext();
-        if (prefFile.isDeviceProtected() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            context = context.createDeviceProtectedStorageContext();
-        }
-        ContentResolver resolver = context.getContentResolver();
-        resolver.notifyChange(uri, null);
-    }
-
-    /**
-     * Writes the value of the specified preference(s). If {@code prefKey}
-     * is empty, {@code values} must contain {@link RemoteContract#TYPE_NULL}
-     * for the type, representing the {@link SharedPreferences.Editor#clear()}
-     * operation.
+     * <p>
+     * Batches that are too large for a single binder transaction are
+     * written in chunks: {@link RemoteContract#METHOD_BEGIN} returns a
+     * transaction ID, each {@link RemoteContract#METHOD_STAGE} call adds
+     * a chunk to it, and {@link RemoteContract#METHOD_COMMIT} writes all
+     * of the chunks in a single commit. Nothing is visible to readers
+     * until the transaction is committed. Transactions that are not
+     * committed or aborted within a minute are discarded.
+     * </p>
      *
-     * @param editor The preference file to modify.
-     * @param prefKey The preference key to modify, or {@code null} for the entire file.
-     * @param values The values to write.
+     * <p>
+     * {@link RemoteContract#METHOD_READ_FILES} reads several preference
+     * files in a single call, and {@link RemoteContract#METHOD_WRITE_FILES}
+     * writes to several files in a single transaction. Both ignore
+     * {@code arg}. The usual access checks are run for each file.
+     * </p>
+     *
+     * <p>
+     * Unlike the other {@link ContentProvider} methods, the system does
+     * not enforce the {@code android:readPermission} and
+     * {@code android:writePermission} attributes for this method, so we
+     * check them manually.
+     * </p>
+     *
+     * @param method The method to invoke.
+     * @param arg The name of the preference file, if applicable.
+     * @param extras The method arguments.
+     * @return The method result.
      */
-    private void putPreference(SharedPreferences.Editor editor, String prefKey, ContentValues values) {
-        // Get the new value type. Note that we manually check
-        // for null, then unbox the Integer so we don't cause a NPE.
-        Integer type = values.getAsInteger(RemoteContract.COLUMN_TYPE);
-        if (type == null) {
-            throw new IllegalArgumentException("Invalid or no preference type specified");
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (arg == null || extras == null) {
+            throw new IllegalArgumentException("Preference file name and arguments are required");
         }
 
-        // deserializeInput makes sure the actual object type matches
-        // the expected type, so we must perform this step before actually
-        // performing any actions.
-        Object rawValue = values.get(RemoteContract.COLUMN_VALUE);
-        Object value = RemoteUtils.deserializeInput(rawValue, type);
-
-        // If we are writing to the "directory" and the type is null,
-        // then we should clear the preferences.
-        if (!isSingleKey(prefKey)) {
-            if (type == RemoteContract.TYPE_NULL) {
-                editor.clear();
-                return;
+        Bundle result = new Bundle();
+        if (RemoteContract.METHOD_READ.equals(method)) {
+            enforceCallingPermission(false);
+            String[] prefKeys = extras.getStringArray(RemoteContract.EXTRA_KEYS);
+            RemotePreferenceSnapshot snapshot;
+            if (extras.getBoolean(RemoteContract.EXTRA_RANGE)) {
+                String fromKey = extras.getString(RemoteContract.EXTRA_FROM_KEY);
+                String toKey = extras.getString(RemoteContract.EXTRA_TO_KEY);
+                int limit = extras.getInt(RemoteContract.EXTRA_LIMIT);
+                snapshot = readPreferenceRange(arg, fromKey, toKey, limit);
             } else {
-                throw new IllegalArgumentException("Attempting to insert preference with null or empty key");
+                snapshot = readSnapshot(arg, prefKeys);
             }
-        }
-
-        switch (type) {
-        case RemoteContract.TYPE_NULL:
-            editor.remove(prefKey);
-            break;
-        case RemoteContract.TYPE_STRING:
-            editor.putString(prefKey, (String)value);
-            break;
-        case RemoteContract.TYPE_STRING_SET:
-            if (Build.VERSION.SDK_INT >= 11) {
-                editor.putStringSet(prefKey, RemoteUtils.castStringSet(value));
+            result.putLong(RemoteContract.EXTRA_GENERATION, snapshot.getGeneration());
+            Map<String, Object> prefMap = snapshot.getValues();
+            if (extras.getBoolean(RemoteContract.EXTRA_TYPES_ONLY)) {
+                Bundle types = new Bundle();
+                for (Map.Entry<String, Object> entry : prefMap.entrySet()) {
+                    types.putInt(entry.getKey(), RemoteUtils.getPreferenceType(entry.getValue()));
+                }
+                result.putBundle(RemoteContract.EXTRA_TYPES, types);
             } else {
-                throw new IllegalArgumentException("String set preferences not supported on API < 11");
+                result.putBundle(RemoteContract.EXTRA_VALUES, RemoteUtils.serializeBundle(prefMap));
             }
-            break;
-        case RemoteContract.TYPE_INT:
-            editor.putInt(prefKey, (Integer)value);
-            break;
-        case RemoteContract.TYPE_LONG:
-            editor.putLong(prefKey, (Long)value);
-            break;
-        case RemoteContract.TYPE_FLOAT:
-            editor.putFloat(prefKey, (Float)value);
-            break;
-        case RemoteContract.TYPE_BOOLEAN:
-            editor.putBoolean(prefKey, (Boolean)value);
-            break;
-        default:
-            throw new IllegalArgumentException("Cannot set preference with type " + type);
+        } else if (RemoteContract.METHOD_READ_FILES.equals(method)) {
+            enforceCallingPermission(false);
+            String[] prefFileNames = extras.getStringArray(RemoteContract.EXTRA_FILES);
+            if (prefFileNames == null) {
+                throw new IllegalArgumentException("Preference file names are required");
+            }
+            Bundle fileKeys = extras.getBundle(RemoteContract.EXTRA_FILE_KEYS);
+            String[][] prefKeys = new String[prefFileNames.length][];
+            for (int i = 0; i < prefFileNames.length; ++i) {
+                prefKeys[i] = fileKeys != null ? fileKeys.getStringArray(prefFileNames[i]) : null;
+            }
+            Map<String, RemotePreferenceSnapshot> snapshots = readFiles(prefFileNames, prefKeys);
+            Bundle files = new Bundle();
+            for (Map.Entry<String, RemotePreferenceSnapshot> entry : snapshots.entrySet()) {
+                Bundle file = new Bundle();
+                file.putLong(RemoteContract.EXTRA_GENERATION, entry.getValue().getGeneration());
+                file.putBundle(RemoteContract.EXTRA_VALUES, RemoteUtils.serializeBundle(entry.getValue().getValues()));
+                files.putBundle(entry.getKey(), file);
+            }
+            result.putBundle(RemoteContract.EXTRA_FILES, files);
+        } else if (RemoteContract.METHOD_WRITE_FILES.equals(method)) {
+            enforceCallingPermission(true);
+            String[] prefFileNames = extras.getStringArray(RemoteContract.EXTRA_FILES);
+            Bundle fileValues = extras.getBundle(RemoteContract.EXTRA_VALUES);
+            if (prefFileNames == null || fileValues == null) {
+                throw new IllegalArgumentException("Preference file names and values are required");
+            }
+            ContentValues[][] values = new ContentValues[prefFileNames.length][];
+            for (int i = 0; i < prefFileNames.length; ++i) {
+                values[i] = getValuesFromParcels(fileValues.getParcelableArray(prefFileNames[i]));
+            }
+            long[] generations = writeFiles(prefFileNames, values);
+            result.putBoolean(RemoteContract.EXTRA_RESULT, generations != null);
+            if (generations != null) {
+                result.putLongArray(RemoteContract.EXTRA_GENERATIONS, generations);
+            }
+        } else if (RemoteContract.METHOD_WRITE.equals(method)) {
+            enforceCallingPermission(true);
+            ContentValues[] values = getValuesFromExtras(extras);
+            putWriteResult(result, writePreferences(arg, values));
+        } else if (RemoteContract.METHOD_BEGIN.equals(method)) {
+            enforceCallingPermission(true);
+            result.putString(RemoteContract.EXTRA_TRANSACTION, beginStagedWrite(arg));
+        } else if (RemoteContract.METHOD_STAGE.equals(method)) {
+            enforceCallingPermission(true);
+            String transaction = extras.getString(RemoteContract.EXTRA_TRANSACTION);
+            stageWrite(arg, transaction, getValuesFromExtras(extras));
+            result.putBoolean(RemoteContract.EXTRA_RESULT, true);
+        } else if (RemoteContract.METHOD_COMMIT.equals(method)) {
+            enforceCallingPermission(true);
+            String transaction = extras.getString(RemoteContract.EXTRA_TRANSACTION);
+            ContentValues[] values = finishStagedWrite(arg, transaction);
+            putWriteResult(result, writePreferences(arg, values));
+        } else if (RemoteContract.METHOD_ABORT.equals(method)) {
+            enforceCallingPermission(true);
+            String transaction = extras.getString(RemoteContract.EXTRA_TRANSACTION);
+            finishStagedWrite(arg, transaction);
+            result.putBoolean(RemoteContract.EXTRA_RESULT, true);
+        } else {
+            throw new IllegalArgumentException("Unknown method: " + method);
         }
+        return result;
     }
 
     /**
-     * Used to project a preference value to the schema requested by the caller.
+     * Adds the result of {@link #writePreferences(String, ContentValues[])}
+     * to the result of a {@code call()} request.
      *
-     * @param projection The projection requested by the caller.
-     * @param key The preference key.
-     * @param value The preference value.
-     * @return A row representing the preference using the given schema.
+     * @param result The result of the request.
+     * @param generation The generation returned by the write.
      */
-    private Object[] buildRow(String[] projection, String key, Object value) {
-        Object[] row = new Object[projection.length];
-        for (int i = 0; i < row.length; ++i) {
-            String col = projection[i];
-            if (RemoteContract.COLUMN_KEY.equals(col)) {
-                row[i] = key;
-            } else if (RemoteContract.COLUMN_TYPE.equals(col)) {
-                row[i] = RemoteUtils.getPreferenceType(value);
-            } else if (RemoteContract.COLUMN_VALUE.equals(col)) {
-                row[i] = RemoteUtils.serializeOutput(value);
-            } else {
-                throw new IllegalArgumentException("Invalid column name: " + col);
-            }
+    private static void putWriteResult(Bundle result, long generation) {
+        boolean success = generation != RemotePreferenceTransport.WRITE_FAILED;
+        result.putBoolean(RemoteContract.EXTRA_RESULT, success);
+        if (success) {
+            result.putLong(RemoteContract.EXTRA_GENERATION, generation);
         }
-        return row;
     }
 
     /**
-     * Returns whether the specified key represents a single preference key
-     * (as opposed to the entire preference file).
+     * Reads the specified preferences, checking that the caller has
+     * permission to read each one. All values are read from the same
+     * snapshot of the preference file. This is the common entry point
+     * used by all transports.
      *
-     * @param prefKey The preference key to check.
-     * @return Whether the key refers to a single preference.
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The keys to read, or {@code null} to read the entire file.
+     * @return A new map containing the preferences that exist.
      */
-    private static boolean isSingleKey(String prefKey) {
-        return prefKey != null;
+    /* package */ Map<String, Object> readPreferences(String prefFileName, String[] prefKeys) {
+        return readPreferences(getPreferenceFileOrThrow(prefFileName, prefKeys, false), prefKeys);
     }
 
     /**
-     * Parses the preference key from {@code values}. If the key is not
-     * specified in the values, {@code null} is returned.
+     * Reads the specified preferences along with the generation of the
+     * file, checking that the caller has permission to read each one.
+     * The generation is read under the same lock as the values, so the
+     * values are at least as new as the generation.
      *
-     * @param values The query values to parse.
-     * @return The parsed key, or {@code null} if no key was found.
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The keys to read, or {@code null} to read the entire file.
+     * @return A snapshot containing the preferences that exist.
      */
-    private static String getKeyFromValues(ContentValues values) {
-        String key = values.getAsString(RemoteContract.COLUMN_KEY);
-        if (key != null && key.length() == 0) {
-            key = null;
-        }
-        return key;
+    /* package */ RemotePreferenceSnapshot readSnapshot(String prefFileName, String[] prefKeys) {
+        return readSnapshot(getPreferenceFileOrThrow(prefFileName, prefKeys, false), prefKeys);
     }
 
     /**
-     * Parses the preference key from the specified sources. Since there
-     * are two ways to specify the key (from the URI or from the query values),
-     * the only allowed combinations are:
-     *
-     * uri.key == values.key
-     * uri.key != null and values.key == null = URI key is used
-     * uri.key == null and values.key != null = values key is used
-     * uri.key == null and values.key == null = no key
-     *
-     * If none of these conditions are met, an exception is thrown.
+     * Reads a snapshot of a file that the caller has already been
+     * granted access to.
      *
-     * @param prefPath Parsed URI key from {@code mUriParser.parse(uri)}.
-     * @param values Query values provided by the caller.
-     * @return The parsed key, or {@code null} if the key refers to a preference file.
+     * @param holder The preference file.
+     * @param prefKeys The keys to read, or {@code null} to read the entire file.
+     * @return A snapshot containing the preferences that exist.
      */
-    private static String getKeyFromUriOrValues(RemotePreferencePath prefPath, ContentValues values) {
-        String uriKey = prefPath.key;
+    private RemotePreferenceSnapshot readSnapshot(PreferenceFileHolder holder, String[] prefKeys) {
+        Lock lock = holder.mLock.readLock();
+        lock.lock();
+        try {
+            long generation = holder.mGeneration.get();
+            return new RemotePreferenceSnapshot(readPreferences(holder, prefKeys), generation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the specified preferences from a file that the caller
+     * has already been granted access to. Never reads a file that is
+     * in the middle of a multi-file transaction. Individual keys are
+     * looked up directly, so only reading the entire file copies it.
+     *
+     * @param holder The preference file.
+     * @param prefKeys The keys to read, or {@code null} to read the entire file.
+     * @return A new map containing the preferences that exist.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readPreferences(PreferenceFileHolder holder, String[] prefKeys) {
+        Lock lock = holder.mLock.readLock();
+        lock.lock();
+        try {
+            SharedPreferences prefs = holder.get();
+            if (prefKeys == null) {
+                // getAll() already returns a new map, no need to copy it again
+                return (Map<String, Object>)prefs.getAll();
+            }
+
+            HashMap<String, Object> map = new HashMap<String, Object>(prefKeys.length);
+            for (String prefKey : prefKeys) {
+                Object prefValue = getPreference(prefs, prefKey);
+                if (prefValue != null) {
+                    map.put(prefKey, prefValue);
+                }
+            }
+            return map;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a single preference without copying the entire file, as
+     * {@link SharedPreferences#getAll()} would. There is no untyped
+     * getter, so this tries each typed getter in turn.
+     *
+     * @param prefs The preference file.
+     * @param prefKey The key of the preference.
+     * @return The value of the preference, or {@code null} if it does not exist.
+     */
+    private static Object getPreference(SharedPreferences prefs, String prefKey) {
+        if (!prefs.contains(prefKey)) {
+            return null;
+        }
+        Object prefValue = getPreferenceOfAnyType(prefs, prefKey);
+
+        // The typed getters return the default value if the preference
+        // was removed in the meantime, so check that it still exists
+        return prefs.contains(prefKey) ? prefValue : null;
+    }
+
+    /**
+     * Reads a preference that is known to exist, whatever its type.
+     * The typed getters throw a {@link ClassCastException} if the
+     * preference has a different type.
+     *
+     * @param prefs The preference file.
+     * @param prefKey The key of the preference.
+     * @return The value of the preference.
+     */
+    private static Object getPreferenceOfAnyType(SharedPreferences prefs, String prefKey) {
+        try {
+            return prefs.getString(prefKey, null);
+        } catch (ClassCastException e) {
+            // Not a string
+        }
+        try {
+            return prefs.getInt(prefKey, 0);
+        } catch (ClassCastException e) {
+            // Not an int
+        }
+        try {
+            return prefs.getLong(prefKey, 0);
+        } catch (ClassCastException e) {
+            // Not a long
+        }
+        try {
+            return prefs.getFloat(prefKey, 0);
+        } catch (ClassCastException e) {
+            // Not a float
+        }
+        try {
+            return prefs.getBoolean(prefKey, false);
+        } catch (ClassCastException e) {
+            // Not a boolean
+        }
+        if (Build.VERSION.SDK_INT >= 11) {
+            try {
+                return prefs.getStringSet(prefKey, null);
+            } catch (ClassCastException e) {
+                // Not a string set
+            }
+        }
+
+        // The type changed while we were looking, give up and copy the file
+        return prefs.getAll().get(prefKey);
+    }
+
+    /**
+     * Reads preferences from several files, checking that the caller has
+     * permission to read each one. Multi-file transactions are either
+     * entirely visible or not visible at all in the result.
+     *
+     * @param prefFileNames The names of the preference files.
+     * @param prefKeys For each file, the keys to read, or {@code null}
+     *                 to read the entire file.
+     * @return A map from file names to snapshots of the files.
+     */
+    /* package */ Map<String, RemotePreferenceSnapshot> readFiles(String[] prefFileNames, String[][] prefKeys) {
+        PreferenceFileHolder[] holders = new PreferenceFileHolder[prefFileNames.length];
+        for (int i = 0; i < prefFileNames.length; ++i) {
+            holders[i] = getPreferenceFileOrThrow(prefFileNames[i], prefKeys[i], false);
+        }
+
+        HashMap<String, RemotePreferenceSnapshot> snapshots = new HashMap<String, RemotePreferenceSnapshot>(prefFileNames.length);
+        List<Lock> locks = lockPreferenceFiles(Arrays.asList(holders), false);
+        try {
+            for (int i = 0; i < prefFileNames.length; ++i) {
+                snapshots.put(prefFileNames[i], readSnapshot(holders[i], prefKeys[i]));
+            }
+        } finally {
+            unlockPreferenceFiles(locks);
+        }
+        return snapshots;
+    }
+
+    /**
+     * Locks several preference files for reading or writing. The files
+     * are always locked in the same order, so that transactions on
+     * overlapping sets of files cannot deadlock.
+     *
+     * @param holders The preference files. Duplicates are locked once.
+     * @param write Whether to lock the files for writing.
+     * @return The locks that were acquired.
+     */
+    private static List<Lock> lockPreferenceFiles(Collection<PreferenceFileHolder> holders, boolean write) {
+        TreeMap<String, PreferenceFileHolder> sortedHolders = new TreeMap<String, PreferenceFileHolder>();
+        for (PreferenceFileHolder holder : holders) {
+            sortedHolders.put(holder.mFile.getFileName(), holder);
+        }
+
+        ArrayList<Lock> locks = new ArrayList<Lock>(sortedHolders.size());
+        for (PreferenceFileHolder holder : sortedHolders.values()) {
+            Lock lock = write ? holder.mLock.writeLock() : holder.mLock.readLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    /**
+     * Releases the locks acquired by {@link #lockPreferenceFiles(Collection, boolean)}.
+     *
+     * @param locks The locks to release.
+     */
+    private static void unlockPreferenceFiles(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; --i) {
+            locks.get(i).unlock();
+        }
+    }
+
+    /**
+     * Reads the preferences whose keys are in the specified range. Only
+     * the matching preferences are sorted, and the range is taken from
+     * the same snapshot of the file as the values, so writes made outside
+     * of the provider are visible as soon as they are in memory. Since
+     * the range is a subset of the file, this performs the same access
+     * check as reading the entire file. Reads with a limit are served by
+     * {@link #readPage(PreferenceFileHolder, String, String, int)}.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param fromKey The first key to read (inclusive), or {@code null}
+     *                to start at the first key in the file.
+     * @param toKey The last key to read (exclusive), or {@code null}
+     *              to read until the end of the file.
+     * @param limit The maximum number of preferences to read, or 0 to
+     *              read the entire range.
+     * @return A snapshot containing the preferences in the range, in key order.
+     */
+    /* package */ RemotePreferenceSnapshot readPreferenceRange(String prefFileName, String fromKey, String toKey, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative: " + limit);
+        }
+
+        PreferenceFileHolder holder = getPreferenceFileOrThrow(prefFileName, null, false);
+        if (limit > 0) {
+            return readPage(holder, fromKey, toKey, limit);
+        }
+
+        Lock lock = holder.mLock.readLock();
+        long generation;
+        Map<String, ?> prefMap;
+        lock.lock();
+        try {
+            generation = holder.mGeneration.get();
+            prefMap = holder.get().getAll();
+        } finally {
+            lock.unlock();
+        }
+
+        TreeMap<String, Object> range = new TreeMap<String, Object>();
+        if (fromKey == null || toKey == null || fromKey.compareTo(toKey) < 0) {
+            for (Map.Entry<String, ?> entry : prefMap.entrySet()) {
+                String prefKey = entry.getKey();
+                if (prefKey != null && entry.getValue() != null &&
+                    (fromKey == null || prefKey.compareTo(fromKey) >= 0) &&
+                    (toKey == null || prefKey.compareTo(toKey) < 0)) {
+                    range.put(prefKey, entry.getValue());
+                }
+            }
+        }
+        return new RemotePreferenceSnapshot(copyRange(range, limit), generation);
+    }
+
+    /**
+     * Reads a page of preferences for {@link RemotePreferences#scan(int)}.
+     * The first page (i.e. one without a start key) sorts a snapshot of
+     * the entire file, and the following pages walk that snapshot for as
+     * long as the generation of the file is unchanged. A full scan
+     * therefore copies the file once, rather than once per page. Writes
+     * made outside of the provider become visible to later pages once
+     * their change callback has run.
+     *
+     * @param holder The preference file.
+     * @param fromKey The first key to read (inclusive), or {@code null}
+     *                to start a new scan.
+     * @param toKey The last key to read (exclusive), or {@code null}
+     *              to read until the end of the file.
+     * @param limit The maximum number of preferences to read.
+     * @return A snapshot containing the preferences in the page, in key order.
+     */
+    private RemotePreferenceSnapshot readPage(PreferenceFileHolder holder, String fromKey, String toKey, int limit) {
+        String prefFileName = holder.mFile.getFileName();
+        SortedSnapshot sorted;
+        Lock lock = holder.mLock.readLock();
+        lock.lock();
+        try {
+            long generation = holder.mGeneration.get();
+            synchronized (mSortedSnapshots) {
+                sorted = mSortedSnapshots.get(prefFileName);
+            }
+            if (fromKey == null || sorted == null || sorted.mHolder != holder || sorted.mGeneration != generation) {
+                TreeMap<String, Object> values = new TreeMap<String, Object>();
+                for (Map.Entry<String, ?> entry : holder.get().getAll().entrySet()) {
+                    if (entry.getKey() != null && entry.getValue() != null) {
+                        values.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                sorted = new SortedSnapshot(holder, values, generation);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        SortedMap<String, Object> range;
+        if (fromKey == null) {
+            range = (toKey == null) ? sorted.mValues : sorted.mValues.headMap(toKey);
+        } else if (toKey == null) {
+            range = sorted.mValues.tailMap(fromKey);
+        } else if (fromKey.compareTo(toKey) < 0) {
+            range = sorted.mValues.subMap(fromKey, toKey);
+        } else {
+            range = new TreeMap<String, Object>();
+        }
+        Map<String, Object> page = copyRange(range, limit);
+
+        // Keep the snapshot around for the next page, unless this was
+        // the last one
+        synchronized (mSortedSnapshots) {
+            if (page.size() == limit) {
+                mSortedSnapshots.put(prefFileName, sorted);
+            } else if (mSortedSnapshots.get(prefFileName) == sorted) {
+                mSortedSnapshots.remove(prefFileName);
+            }
+        }
+        return new RemotePreferenceSnapshot(page, sorted.mGeneration);
+    }
+
+    /**
+     * Copies the first preferences of a sorted range.
+     *
+     * @param range The preferences in the range, in key order.
+     * @param limit The maximum number of preferences to copy, or 0 to
+     *              copy the entire range.
+     * @return A new map containing the copied preferences, in key order.
+     */
+    private static Map<String, Object> copyRange(SortedMap<String, Object> range, int limit) {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : range.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+            if (map.size() == limit) {
+                break;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Writes multiple preference values at once, checking that the caller
+     * has permission to write each one. Either all or none of the values
+     * are written. This is the common entry point used by all transports.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param values The values to write, in the format described in
+     *               {@link #insert(Uri, ContentValues)}.
+     * @return The generation of the file after the values were committed,
+     *         or {@link RemotePreferenceTransport#WRITE_FAILED} if the
+     *         values could not be committed.
+     */
+    /* package */ long writePreferences(String prefFileName, ContentValues[] values) {
+        String[] prefKeys = getKeysFromValues(values);
+        PreferenceFileHolder holder = getPreferenceFileOrThrow(prefFileName, prefKeys, true);
+        SharedPreferences.Editor editor = holder.get().edit();
+        for (int i = 0; i < values.length; ++i) {
+            putPreference(editor, prefKeys[i], values[i]);
+        }
+        return commitPreferences(holder, editor, isClear(prefKeys));
+    }
+
+    /**
+     * Commits an edit to a single preference file. The change notifications
+     * caused by the commit are held back and sent together afterwards,
+     * labeled with the generation of the commit. Holding the read lock of
+     * the file keeps us from interleaving with (and being rolled back by)
+     * a multi-file transaction, without blocking other writers.
+     *
+     * @param holder The preference file.
+     * @param editor The edit to commit.
+     * @param clear Whether the edit clears the file.
+     * @return The generation of the file after the commit, or
+     *         {@link RemotePreferenceTransport#WRITE_FAILED} if the edit
+     *         could not be committed.
+     */
+    private long commitPreferences(PreferenceFileHolder holder, SharedPreferences.Editor editor, boolean clear) {
+        String prefFileName = holder.mFile.getFileName();
+        deferChanges(prefFileName);
+        Lock lock = holder.mLock.readLock();
+        boolean success = false;
+        long generation;
+        lock.lock();
+        try {
+            success = editor.commit();
+        } finally {
+            generation = finishCommit(holder, clear);
+            lock.unlock();
+            flushDeferredChanges(new String[] {prefFileName});
+        }
+        return success ? generation : RemotePreferenceTransport.WRITE_FAILED;
+    }
+
+    /**
+     * Bumps the generation of a file after a commit made through the
+     * provider. The generation is bumped exactly once per commit, no
+     * matter how many preferences changed, and the notifications held
+     * back during the commit are sent with the new generation.
+     *
+     * @param holder The preference file.
+     * @param clear Whether the commit cleared the file.
+     * @return The new generation of the file.
+     */
+    private long finishCommit(PreferenceFileHolder holder, boolean clear) {
+        String prefFileName = holder.mFile.getFileName();
+        long generation = holder.mGeneration.incrementAndGet();
+        synchronized (mDeferredChanges) {
+            DeferredChanges deferred = mDeferredChanges.get(prefFileName);
+            deferred.mGeneration = Math.max(deferred.mGeneration, generation);
+
+            // Clearing a file does not trigger onSharedPreferenceChanged
+            // before API 30, so clients that cache missing keys or the
+            // entire file would never find out that values were removed
+            if (clear && Build.VERSION.SDK_INT < 30) {
+                deferred.mKeys.add(null);
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Writes to several preference files in a single transaction,
+     * checking that the caller has permission to write each value.
+     * All values are validated before anything is committed, and readers
+     * going through the provider do not observe the transaction until
+     * every file has been committed. Only the files in the transaction
+     * are locked while it is committed. If a file fails to commit, the
+     * files that were already committed are restored to their previous
+     * contents, and no change notifications are sent for them. Otherwise,
+     * the notifications for all of the files are sent together once the
+     * transaction is complete, with one generation per file.
+     *
+     * @param prefFileNames The names of the preference files.
+     * @param values For each file, the values to write, in the format
+     *               described in {@link #insert(Uri, ContentValues)}.
+     * @return For each file, the generation of the file after the
+     *         transaction, or {@code null} if the transaction could not
+     *         be committed.
+     */
+    /* package */ long[] writeFiles(String[] prefFileNames, ContentValues[][] values) {
+        if (prefFileNames.length != values.length) {
+            throw new IllegalArgumentException("Expected values for " + prefFileNames.length + " files, got " + values.length);
+        }
+
+        PreferenceFileHolder[] holders = new PreferenceFileHolder[prefFileNames.length];
+        SharedPreferences.Editor[] editors = new SharedPreferences.Editor[prefFileNames.length];
+        boolean[] clears = new boolean[prefFileNames.length];
+        HashSet<String> seenFileNames = new HashSet<String>();
+        for (int i = 0; i < prefFileNames.length; ++i) {
+            if (!seenFileNames.add(prefFileNames[i])) {
+                throw new IllegalArgumentException("Duplicate preference file: " + prefFileNames[i]);
+            }
+            String[] prefKeys = getKeysFromValues(values[i]);
+            holders[i] = getPreferenceFileOrThrow(prefFileNames[i], prefKeys, true);
+            editors[i] = holders[i].get().edit();
+            clears[i] = isClear(prefKeys);
+            for (int j = 0; j < values[i].length; ++j) {
+                putPreference(editors[i], prefKeys[j], values[i][j]);
+            }
+        }
+
+        for (String prefFileName : prefFileNames) {
+            deferChanges(prefFileName);
+        }
+
+        boolean success = true;
+        int committed = 0;
+        long[] generations = new long[prefFileNames.length];
+        List<Lock> locks = lockPreferenceFiles(Arrays.asList(holders), true);
+        try {
+            ArrayList<Map<String, ?>> oldValues = new ArrayList<Map<String, ?>>(holders.length);
+            for (PreferenceFileHolder holder : holders) {
+                oldValues.add(new HashMap<String, Object>(holder.get().getAll()));
+            }
+
+            for (int i = 0; i < editors.length; ++i) {
+                committed = i + 1;
+                if (!editors[i].commit()) {
+                    // The failed file may have been modified in memory
+                    // even though it could not be written to disk. Nobody
+                    // could have read the changes while we held the locks,
+                    // so don't notify anyone about them either.
+                    for (int j = 0; j <= i; ++j) {
+                        Set<String> prefKeys = restorePreferences(holders[j].get(), oldValues.get(j));
+                        prefKeys.add(null);
+                        dropDeferredChanges(prefFileNames[j], prefKeys);
+                    }
+                    success = false;
+                    break;
+                }
+            }
+        } finally {
+            for (int i = 0; i < committed; ++i) {
+                generations[i] = finishCommit(holders[i], success && clears[i]);
+            }
+            unlockPreferenceFiles(locks);
+            flushDeferredChanges(prefFileNames);
+        }
+        return success ? generations : null;
+    }
+
+    /**
+     * Replaces the contents of a preference file with the specified
+     * values. Used to roll back a failed multi-file transaction. Only
+     * the preferences that differ from the previous contents are written.
+     *
+     * @param prefs The preference file.
+     * @param values The previous contents of the file.
+     * @return The keys of the preferences that were restored.
+     */
+    private static Set<String> restorePreferences(SharedPreferences prefs, Map<String, ?> values) {
+        Map<String, ?> currentValues = prefs.getAll();
+        SharedPreferences.Editor editor = prefs.edit();
+        HashSet<String> prefKeys = new HashSet<String>();
+        for (String prefKey : currentValues.keySet()) {
+            if (!values.containsKey(prefKey)) {
+                editor.remove(prefKey);
+                prefKeys.add(prefKey);
+            }
+        }
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            String prefKey = entry.getKey();
+            Object prefValue = entry.getValue();
+            if (prefValue.equals(currentValues.get(prefKey))) {
+                continue;
+            }
+            prefKeys.add(prefKey);
+            if (prefValue instanceof String) {
+                editor.putString(prefKey, (String)prefValue);
+            } else if (prefValue instanceof Set<?> && Build.VERSION.SDK_INT >= 11) {
+                editor.putStringSet(prefKey, RemoteUtils.castStringSet(prefValue));
+            } else if (prefValue instanceof Integer) {
+                editor.putInt(prefKey, (Integer)prefValue);
+            } else if (prefValue instanceof Long) {
+                editor.putLong(prefKey, (Long)prefValue);
+            } else if (prefValue instanceof Float) {
+                editor.putFloat(prefKey, (Float)prefValue);
+            } else if (prefValue instanceof Boolean) {
+                editor.putBoolean(prefKey, (Boolean)prefValue);
+            }
+        }
+        editor.commit();
+        return prefKeys;
+    }
+
+    /**
+     * Starts a staged write to the specified preference file. Staged
+     * writes that have not been touched for a while are discarded, so
+     * that callers which die in the middle of a write do not leak memory.
+     * Each caller may only have a limited number of staged writes open
+     * at once.
+     *
+     * @param prefFileName The name of the preference file.
+     * @return The ID of the new transaction.
+     */
+    private String beginStagedWrite(String prefFileName) {
+        // The keys are not known yet, so we can't check access here.
+        // Don't expose the file until the values are committed.
+        if (!mPreferences.containsKey(prefFileName) && resolvePreferenceFile(prefFileName) == null) {
+            throw new IllegalArgumentException("Unknown preference file name: " + prefFileName);
+        }
+        int callingUid = Binder.getCallingUid();
+        long now = SystemClock.elapsedRealtime();
+        String transaction = UUID.randomUUID().toString();
+        synchronized (mStagedWrites) {
+            removeExpiredStagedWrites(now);
+            int count = 0;
+            for (StagedWrite stagedWrite : mStagedWrites.values()) {
+                if (stagedWrite.mCallingUid == callingUid) {
+                    count++;
+                }
+            }
+            if (count >= MAX_STAGED_WRITES_PER_UID) {
+                throw new IllegalStateException("Too many open transactions");
+            }
+            mStagedWrites.put(transaction, new StagedWrite(prefFileName, callingUid, now));
+        }
+        return transaction;
+    }
+
+    /**
+     * Adds a chunk of values to a staged write. Access to each key is
+     * checked immediately, so that the caller finds out about denied
+     * keys before sending the rest of the chunks. The values are not
+     * written until the transaction is committed. Chunks that would
+     * take the caller over its limit of staged data are rejected.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param transaction The ID returned by {@link #beginStagedWrite(String)}.
+     * @param values The values to add, in the format described in
+     *               {@link #insert(Uri, ContentValues)}.
+     */
+    private void stageWrite(String prefFileName, String transaction, ContentValues[] values) {
+        checkAccessOrThrow(prefFileName, getKeysFromValues(values), true);
+        long size = getStagedSize(values);
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mStagedWrites) {
+            removeExpiredStagedWrites(now);
+            StagedWrite stagedWrite = getStagedWrite(prefFileName, transaction);
+            long totalSize = size;
+            for (StagedWrite other : mStagedWrites.values()) {
+                if (other.mCallingUid == stagedWrite.mCallingUid) {
+                    totalSize += other.mSize;
+                }
+            }
+            if (totalSize > MAX_STAGED_BYTES_PER_UID) {
+                throw new IllegalStateException("Too much data staged");
+            }
+            Collections.addAll(stagedWrite.mValues, values);
+            stagedWrite.mSize += size;
+            stagedWrite.mLastUpdated = now;
+        }
+    }
+
+    /**
+     * Ends a staged write, returning the values that were staged.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param transaction The ID returned by {@link #beginStagedWrite(String)}.
+     * @return The staged values, in the order they were added.
+     */
+    private ContentValues[] finishStagedWrite(String prefFileName, String transaction) {
+        synchronized (mStagedWrites) {
+            StagedWrite stagedWrite = getStagedWrite(prefFileName, transaction);
+            mStagedWrites.remove(transaction);
+            return stagedWrite.mValues.toArray(new ContentValues[stagedWrite.mValues.size()]);
+        }
+    }
+
+    /**
+     * Discards staged writes that have not been touched for
+     * {@link #STAGED_WRITE_TIMEOUT_MS}. Must be called while holding
+     * the {@link #mStagedWrites} lock.
+     *
+     * @param now The current time, from {@link SystemClock#elapsedRealtime()}.
+     */
+    private void removeExpiredStagedWrites(long now) {
+        Iterator<StagedWrite> it = mStagedWrites.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().mLastUpdated > STAGED_WRITE_TIMEOUT_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Estimates the memory used by a chunk of staged values. This only
+     * needs to be good enough to bound the memory used by each caller.
+     *
+     * @param values The values to measure.
+     * @return The approximate size of the values, in bytes.
+     */
+    private static long getStagedSize(ContentValues[] values) {
+        long size = 0;
+        for (ContentValues value : values) {
+            for (Map.Entry<String, Object> entry : value.valueSet()) {
+                size += entry.getKey().length() * 2L;
+                Object v = entry.getValue();
+                if (v instanceof String) {
+                    size += ((String)v).length() * 2L;
+                } else if (v instanceof byte[]) {
+                    size += ((byte[])v).length;
+                } else {
+                    size += 8;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Looks up a staged write, checking that it belongs to the caller.
+     * Must be called while holding the {@link #mStagedWrites} lock.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param transaction The ID returned by {@link #beginStagedWrite(String)}.
+     * @return The staged write.
+     */
+    private StagedWrite getStagedWrite(String prefFileName, String transaction) {
+        StagedWrite stagedWrite = (transaction != null) ? mStagedWrites.get(transaction) : null;
+        if (stagedWrite == null ||
+            stagedWrite.mCallingUid != Binder.getCallingUid() ||
+            !stagedWrite.mPrefFileName.equals(prefFileName)) {
+            throw new IllegalArgumentException("Unknown or expired transaction: " + transaction);
+        }
+        return stagedWrite;
+    }
+
+    /**
+     * Returns the current generation of the specified preference file.
+     * The generation changes whenever the file is modified, and is
+     * different every time the provider is created. To ensure that
+     * preference values are at least as new as the generation, always
+     * read the generation first. This does not check access, so it
+     * never consults the file resolvers.
+     *
+     * @param prefFileName The name of the preference file.
+     * @return The generation of the file, or
+     *         {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION} if the
+     *         file has not been exposed yet.
+     */
+    /* package */ long getGeneration(String prefFileName) {
+        PreferenceFileHolder holder = mPreferences.get(prefFileName);
+        if (holder == null) {
+            return RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        }
+        return holder.mGeneration.get();
+    }
+
+    /**
+     * Increments the generation of the specified preference file.
+     *
+     * @param prefFileName The name of the preference file.
+     * @return The new generation of the file, or
+     *         {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION} if the
+     *         file does not exist.
+     */
+    private long bumpGeneration(String prefFileName) {
+        PreferenceFileHolder holder = mPreferences.get(prefFileName);
+        if (holder == null) {
+            return RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        }
+        return holder.mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Registers an observer in the current process that will be notified
+     * directly (i.e. without going through the {@link ContentResolver})
+     * when a preference in the specified file changes.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param observer The observer to register.
+     */
+    /* package */ void addLocalObserver(String prefFileName, RemotePreferenceTransport.Observer observer) {
+        // Make sure we're listening for changes to the file, even
+        // if it is loaded lazily and nobody has accessed it yet
+        PreferenceFileHolder holder = findPreferenceFile(prefFileName);
+        if (holder != null) {
+            holder.get();
+        }
+
+        List<RemotePreferenceTransport.Observer> observers = mLocalObservers.get(prefFileName);
+        if (observers == null) {
+            synchronized (mLocalObservers) {
+                observers = mLocalObservers.get(prefFileName);
+                if (observers == null) {
+                    observers = new CopyOnWriteArrayList<RemotePreferenceTransport.Observer>();
+                    mLocalObservers.put(prefFileName, observers);
+                }
+            }
+        }
+        observers.add(observer);
+    }
+
+    /**
+     * Unregisters an observer previously registered with
+     * {@link #addLocalObserver(String, RemotePreferenceTransport.Observer)}.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param observer The observer to unregister.
+     */
+    /* package */ void removeLocalObserver(String prefFileName, RemotePreferenceTransport.Observer observer) {
+        List<RemotePreferenceTransport.Observer> observers = mLocalObservers.get(prefFileName);
+        if (observers != null) {
+            observers.remove(observer);
+        }
+    }
+
+    /**
+     * Listener for preference value changes in the local application.
+     * Re-raises the event through the
+     * {@link ContentResolver#notifyChange(Uri, ContentObserver)} API
+     * to any registered {@link ContentObserver} objects, as well as to
+     * any observers registered by clients in the same process. Note that before
+     * API 30, this is NOT called for {@link SharedPreferences.Editor#clear()};
+     * see {@link #finishCommit(PreferenceFileHolder, boolean)}.
+     *
+     * @param prefs The preference file that changed.
+     * @param prefKey The preference key that changed.
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String prefKey) {
+        RemotePreferenceFile prefFile = mPreferenceFiles.get(prefs);
+        if (prefFile == null) {
+            // The file was unregistered while this change was in flight
+            return;
+        }
+        String prefFileName = prefFile.getFileName();
+
+        // Changes made through the provider are sent once the commit
+        // is complete, so that the generation is only bumped once
+        if (deferChange(prefFileName, prefKey)) {
+            return;
+        }
+
+        long generation = bumpGeneration(prefFileName);
+        notifyPreferenceChanged(prefFile, prefs, prefKey, generation);
+    }
+
+    /**
+     * Sends a change notification for the specified preference to
+     * {@link ContentObserver} objects and to local observers.
+     *
+     * @param prefFile The preference file that changed.
+     * @param prefs The {@link SharedPreferences} instance for the file.
+     * @param prefKey The preference key that changed, or {@code null}
+     *                if the file was cleared.
+     * @param generation The generation of the file after the change.
+     */
+    private void notifyPreferenceChanged(RemotePreferenceFile prefFile, SharedPreferences prefs, String prefKey, long generation) {
+        String prefFileName = prefFile.getFileName();
+        List<RemotePreferenceTransport.Observer> observers = mLocalObservers.get(prefFileName);
+        boolean hasLocalObservers = observers != null && !observers.isEmpty();
+        boolean includeValue = isSingleKey(prefKey) && includeValueInChangeNotification(prefFileName, prefKey);
+
+        // Only look up the value if someone is going to receive it
+        Object prefValue = RemotePreferenceTransport.UNKNOWN_VALUE;
+        if (prefKey == null) {
+            prefValue = null;
+        } else if (hasLocalObservers || includeValue) {
+            prefValue = getPreference(prefs, prefKey);
+            if (prefValue instanceof Set<?>) {
+                prefValue = Collections.unmodifiableSet(new HashSet<String>(RemoteUtils.castStringSet(prefValue)));
+            }
+        }
+
+        Uri uri = getPreferenceUri(prefFileName, prefKey);
+        if (includeValue) {
+            uri = appendValueToUri(uri, prefValue);
+        }
+        if (generation != RemotePreferenceSnapshot.UNKNOWN_GENERATION) {
+            uri = uri.buildUpon().appendQueryParameter(RemoteContract.PARAM_GENERATION, String.valueOf(generation)).build();
+        }
+        ContentResolver resolver = getPreferenceContext(prefFile).getContentResolver();
+        resolver.notifyChange(uri, null);
+
+        if (hasLocalObservers) {
+            for (RemotePreferenceTransport.Observer observer : observers) {
+                observer.onChange(prefFileName, prefKey, prefValue, generation);
+            }
+        }
+    }
+
+    /**
+     * Attaches the new value of a preference to its change notification
+     * URI. Values that are too long are left out, since the URI is
+     * copied to every observer.
+     *
+     * @param uri The notification URI.
+     * @param prefValue The new value of the preference, or {@code null}
+     *                  if it was removed.
+     * @return The URI with the value attached.
+     */
+    private static Uri appendValueToUri(Uri uri, Object prefValue) {
+        String value = RemoteUtils.serializeString(prefValue);
+        if (value != null && value.length() > MAX_NOTIFICATION_VALUE_LENGTH) {
+            return uri;
+        }
+        Uri.Builder builder = uri.buildUpon();
+        builder.appendQueryParameter(RemoteContract.PARAM_TYPE, String.valueOf(RemoteUtils.getPreferenceType(prefValue)));
+        if (value != null) {
+            builder.appendQueryParameter(RemoteContract.PARAM_VALUE, value);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Writes the value of the specified preference(s). If {@code prefKey}
+     * is empty, {@code values} must contain {@link RemoteContract#TYPE_NULL}
+     * for the type, representing the {@link SharedPreferences.Editor#clear()}
+     * operation.
+     *
+     * @param editor The preference file to modify.
+     * @param prefKey The preference key to modify, or {@code null} for the entire file.
+     * @param values The values to write.
+     */
+    private void putPreference(SharedPreferences.Editor editor, String prefKey, ContentValues values) {
+        // Get the new value type. Note that we manually check
+        // for null, then unbox the Integer so we don't cause a NPE.
+        Integer type = values.getAsInteger(RemoteContract.COLUMN_TYPE);
+        if (type == null) {
+            throw new IllegalArgumentException("Invalid or no preference type specified");
+        }
+
+        // deserializeInput makes sure the actual object type matches
+        // the expected type, so we must perform this step before actually
+        // performing any actions.
+        Object rawValue = values.get(RemoteContract.COLUMN_VALUE);
+        Object value = RemoteUtils.deserializeInput(rawValue, type);
+
+        // If we are writing to the "directory" and the type is null,
+        // then we should clear the preferences.
+        if (!isSingleKey(prefKey)) {
+            if (type == RemoteContract.TYPE_NULL) {
+                editor.clear();
+                return;
+            } else {
+                throw new IllegalArgumentException("Attempting to insert preference with null or empty key");
+            }
+        }
+
+        switch (type) {
+        case RemoteContract.TYPE_NULL:
+            editor.remove(prefKey);
+            break;
+        case RemoteContract.TYPE_STRING:
+            editor.putString(prefKey, (String)value);
+            break;
+        case RemoteContract.TYPE_STRING_SET:
+            if (Build.VERSION.SDK_INT >= 11) {
+                editor.putStringSet(prefKey, RemoteUtils.castStringSet(value));
+            } else {
+                throw new IllegalArgumentException("String set preferences not supported on API < 11");
+            }
+            break;
+        case RemoteContract.TYPE_INT:
+            editor.putInt(prefKey, (Integer)value);
+            break;
+        case RemoteContract.TYPE_LONG:
+            editor.putLong(prefKey, (Long)value);
+            break;
+        case RemoteContract.TYPE_FLOAT:
+            editor.putFloat(prefKey, (Float)value);
+            break;
+        case RemoteContract.TYPE_BOOLEAN:
+            editor.putBoolean(prefKey, (Boolean)value);
+            break;
+        default:
+            throw new IllegalArgumentException("Cannot set preference with type " + type);
+        }
+    }
+
+    /**
+     * Used to project a preference value to the schema requested by the caller.
+     *
+     * @param projection The projection requested by the caller.
+     * @param key The preference key.
+     * @param value The preference value.
+     * @return A row representing the preference using the given schema.
+     */
+    private Object[] buildRow(String[] projection, String key, Object value) {
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < row.length; ++i) {
+            String col = projection[i];
+            if (RemoteContract.COLUMN_KEY.equals(col)) {
+                row[i] = key;
+            } else if (RemoteContract.COLUMN_TYPE.equals(col)) {
+                row[i] = RemoteUtils.getPreferenceType(value);
+            } else if (RemoteContract.COLUMN_VALUE.equals(col)) {
+                row[i] = RemoteUtils.serializeOutput(value);
+            } else {
+                throw new IllegalArgumentException("Invalid column name: " + col);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Returns whether the specified key represents a single preference key
+     * (as opposed to the entire preference file).
+     *
+     * @param prefKey The preference key to check.
+     * @return Whether the key refers to a single preference.
+     */
+    private static boolean isSingleKey(String prefKey) {
+        return prefKey != null;
+    }
+
+    /**
+     * Returns whether a batch of writes clears the preference file.
+     *
+     * @param prefKeys The keys parsed from the batch.
+     * @return Whether any of the writes refers to the entire file.
+     */
+    private static boolean isClear(String[] prefKeys) {
+        for (String prefKey : prefKeys) {
+            if (!isSingleKey(prefKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the page size of a range query.
+     *
+     * @param limit The page size sent by the caller, or {@code null}.
+     * @return The page size, or 0 if none was specified.
+     */
+    private static int parseLimit(String limit) {
+        if (limit == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+    }
+
+    /**
+     * Returns an element of the selection arguments, or {@code null}
+     * if there are not enough arguments.
+     *
+     * @param selectionArgs The selection arguments.
+     * @param index The index of the argument.
+     * @return The selection argument.
+     */
+    private static String getSelectionArg(String[] selectionArgs, int index) {
+        if (selectionArgs == null || index >= selectionArgs.length) {
+            return null;
+        }
+        return selectionArgs[index];
+    }
+
+    /**
+     * Parses the preference key from {@code values}. If the key is not
+     * specified in the values, {@code null} is returned.
+     *
+     * @param values The query values to parse.
+     * @return The parsed key, or {@code null} if no key was found.
+     */
+    private static String getKeyFromValues(ContentValues values) {
+        String key = values.getAsString(RemoteContract.COLUMN_KEY);
+        if (key != null && key.length() == 0) {
+            key = null;
+        }
+        return key;
+    }
+
+    /**
+     * Parses the preference keys from an array of values, as described
+     * in {@link #getKeyFromValues(ContentValues)}.
+     *
+     * @param values The query values to parse.
+     * @return The parsed keys, in the same order as {@code values}.
+     */
+    private static String[] getKeysFromValues(ContentValues[] values) {
+        String[] keys = new String[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            keys[i] = getKeyFromValues(values[i]);
+        }
+        return keys;
+    }
+
+    /**
+     * Parses the preference key from the specified sources. Since there
+     * are two ways to specify the key (from the URI or from the query values),
+     * the only allowed combinations are:
+     *
+     * uri.key == values.key
+     * uri.key != null and values.key == null = URI key is used
+     * uri.key == null and values.key != null = values key is used
+     * uri.key == null and values.key == null = no key
+     *
+     * If none of these conditions are met, an exception is thrown.
+     *
+     * @param prefPath Parsed URI key from {@code mUriParser.parse(uri)}.
+     * @param values Query values provided by the caller.
+     * @return The parsed key, or {@code null} if the key refers to a preference file.
+     */
+    private static String getKeyFromUriOrValues(RemotePreferencePath prefPath, ContentValues values) {
+        String uriKey = prefPath.key;
         String valuesKey = getKeyFromValues(values);
         if (isSingleKey(uriKey) && isSingleKey(valuesKey)) {
             // If a key is specified in both the URI and
@@ -509,6 +1951,54 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
         }
     }
 
+    /**
+     * Parses the values to write from the {@code call()} arguments.
+     *
+     * @param extras The method arguments.
+     * @return The values to write.
+     */
+    private static ContentValues[] getValuesFromExtras(Bundle extras) {
+        return getValuesFromParcels(extras.getParcelableArray(RemoteContract.EXTRA_VALUES));
+    }
+
+    /**
+     * Converts the values sent by a client back into {@link ContentValues}.
+     *
+     * @param parcels The values sent by the client.
+     * @return The values to write.
+     */
+    private static ContentValues[] getValuesFromParcels(Parcelable[] parcels) {
+        if (parcels == null) {
+            throw new IllegalArgumentException("No values specified");
+        }
+        ContentValues[] values = new ContentValues[parcels.length];
+        for (int i = 0; i < parcels.length; ++i) {
+            if (!(parcels[i] instanceof ContentValues)) {
+                throw new IllegalArgumentException("Invalid values specified");
+            }
+            values[i] = (ContentValues)parcels[i];
+        }
+        return values;
+    }
+
+    /**
+     * Checks that the caller holds the read or write permission declared
+     * for this provider in the manifest, if any. This is only needed for
+     * entry points that the system does not check for us, such as
+     * {@link #call(String, String, Bundle)} and {@link RemotePreferenceService}.
+     *
+     * @param write Whether the operation will modify preferences.
+     */
+    /* package */ void enforceCallingPermission(boolean write) {
+        String permission = write ? getWritePermission() : getReadPermission();
+        if (permission == null) {
+            return;
+        }
+        if (getContext().checkCallingOrSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("Caller does not hold permission: " + permission);
+        }
+    }
+
     /**
      * Checks that the caller has permissions to access the specified preference.
      * Throws an exception if permission is denied.
@@ -517,82 +2007,176 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
      * @param write Whether the operation will modify the preference.
      */
     private void checkAccessOrThrow(RemotePreferencePath prefPath, boolean write) {
+        checkAccessOrThrow(prefPath.fileName, new String[] {prefPath.key}, write);
+    }
+
+    /**
+     * Checks that the caller has permissions to access all of the specified
+     * preferences, using the access decision cache if it is enabled.
+     * Throws an exception if permission is denied.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The preference keys to be accessed. A {@code null}
+     *                 or empty key refers to the whole file.
+     * @param write Whether the operation will modify the preferences.
+     */
+    private void checkAccessOrThrow(String prefFileName, String[] prefKeys, boolean write) {
         // For backwards compatibility, checkAccess takes an empty string when
         // referring to the whole file.
-        String prefKey = prefPath.key;
-        if (!isSingleKey(prefKey)) {
-            prefKey = "";
+        String[] checkKeys = new String[prefKeys.length];
+        for (int i = 0; i < prefKeys.length; ++i) {
+            checkKeys[i] = isSingleKey(prefKeys[i]) ? prefKeys[i] : "";
+        }
+
+        // Local callers share our UID, but not our calling package
+        RemotePreferenceAccessCache accessCache = mAccessCache;
+        if (accessCache == null || Binder.getCallingPid() == Process.myPid()) {
+            if (!checkAccess(prefFileName, checkKeys, write)) {
+                throw accessDenied(prefFileName, checkKeys);
+            }
+            return;
+        }
+
+        int uid = Binder.getCallingUid();
+        ArrayList<String> uncheckedKeys = new ArrayList<String>();
+        for (String prefKey : checkKeys) {
+            Boolean allowed = accessCache.get(uid, prefFileName, prefKey, write);
+            if (allowed == null) {
+                uncheckedKeys.add(prefKey);
+            } else if (!allowed) {
+                throw accessDenied(prefFileName, checkKeys);
+            }
+        }
+        if (uncheckedKeys.isEmpty()) {
+            return;
+        }
+
+        // If a batch is denied, we don't know which key was the
+        // culprit, so only single-key denials are remembered
+        boolean allowed = checkAccess(prefFileName, uncheckedKeys.toArray(new String[uncheckedKeys.size()]), write);
+        if (allowed || uncheckedKeys.size() == 1) {
+            for (String prefKey : uncheckedKeys) {
+                accessCache.put(uid, prefFileName, prefKey, write, allowed);
+            }
         }
+        if (!allowed) {
+            throw accessDenied(prefFileName, checkKeys);
+        }
+    }
 
-        if (!checkAccess(prefPath.fileName, prefKey, write)) {
-            throw new SecurityException("Insufficient permissions to access: " + prefPath);
+    /**
+     * Creates the exception thrown when access to preferences is denied.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The preference keys that were checked.
+     * @return The exception to throw.
+     */
+    private static SecurityException accessDenied(String prefFileName, String[] prefKeys) {
+        RemotePreferencePath prefPath = new RemotePreferencePath(prefFileName, null);
+        if (prefKeys.length == 1 && isSingleKey(prefKeys[0])) {
+            prefPath = prefPath.withKey(prefKeys[0]);
         }
+        return new SecurityException("Insufficient permissions to access: " + prefPath);
     }
 
     /**
-     * Returns the {@link SharedPreferences} instance with the specified name.
-     * This is essentially equivalent to {@link Context#getSharedPreferences(String, int)},
-     * except that it will used the internally cached version, and throws an
-     * exception if the provider was not configured to access that preference file.
+     * Returns the preference file with the specified name. Call
+     * {@link PreferenceFileHolder#get()} to get the {@link SharedPreferences}
+     * instance, which is essentially equivalent to
+     * {@link Context#getSharedPreferences(String, int)}, except that it will
+     * use the internally cached version. Throws an exception if the provider
+     * was not configured to access that preference file.
      *
      * @param prefFileName The name of the preference file to access.
-     * @return The {@link SharedPreferences} instance with the specified file name.
+     * @return The preference file with the specified file name.
      */
-    private SharedPreferences getSharedPreferencesByName(String prefFileName) {
-        SharedPreferences prefs = mPreferences.get(prefFileName);
-        if (prefs == null) {
+    private PreferenceFileHolder getPreferenceFileByName(String prefFileName) {
+        PreferenceFileHolder holder = findPreferenceFile(prefFileName);
+        if (holder == null) {
             throw new IllegalArgumentException("Unknown preference file name: " + prefFileName);
         }
-        return prefs;
+        return holder;
     }
 
     /**
-     * Returns the file name for a {@link SharedPreferences} instance.
-     * Throws an exception if the provider was not configured to access
-     * the specified preferences.
+     * Returns the holder for the specified preference file, consulting
+     * the registered resolvers if the file is not exposed yet. Files
+     * that are already exposed are looked up without locking. Files
+     * returned by a resolver stay exposed, so callers must check access
+     * before calling this.
      *
-     * @param prefs The shared preferences object.
-     * @return The name of the preference file.
+     * @param prefFileName The name of the preference file.
+     * @return The holder for the file, or {@code null} if the file is
+     *         not exposed by the provider.
      */
-    private String getSharedPreferencesFileName(SharedPreferences prefs) {
-        for (Map.Entry<String, SharedPreferences> entry : mPreferences.entrySet()) {
-            if (entry.getValue() == prefs) {
-                return entry.getKey();
-            }
+    private PreferenceFileHolder findPreferenceFile(String prefFileName) {
+        PreferenceFileHolder holder = mPreferences.get(prefFileName);
+        if (holder != null) {
+            return holder;
+        }
+
+        RemotePreferenceFile prefFile = resolvePreferenceFile(prefFileName);
+        if (prefFile == null) {
+            return null;
         }
-        throw new IllegalArgumentException("Unknown preference file");
+
+        // Another thread may have resolved the same file in the
+        // meantime, in which case we must use its holder instead
+        holder = new PreferenceFileHolder(prefFile);
+        PreferenceFileHolder existing = mPreferences.putIfAbsent(prefFileName, holder);
+        return existing != null ? existing : holder;
     }
 
     /**
-     * Get the corresponding {@link RemotePreferenceFile} object for a
-     * {@link SharedPreferences} instance. Throws an exception if the
-     * provider was not configured to access the specified preferences.
+     * Asks the registered resolvers whether the specified preference
+     * file should be exposed, without exposing it.
      *
-     * @param prefs The shared preferences object.
-     * @return The corresponding {@link RemotePreferenceFile} object.
+     * @param prefFileName The name of the preference file.
+     * @return The file returned by the first resolver that accepted
+     *         the name, or {@code null} if none did.
      */
-    private RemotePreferenceFile getSharedPreferencesFile(SharedPreferences prefs) {
-        String prefFileName = getSharedPreferencesFileName(prefs);
-        for (RemotePreferenceFile file : mPrefFiles) {
-            if (file.getFileName().equals(prefFileName)) {
-                return file;
+    private RemotePreferenceFile resolvePreferenceFile(String prefFileName) {
+        for (RemotePreferenceFileResolver resolver : mFileResolvers) {
+            RemotePreferenceFile prefFile = resolver.resolveFile(prefFileName);
+            if (prefFile == null) {
+                continue;
             }
+            if (!prefFileName.equals(prefFile.getFileName())) {
+                throw new IllegalArgumentException("Resolver returned wrong preference file: " + prefFile.getFileName());
+            }
+            return prefFile;
         }
-        throw new IllegalArgumentException("Unknown preference file");
+        return null;
     }
 
     /**
-     * Returns the {@link SharedPreferences} instance with the specified name,
-     * checking that the caller has permissions to access the specified key within
-     * that file. If not, an exception will be thrown.
+     * Returns the preference file with the specified name, checking that
+     * the caller has permissions to access the specified key within that
+     * file. If not, an exception will be thrown.
      *
      * @param prefPath The preference file and key to be accessed.
      * @param write Whether the operation will modify the preference.
-     * @return The {@link SharedPreferences} instance with the specified file name.
+     * @return The preference file with the specified file name.
      */
-    private SharedPreferences getSharedPreferencesOrThrow(RemotePreferencePath prefPath, boolean write) {
+    private PreferenceFileHolder getPreferenceFileOrThrow(RemotePreferencePath prefPath, boolean write) {
         checkAccessOrThrow(prefPath, write);
-        return getSharedPreferencesByName(prefPath.fileName);
+        return getPreferenceFileByName(prefPath.fileName);
+    }
+
+    /**
+     * Returns the preference file with the specified name, checking that
+     * the caller has permissions to access all of the specified keys within
+     * that file. If not, an exception will be thrown.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The preference keys to be accessed, or {@code null}
+     *                 for the entire file.
+     * @param write Whether the operation will modify the preferences.
+     * @return The preference file with the specified file name.
+     */
+    private PreferenceFileHolder getPreferenceFileOrThrow(String prefFileName, String[] prefKeys, boolean write) {
+        checkAccessOrThrow(prefFileName, (prefKeys != null) ? prefKeys : new String[] {null}, write);
+        return getPreferenceFileByName(prefFileName);
     }
 
     /**
@@ -610,4 +2194,268 @@ public abstract class RemotePreferenceProvider extends ContentProvider implement
         }
         return builder.build();
     }
+
+    /**
+     * Starts holding back change notifications for the specified file,
+     * until {@link #flushDeferredChanges(String[])} is called.
+     *
+     * @param prefFileName The name of the preference file.
+     */
+    private void deferChanges(String prefFileName) {
+        synchronized (mDeferredChanges) {
+            DeferredChanges deferred = mDeferredChanges.get(prefFileName);
+            if (deferred == null) {
+                deferred = new DeferredChanges();
+                mDeferredChanges.put(prefFileName, deferred);
+            }
+            deferred.mCommits++;
+        }
+    }
+
+    /**
+     * Records a change to a file whose notifications are being held back.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKey The preference key that changed, or {@code null}
+     *                if the file was cleared.
+     * @return {@code true} if the change was recorded, {@code false} if
+     *         notifications for the file are not being held back.
+     */
+    private boolean deferChange(String prefFileName, String prefKey) {
+        synchronized (mDeferredChanges) {
+            DeferredChanges deferred = mDeferredChanges.get(prefFileName);
+            if (deferred == null) {
+                return false;
+            }
+            deferred.mKeys.add(prefKey);
+            return true;
+        }
+    }
+
+    /**
+     * Sends the change notifications held back for the specified files,
+     * with each key notified once. {@link SharedPreferences} delivers its
+     * own change callbacks on the main thread, so this is posted there as
+     * well, to run after all of the callbacks caused by the commit.
+     *
+     * @param prefFileNames The names of the preference files.
+     */
+    private void flushDeferredChanges(final String[] prefFileNames) {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                for (String prefFileName : prefFileNames) {
+                    dispatchDeferredChanges(prefFileName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Discards the held back change notifications for some keys of a
+     * file. Like {@link #flushDeferredChanges(String[])}, this is posted
+     * to the main thread, so that the callbacks already on their way
+     * are discarded as well, but not those of later commits.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The keys whose notifications should be discarded.
+     */
+    private void dropDeferredChanges(final String prefFileName, final Set<String> prefKeys) {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mDeferredChanges) {
+                    mDeferredChanges.get(prefFileName).mKeys.removeAll(prefKeys);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the specified task on the main thread, immediately if we
+     * are already on it.
+     *
+     * @param task The task to run.
+     */
+    private void runOnMainThread(Runnable task) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            task.run();
+        } else {
+            mMainHandler.post(task);
+        }
+    }
+
+    /**
+     * Sends the change notifications held back for a single file, unless
+     * another commit involving the file is still in progress.
+     *
+     * @param prefFileName The name of the preference file.
+     */
+    private void dispatchDeferredChanges(String prefFileName) {
+        Set<String> prefKeys;
+        long generation;
+        synchronized (mDeferredChanges) {
+            DeferredChanges deferred = mDeferredChanges.get(prefFileName);
+            if (--deferred.mCommits > 0) {
+                return;
+            }
+            mDeferredChanges.remove(prefFileName);
+            prefKeys = deferred.mKeys;
+            generation = deferred.mGeneration;
+        }
+
+        PreferenceFileHolder holder = mPreferences.get(prefFileName);
+        SharedPreferences prefs = holder != null ? holder.mPrefs : null;
+        if (prefKeys.isEmpty() || prefs == null) {
+            return;
+        }
+
+        // Changes made outside of the provider while notifications
+        // were held back have not been counted by any commit
+        if (generation == RemotePreferenceSnapshot.UNKNOWN_GENERATION) {
+            generation = bumpGeneration(prefFileName);
+        }
+
+        // Send the clear first, so that it does not wipe out the
+        // values of keys that were written after it
+        if (prefKeys.remove(null)) {
+            notifyPreferenceChanged(holder.mFile, prefs, null, generation);
+        }
+        for (String prefKey : prefKeys) {
+            notifyPreferenceChanged(holder.mFile, prefs, prefKey, generation);
+        }
+    }
+
+    /**
+     * Holds a preference file that may not have been opened yet, along
+     * with its generation and transaction lock. The file is opened at most
+     * once, by the first thread to call {@link #get()}; afterwards, no
+     * locking is required to get it.
+     */
+    private class PreferenceFileHolder {
+        private final RemotePreferenceFile mFile;
+        private final AtomicLong mGeneration;
+        private final ReadWriteLock mLock;
+        private volatile SharedPreferences mPrefs;
+        private boolean mClosed;
+
+        private PreferenceFileHolder(RemotePreferenceFile file) {
+            mFile = file;
+
+            // Generations must differ between provider instances (and
+            // registrations of the same file), since clients may hold on
+            // to them across restarts of our process. Leave plenty of room
+            // for increments before colliding with a later instance.
+            mGeneration = new AtomicLong(System.currentTimeMillis() << 20);
+
+            // Held for writing while the file is part of a multi-file
+            // transaction, so that readers see all of it or none of it
+            mLock = new ReentrantReadWriteLock();
+        }
+
+        /**
+         * Returns the {@link SharedPreferences} instance for the file,
+         * opening it if necessary. The change listener is registered
+         * before the instance is returned.
+         *
+         * @return The {@link SharedPreferences} instance for the file.
+         */
+        private SharedPreferences get() {
+            SharedPreferences prefs = mPrefs;
+            if (prefs == null) {
+                synchronized (this) {
+                    if (mClosed) {
+                        throw new IllegalArgumentException("Preference file was unregistered: " + mFile.getFileName());
+                    }
+                    prefs = mPrefs;
+                    if (prefs == null) {
+                        prefs = openSharedPreferences(mFile);
+                        mPrefs = prefs;
+                    }
+                }
+            }
+            return prefs;
+        }
+
+        /**
+         * Stops listening for changes to the file. Afterwards, the file
+         * can no longer be opened through this holder.
+         */
+        private synchronized void close() {
+            mClosed = true;
+            SharedPreferences prefs = mPrefs;
+            if (prefs != null) {
+                prefs.unregisterOnSharedPreferenceChangeListener(RemotePreferenceProvider.this);
+                mPreferenceFiles.remove(prefs);
+            }
+        }
+    }
+
+    /**
+     * Change notifications held back while a file is being committed.
+     * A file may be part of several commits at once, in which case the
+     * notifications are sent after the last one, with the newest
+     * generation of those commits.
+     */
+    private static class DeferredChanges {
+        private final LinkedHashSet<String> mKeys = new LinkedHashSet<String>();
+        private int mCommits;
+        private long mGeneration = RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+    }
+
+    /**
+     * Sorted copy of a preference file, shared by the pages of a scan.
+     * The copy is never modified after it is created.
+     */
+    private static class SortedSnapshot {
+        private final PreferenceFileHolder mHolder;
+        private final TreeMap<String, Object> mValues;
+        private final long mGeneration;
+
+        private SortedSnapshot(PreferenceFileHolder holder, TreeMap<String, Object> values, long generation) {
+            mHolder = holder;
+            mValues = values;
+            mGeneration = generation;
+        }
+    }
+
+    /**
+     * Values staged by {@link RemoteContract#METHOD_STAGE} that have not
+     * been committed yet. Only the caller that started the transaction
+     * can add to or commit it.
+     */
+    private static class StagedWrite {
+        private final String mPrefFileName;
+        private final int mCallingUid;
+        private final ArrayList<ContentValues> mValues;
+        private long mSize;
+        private long mLastUpdated;
+
+        private StagedWrite(String prefFileName, int callingUid, long now) {
+            mPrefFileName = prefFileName;
+            mCallingUid = callingUid;
+            mValues = new ArrayList<ContentValues>();
+            mLastUpdated = now;
+        }
+    }
+
+    /**
+     * Cursor that carries additional information about the query result
+     * (e.g. the generation of the preference file) in its extras.
+     * {@link MatrixCursor#setExtras(Bundle)} is only available on API 23
+     * and above, so we override {@link #getExtras()} instead.
+     */
+    private static class PreferenceCursor extends MatrixCursor {
+        private final Bundle mExtras;
+
+        private PreferenceCursor(String[] columnNames, Bundle extras) {
+            super(columnNames);
+            mExtras = extras;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
 }
@@ -0,0 +1,226 @@
+package com.crossbowffs.remotepreferences;
+
+import android.app.Service;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * Optional bound service that exposes the preferences of a
+ * {@link RemotePreferenceProvider} through a persistent binder
+ * connection. Compared to going through the {@link android.content.ContentResolver},
+ * this avoids resolving the provider and setting up a cursor on every
+ * call, and delivers change events directly to each client instead of
+ * routing them through the system's observer registry.
+ * </p>
+ *
+ * <p>
+ * You must extend this class and declare a 0-argument constructor which
+ * calls the super constructor with the authority of your provider. The
+ * service must run in the same process as the provider, and must be
+ * declared in your {@code AndroidManifest.xml} file with
+ * {@code android:exported} set to true. Clients opt in by passing
+ * {@link RemotePreferenceOptions#TRANSPORT_SERVICE} and the service
+ * component name to {@link RemotePreferences}.
+ * </p>
+ *
+ * <p>
+ * All requests go through the same access checks as the provider,
+ * including {@link RemotePreferenceProvider#checkAccess(String, String, boolean)}.
+ * Note that {@link RemotePreferenceProvider#getCallingPackage()} is not
+ * available from within the service; use
+ * {@link android.os.Binder#getCallingUid()} instead.
+ * </p>
+ */
+public abstract class RemotePreferenceService extends Service {
+    private final String mAuthority;
+    private final RemoteCallbackList<IRemotePreferenceCallback> mCallbacks;
+    private final Set<String> mObservedFiles;
+    private final RemotePreferenceTransport.Observer mObserver;
+    private final IRemotePreferenceService.Stub mBinder;
+
+    /**
+     * Initializes the service with the authority of the provider whose
+     * preferences should be exposed.
+     *
+     * @param authority The authority of the provider.
+     */
+    public RemotePreferenceService(String authority) {
+        mAuthority = authority;
+        mCallbacks = new RemoteCallbackList<IRemotePreferenceCallback>();
+        mObservedFiles = new HashSet<String>();
+        mObserver = new RemotePreferenceTransport.Observer() {
+            @Override
+            public void onChange(String prefFileName, String prefKey, Object value, long generation) {
+                broadcastChange(prefFileName, prefKey, value);
+            }
+        };
+        mBinder = new ServiceBinder();
+    }
+
+    /**
+     * Returns the binder interface used by clients.
+     *
+     * @param intent Ignored.
+     * @return The binder interface.
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    /**
+     * Stops delivering change events to clients.
+     */
+    @Override
+    public void onDestroy() {
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(mAuthority);
+        synchronized (mObservedFiles) {
+            if (provider != null) {
+                for (String prefFileName : mObservedFiles) {
+                    provider.removeLocalObserver(prefFileName, mObserver);
+                }
+            }
+            mObservedFiles.clear();
+        }
+        mCallbacks.kill();
+        super.onDestroy();
+    }
+
+    /**
+     * Returns the provider that this service exposes. Throws an
+     * exception if the provider is not running in this process.
+     *
+     * @return The provider instance.
+     */
+    private RemotePreferenceProvider getProvider() {
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(mAuthority);
+        if (provider == null) {
+            // This is one of the few exception types that can be
+            // propagated to the caller through binder.
+            throw new IllegalStateException("Provider is not running in the service process: " + mAuthority);
+        }
+        return provider;
+    }
+
+    /**
+     * Notifies all clients observing the specified preference file. The
+     * new value is only sent if the provider allows it through
+     * {@link RemotePreferenceProvider#includeValueInChangeNotification(String, String)}.
+     *
+     * @param prefFileName The name of the preference file that changed.
+     * @param prefKey The preference key that changed.
+     * @param value The new value of the preference.
+     */
+    private void broadcastChange(String prefFileName, String prefKey, Object value) {
+        Bundle valueBundle = null;
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(mAuthority);
+        if (prefKey != null && value != RemotePreferenceTransport.UNKNOWN_VALUE &&
+            provider != null && provider.includeValueInChangeNotification(prefFileName, prefKey)) {
+            valueBundle = RemoteUtils.serializeBundle(Collections.singletonMap(prefKey, value));
+        }
+
+        synchronized (mCallbacks) {
+            int count = mCallbacks.beginBroadcast();
+            try {
+                for (int i = 0; i < count; ++i) {
+                    if (!prefFileName.equals(mCallbacks.getBroadcastCookie(i))) {
+                        continue;
+                    }
+                    try {
+                        IRemotePreferenceCallback callback = mCallbacks.getBroadcastItem(i);
+                        if (valueBundle != null) {
+                            callback.onPreferenceValueChanged(prefFileName, prefKey, valueBundle);
+                        } else {
+                            callback.onPreferenceChanged(prefFileName, prefKey);
+                        }
+                    } catch (RemoteException e) {
+                        // Client died, RemoteCallbackList will clean it up
+                    }
+                }
+            } finally {
+                mCallbacks.finishBroadcast();
+            }
+        }
+    }
+
+    /**
+     * Implementation of the binder interface. All methods simply
+     * forward to the provider.
+     */
+    private class ServiceBinder extends IRemotePreferenceService.Stub {
+        @Override
+        public Bundle get(String prefFileName, String prefKey) {
+            return getMany(prefFileName, new String[] {prefKey});
+        }
+
+        @Override
+        public Bundle getMany(String prefFileName, String[] prefKeys) {
+            if (prefKeys == null) {
+                throw new IllegalArgumentException("No keys specified");
+            }
+            RemotePreferenceProvider provider = getProvider();
+            provider.enforceCallingPermission(false);
+            Map<String, Object> prefMap = provider.readPreferences(prefFileName, prefKeys);
+            return RemoteUtils.serializeBundle(prefMap);
+        }
+
+        @Override
+        public Bundle getAll(String prefFileName) {
+            RemotePreferenceProvider provider = getProvider();
+            provider.enforceCallingPermission(false);
+            RemotePreferenceSnapshot snapshot = provider.readSnapshot(prefFileName, null);
+            Bundle result = new Bundle();
+            result.putBundle(RemoteContract.EXTRA_VALUES, RemoteUtils.serializeBundle(snapshot.getValues()));
+            result.putLong(RemoteContract.EXTRA_GENERATION, snapshot.getGeneration());
+            return result;
+        }
+
+        @Override
+        public boolean commit(String prefFileName, ContentValues[] values) {
+            if (values == null) {
+                throw new IllegalArgumentException("No values specified");
+            }
+            RemotePreferenceProvider provider = getProvider();
+            provider.enforceCallingPermission(true);
+            return provider.writePreferences(prefFileName, values) != RemotePreferenceTransport.WRITE_FAILED;
+        }
+
+        @Override
+        public void registerCallback(String prefFileName, IRemotePreferenceCallback callback) {
+            if (prefFileName == null || callback == null) {
+                throw new IllegalArgumentException("Preference file name and callback are required");
+            }
+
+            // Change events leak preference keys, so require the same
+            // permissions as reading the file (but not checkAccess, which
+            // is per-key, for consistency with ContentObserver).
+            RemotePreferenceProvider provider = getProvider();
+            provider.enforceCallingPermission(false);
+            provider.readPreferences(prefFileName, new String[0]);
+
+            synchronized (mObservedFiles) {
+                if (mObservedFiles.add(prefFileName)) {
+                    provider.addLocalObserver(prefFileName, mObserver);
+                }
+            }
+            mCallbacks.register(callback, prefFileName);
+        }
+
+        @Override
+        public void unregisterCallback(String prefFileName, IRemotePreferenceCallback callback) {
+            if (callback != null) {
+                mCallbacks.unregister(callback);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.crossbowffs.remotepreferences;
+
+import java.util.Map;
+
+/**
+ * The contents of a preference file (or of some of its keys), along with
+ * the generation of the file at the time it was read. All values were
+ * read from the same state of the file, and are at least as new as the
+ * generation. The generation changes whenever the file is modified, so
+ * two snapshots of the entire file with the same (known) generation
+ * have the same contents.
+ */
+public class RemotePreferenceSnapshot {
+    /**
+     * Generation used when the provider did not report one
+     * (e.g. because it is using an older version of this library).
+     */
+    public static final long UNKNOWN_GENERATION = 0;
+
+    private final Map<String, Object> mValues;
+    private final long mGeneration;
+
+    /* package */ RemotePreferenceSnapshot(Map<String, Object> values, long generation) {
+        mValues = values;
+        mGeneration = generation;
+    }
+
+    /**
+     * Returns the preferences that were read. Keys that did not exist
+     * are omitted.
+     *
+     * @return A map containing the preferences.
+     */
+    public Map<String, Object> getValues() {
+        return mValues;
+    }
+
+    /**
+     * Returns the generation of the preference file when it was read.
+     *
+     * @return The generation of the file, or {@link #UNKNOWN_GENERATION}
+     *         if the provider did not report it.
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+}
@@ -0,0 +1,168 @@
+package com.crossbowffs.remotepreferences;
+
+import android.content.ContentValues;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Abstracts the mechanism used by {@link RemotePreferences} to talk to
+ * a {@link RemotePreferenceProvider}. Values passed to and returned from
+ * a transport are always in their deserialized form (i.e. string sets
+ * are {@link java.util.Set}s and booleans are {@link Boolean}s), except
+ * for the {@link ContentValues} passed to {@link #writeBatch(String, ContentValues[])},
+ * which use the same format as {@link RemotePreferenceProvider#bulkInsert}.
+ *
+ * <p>
+ * If the provider cannot be reached, implementations should throw a
+ * {@link RemotePreferenceAccessException}. Any exception thrown by the
+ * provider itself should be propagated as-is; strict mode handling is
+ * done by the caller.
+ * </p>
+ */
+/* package */ interface RemotePreferenceTransport {
+    /**
+     * Passed to {@link Observer#onChange(String, String, Object, long)} if
+     * the change notification did not include the new value.
+     */
+    Object UNKNOWN_VALUE = new Object();
+
+    /**
+     * Returned by {@link #writeBatch(String, ContentValues[])} if the
+     * values could not be committed.
+     */
+    long WRITE_FAILED = -1;
+
+    /**
+     * Callback for preference change events. This may be invoked
+     * on an arbitrary thread.
+     */
+    interface Observer {
+        /**
+         * Called when a preference in the observed file changes.
+         *
+         * @param prefFileName The name of the preference file.
+         * @param prefKey The preference key that changed, or {@code null}
+         *                if the entire file was cleared.
+         * @param value The new value of the preference ({@code null} if it
+         *              was removed), or {@link #UNKNOWN_VALUE} if the
+         *              notification did not include it. String sets are
+         *              read-only.
+         * @param generation The generation of the file when the notification
+         *                   was sent, or {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION}
+         *                   if the notification did not include it.
+         */
+        void onChange(String prefFileName, String prefKey, Object value, long generation);
+    }
+
+    /**
+     * Reads a single preference.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKey The preference key to read.
+     * @return The value of the preference, or {@code null} if it does not exist.
+     */
+    Object readOne(String prefFileName, String prefKey);
+
+    /**
+     * Reads multiple preferences at once, from the same state of the
+     * file. Keys that do not exist are omitted from the returned map.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param prefKeys The preference keys to read.
+     * @return A snapshot containing the requested preferences, along
+     *         with the generation of the file if the provider reports it.
+     */
+    RemotePreferenceSnapshot readMany(String prefFileName, String[] prefKeys);
+
+    /**
+     * Reads all preferences in a file, along with the generation of
+     * the file if the provider reports it.
+     *
+     * @param prefFileName The name of the preference file.
+     * @return A snapshot containing all preferences.
+     */
+    RemotePreferenceSnapshot readAll(String prefFileName);
+
+    /**
+     * Reads preferences from several files at once, in as few round
+     * trips as possible. Each file is read from a single state, but
+     * different files may be read at slightly different times.
+     *
+     * @param prefFileNames The names of the preference files.
+     * @param prefKeys For each file, the preference keys to read, or
+     *                 {@code null} to read the entire file.
+     * @return A map from file names to snapshots of the files.
+     */
+    Map<String, RemotePreferenceSnapshot> readFiles(String[] prefFileNames, String[][] prefKeys);
+
+    /**
+     * Reads the preferences whose keys are within the specified range.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param fromKey The first key to read (inclusive), or {@code null}
+     *                to start at the first key in the file.
+     * @param toKey The last key to read (exclusive), or {@code null}
+     *              to read until the end of the file.
+     * @param limit The maximum number of preferences to read, or 0
+     *              to read the entire range.
+     * @return A map containing the first {@code limit} preferences
+     *         in the range, in key order.
+     */
+    SortedMap<String, Object> readRange(String prefFileName, String fromKey, String toKey, int limit);
+
+    /**
+     * Reads the keys and types of all preferences in a file, without
+     * transferring their values.
+     *
+     * @param prefFileName The name of the preference file.
+     * @return A map from preference keys to their types, as
+     *         {@link RemoteContract}{@code .TYPE_*} constants.
+     */
+    Map<String, Integer> readTypes(String prefFileName);
+
+    /**
+     * Writes multiple preferences at once. Either all or none of
+     * the values are written.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param values The values to write.
+     * @return The generation of the file after the values were committed,
+     *         {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION} if the
+     *         provider did not report it, or {@link #WRITE_FAILED} if the
+     *         values could not be committed.
+     */
+    long writeBatch(String prefFileName, ContentValues[] values);
+
+    /**
+     * Writes to several preference files in a single transaction. Either
+     * all or none of the values are written, and readers going through
+     * the provider see either all or none of them.
+     *
+     * @param prefFileNames The names of the preference files.
+     * @param values For each file, the values to write.
+     * @return For each file, the generation of the file after the values
+     *         were committed (or {@link RemotePreferenceSnapshot#UNKNOWN_GENERATION}
+     *         if the provider did not report it), or {@code null} if the
+     *         values could not be committed.
+     */
+    long[] writeFiles(String[] prefFileNames, ContentValues[][] values);
+
+    /**
+     * Registers an observer for changes to the specified preference file.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param observer The observer to register.
+     */
+    void addObserver(String prefFileName, Observer observer);
+
+    /**
+     * Unregisters an observer previously registered with
+     * {@link #addObserver(String, Observer)}. Does nothing if
+     * the observer is not registered.
+     *
+     * @param prefFileName The name of the preference file.
+     * @param observer The observer to unregister.
+     */
+    void removeObserver(String prefFileName, Observer observer);
+}
@@ -1,21 +1,38 @@
 package com.crossbowffs.remotepreferences;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.database.ContentObserver;
-import android.database.Cursor;
-import android.net.Uri;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Handler;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -27,16 +44,143 @@ import java.util.WeakHashMap;
  * <p>
  * If you are reading preferences from the same context as the
  * provider, you should not use this class; just access the
- * {@link SharedPreferences} API as you would normally.
+ * {@link SharedPreferences} API as you would normally. If the
+ * provider happens to live in the same process (but you do not
+ * have direct access to its preferences), this class will detect
+ * it and skip the IPC round trip entirely.
+ * </p>
+ *
+ * <p>
+ * The mechanism used to talk to the provider can be changed through
+ * {@link RemotePreferenceOptions#setTransport(int)}.
+ * </p>
+ *
+ * <p>
+ * Every getter also has an asynchronous variant (for example,
+ * {@link #getIntAsync(String, int)}) that performs the read on a
+ * background executor and returns a {@link Future}. Concurrent
+ * asynchronous reads of the same key share a single request to the
+ * provider. Use {@link #prefetch(String...)} to read many keys in
+ * one request, and {@link RemotePreferenceOptions#setCacheEnabled(boolean)}
+ * to keep the results around for subsequent reads.
+ * </p>
+ *
+ * <p>
+ * Each instance registers its own observers and keeps its own cache.
+ * If the same preference file is accessed from many places in your
+ * app, use {@link #get(Context, String, String, RemotePreferenceOptions)}
+ * to share a single instance between them.
  * </p>
  */
 public class RemotePreferences implements SharedPreferences {
-    private final Context mContext;
-    private final Handler mHandler;
-    private final Uri mBaseUri;
+    /**
+     * Interface definition for a callback to be invoked when a remote
+     * preference changes. Unlike {@link OnSharedPreferenceChangeListener},
+     * the new value is passed to the callback. If the provider includes
+     * the value in its change notification (see
+     * {@link RemotePreferenceProvider#includeValueInChangeNotification(String, String)}),
+     * no additional request is made to the provider; otherwise, the value
+     * is read before the callback is invoked, on the callback thread.
+     */
+    public interface OnRemotePreferenceChangeListener {
+        /**
+         * Called when a preference is changed, added, or removed.
+         *
+         * @param prefs The {@link RemotePreferences} that received the change.
+         * @param key The key of the preference that changed, or {@code null}
+         *            if all preferences were cleared.
+         * @param value The new value of the preference, or {@code null} if it
+         *              was removed. String sets must not be modified.
+         */
+        void onRemotePreferenceChanged(RemotePreferences prefs, String key, Object value);
+    }
+
+    /**
+     * Editor returned by {@link RemotePreferences#edit()}. In addition
+     * to the standard {@link Editor} methods, this supports writing many
+     * preferences at once. Batches that are too large for a single binder
+     * transaction are automatically split into chunks, which the provider
+     * commits atomically.
+     */
+    public interface RemoteEditor extends Editor {
+        /**
+         * Sets multiple preference values at once. Each value must be
+         * a {@link String}, {@link Set} of strings, {@link Integer},
+         * {@link Long}, {@link Float}, or {@link Boolean}; a {@code null}
+         * value removes the preference.
+         *
+         * @param values The preferences to set.
+         * @return This editor, for chaining calls.
+         */
+        RemoteEditor putAll(Map<String, ?> values);
+
+        @Override
+        RemoteEditor putString(String key, String value);
+
+        @Override
+        RemoteEditor putStringSet(String key, Set<String> values);
+
+        @Override
+        RemoteEditor putInt(String key, int value);
+
+        @Override
+        RemoteEditor putLong(String key, long value);
+
+        @Override
+        RemoteEditor putFloat(String key, float value);
+
+        @Override
+        RemoteEditor putBoolean(String key, boolean value);
+
+        @Override
+        RemoteEditor remove(String key);
+
+        @Override
+        RemoteEditor clear();
+    }
+
+    /**
+     * Requests are forwarded to the provider as usual. This is also the
+     * state reported when the circuit breaker is disabled.
+     */
+    public static final int CIRCUIT_CLOSED = 0;
+
+    /**
+     * The provider could not be reached repeatedly, so requests fail
+     * immediately without contacting it.
+     */
+    public static final int CIRCUIT_OPEN = 1;
+
+    /**
+     * Requests fail immediately while the provider is probed in the
+     * background to check whether it is reachable again.
+     */
+    public static final int CIRCUIT_HALF_OPEN = 2;
+
+    private static Executor sDefaultExecutor;
+    private static final HashMap<InstanceKey, RemotePreferences> sInstances = new HashMap<InstanceKey, RemotePreferences>();
+
+    private final Executor mCallbackExecutor;
+    private final boolean mCoalesceCallbacks;
+    private final String mAuthority;
+    private final String mPrefFileName;
     private final boolean mStrictMode;
-    private final WeakHashMap<OnSharedPreferenceChangeListener, PreferenceContentObserver> mListeners;
-    private final RemotePreferenceUriParser mUriParser;
+    private final RemotePreferenceTransport mTransport;
+    private final RemoteCircuitBreakerTransport mCircuitBreaker;
+    private final WeakHashMap<Object, PreferenceObserver> mListeners;
+    private final Executor mExecutor;
+    private final RemotePreferenceCache mCache;
+    private final RemotePreferenceDiskCache mDiskCache;
+    private final long mDiskCacheMaxAge;
+    private volatile boolean mDiskCacheLoadStarted;
+    private volatile long mDiskCacheGeneration;
+    private final RemotePreferenceKeyProfile mKeyProfile;
+    private volatile boolean mKeyProfileLoaded;
+    private String[] mHotKeys;
+    private final HashMap<String, Future<Object>> mPendingReads;
+    private final CacheObserver mCacheObserver;
+    private final Object mTrimMemoryCallbacks;
+    private boolean mShared;
 
     /**
      * Initializes a new remote preferences object, with strict
@@ -63,7 +207,20 @@ public class RemotePreferences implements SharedPreferences {
      * @param strictMode Whether strict mode is enabled.
      */
     public RemotePreferences(Context context, String authority, String prefFileName, boolean strictMode) {
-        this(context, new Handler(context.getMainLooper()), authority, prefFileName, strictMode);
+        this(context, authority, prefFileName, new RemotePreferenceOptions().setStrictMode(strictMode));
+    }
+
+    /**
+     * Initializes a new remote preferences object with the specified
+     * options. See {@link RemotePreferenceOptions} for more information.
+     *
+     * @param context Used to access the preference provider.
+     * @param authority The authority of the preference provider.
+     * @param prefFileName The name of the preference file to access.
+     * @param options Additional options for accessing the provider.
+     */
+    public RemotePreferences(Context context, String authority, String prefFileName, RemotePreferenceOptions options) {
+        this(context, createCallbackExecutor(context, options), authority, prefFileName, options);
     }
 
     /**
@@ -80,16 +237,213 @@ public class RemotePreferences implements SharedPreferences {
      * @param strictMode Whether strict mode is enabled.
      */
     /* package */ RemotePreferences(Context context, Handler handler, String authority, String prefFileName, boolean strictMode) {
+        this(context, handler, authority, prefFileName, new RemotePreferenceOptions().setStrictMode(strictMode));
+    }
+
+    /**
+     * Initializes a new remote preferences object with the specified
+     * options. See {@link RemotePreferenceOptions} for more information.
+     *
+     * @param context Used to access the preference provider.
+     * @param handler Used to receive preference change events.
+     * @param authority The authority of the preference provider.
+     * @param prefFileName The name of the preference file to access.
+     * @param options Additional options for accessing the provider.
+     */
+    /* package */ RemotePreferences(Context context, Handler handler, String authority, String prefFileName, RemotePreferenceOptions options) {
+        this(context, createHandlerExecutor(handler), authority, prefFileName, options);
+    }
+
+    /**
+     * Initializes a new remote preferences object with the specified
+     * options. See {@link RemotePreferenceOptions} for more information.
+     *
+     * @param context Used to access the preference provider.
+     * @param callbackExecutor Used to receive preference change events.
+     * @param authority The authority of the preference provider.
+     * @param prefFileName The name of the preference file to access.
+     * @param options Additional options for accessing the provider.
+     */
+    private RemotePreferences(Context context, Executor callbackExecutor, String authority, String prefFileName, RemotePreferenceOptions options) {
+        checkNotNull("context", context);
+        checkNotNull("callbackExecutor", callbackExecutor);
+        checkNotNull("authority", authority);
+        checkNotNull("prefFileName", prefFileName);
+        checkNotNull("options", options);
+        mCallbackExecutor = callbackExecutor;
+        mCoalesceCallbacks = options.isCoalesceCallbacks();
+        mAuthority = authority;
+        mPrefFileName = prefFileName;
+        mStrictMode = options.isStrictMode();
+        mListeners = new WeakHashMap<Object, PreferenceObserver>();
+        mExecutor = options.getExecutor() != null ? options.getExecutor() : getDefaultExecutor();
+        // Observers registered by the transport and cache may outlive
+        // this object, so they must not keep an activity alive
+        Context appContext = getApplicationContext(context);
+        RemotePreferenceTransport transport = createTransport(appContext, authority, options);
+        if (options.getCircuitBreakerThreshold() > 0) {
+            mCircuitBreaker = new RemoteCircuitBreakerTransport(transport, prefFileName, mExecutor,
+                options.getCircuitBreakerThreshold(), options.getCircuitBreakerBackoffMillis());
+            transport = mCircuitBreaker;
+        } else {
+            mCircuitBreaker = null;
+        }
+        mTransport = transport;
+        boolean persistent = options.isPersistentCacheEnabled();
+        boolean adaptive = options.isAdaptivePrefetchEnabled();
+        mCache = (options.isCacheEnabled() || persistent || adaptive) ? new RemotePreferenceCache(options.getCacheMaxSize()) : null;
+        mDiskCache = persistent ? new RemotePreferenceDiskCache(appContext, authority, prefFileName) : null;
+        mDiskCacheMaxAge = options.getPersistentCacheMaxAge();
+        mDiskCacheLoadStarted = false;
+        mDiskCacheGeneration = RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+        mKeyProfile = adaptive ? new RemotePreferenceKeyProfile(appContext, authority, prefFileName) : null;
+        mKeyProfileLoaded = false;
+        mHotKeys = null;
+        mPendingReads = new HashMap<String, Future<Object>>();
+        if (mCache != null) {
+            mCacheObserver = new CacheObserver(mCache, mTransport);
+            mTransport.addObserver(mPrefFileName, mCacheObserver);
+        } else {
+            mCacheObserver = null;
+        }
+        if (mCache != null && Build.VERSION.SDK_INT >= 14) {
+            mTrimMemoryCallbacks = registerTrimMemoryCallbacks(appContext, mCache);
+        } else {
+            mTrimMemoryCallbacks = null;
+        }
+        mShared = false;
+    }
+
+    /**
+     * Returns a shared remote preferences object for the specified
+     * preference file, with default options. See
+     * {@link #get(Context, String, String, RemotePreferenceOptions)}.
+     *
+     * @param context Used to access the preference provider.
+     * @param authority The authority of the preference provider.
+     * @param prefFileName The name of the preference file to access.
+     * @return The shared remote preferences object.
+     */
+    public static RemotePreferences get(Context context, String authority, String prefFileName) {
+        return get(context, authority, prefFileName, new RemotePreferenceOptions());
+    }
+
+    /**
+     * Returns a shared remote preferences object for the specified
+     * preference file and options. All calls with the same authority,
+     * file name, and equal options return the same object, so observers,
+     * caches, and in-flight requests are shared across the process.
+     * Shared objects are created using the application context, and
+     * live as long as the process.
+     *
+     * @param context Used to access the preference provider.
+     * @param authority The authority of the preference provider.
+     * @param prefFileName The name of the preference file to access.
+     * @param options Additional options for accessing the provider.
+     * @return The shared remote preferences object.
+     */
+    public static RemotePreferences get(Context context, String authority, String prefFileName, RemotePreferenceOptions options) {
         checkNotNull("context", context);
-        checkNotNull("handler", handler);
         checkNotNull("authority", authority);
         checkNotNull("prefFileName", prefFileName);
-        mContext = context;
-        mHandler = handler;
-        mBaseUri = Uri.parse("content://" + authority).buildUpon().appendPath(prefFileName).build();
-        mStrictMode = strictMode;
-        mListeners = new WeakHashMap<OnSharedPreferenceChangeListener, PreferenceContentObserver>();
-        mUriParser = new RemotePreferenceUriParser(authority);
+        checkNotNull("options", options);
+        InstanceKey key = new InstanceKey(authority, prefFileName, new RemotePreferenceOptions(options));
+        synchronized (sInstances) {
+            RemotePreferences prefs = sInstances.get(key);
+            if (prefs == null) {
+                prefs = new RemotePreferences(getApplicationContext(context), authority, prefFileName, key.mOptions);
+                prefs.mShared = true;
+                sInstances.put(key, prefs);
+            }
+            return prefs;
+        }
+    }
+
+    /**
+     * Reads several entire preference files from the provider at once.
+     * See {@link #readFiles(Context, String, Map)}.
+     *
+     * @param context Used to access the preference provider.
+     * @param authority The authority of the preference provider.
+     * @param prefFileNames The names of the preference files to read.
+     * @return A map from file names to snapshots of the files.
+     * @throws RemotePreferenceAccessException if the provider cannot be
+     *                                         accessed.
+     */
+    public static Map<String, RemotePreferenceSnapshot> readFiles(Context context, String authority, String... prefFileNames) {
+        checkNotNull("prefFileNames", prefFileNames);
+        LinkedHashMap<String, String[]> prefKeys = new LinkedHashMap<String, String[]>(prefFileNames.length);
+        for (String prefFileName : prefFileNames) {
+            prefKeys.put(prefFileName, null);
+        }
+        return readFiles(context, authority, prefKeys);
+    }
+
+    /**
+     * Reads preferences from several files at once. If the provider is
+     * running in the current process, it is called directly; otherwise,
+     * all files are read in a single IPC round trip (on API 11 and above),
+     * which is much faster than reading each file through a separate
+     * {@link RemotePreferences} object, e.g. at startup. Each file is
+     * read from a single, consistent state, but different files may be
+     * read at slightly different times. Access checks are still run for
+     * each file; if any file cannot be read, the whole call fails.
+     *
+     * @param context Used to access the preference provider.
+     * @param authority The authority of the preference provider.
+     * @param prefKeys A map from the names of the preference files to read
+     *                 to the keys to read from each file, or {@code null}
+     *                 to read the entire file.
+     * @return A map from file names to snapshots of the files. The
+     *         values are read-only.
+     * @throws RemotePreferenceAccessException if the provider cannot be
+     *                                         accessed.
+     */
+    public static Map<String, RemotePreferenceSnapshot> readFiles(Context context, String authority, Map<String, String[]> prefKeys) {
+        checkNotNull("context", context);
+        checkNotNull("authority", authority);
+        checkNotNull("prefKeys", prefKeys);
+        String[] prefFileNames = new String[prefKeys.size()];
+        String[][] prefFileKeys = new String[prefKeys.size()][];
+        int i = 0;
+        for (Map.Entry<String, String[]> entry : prefKeys.entrySet()) {
+            checkNotNull("prefFileName", entry.getKey());
+            String[] keys = entry.getValue();
+            if (keys != null) {
+                for (String key : keys) {
+                    checkKeyNotEmpty(key);
+                }
+                keys = keys.clone();
+            }
+            prefFileNames[i] = entry.getKey();
+            prefFileKeys[i] = keys;
+            i++;
+        }
+
+        // Unlike TRANSPORT_AUTO, prefer call() over the cursor protocol
+        // when available, since it can read all of the files at once
+        RemotePreferenceTransport fallback;
+        if (Build.VERSION.SDK_INT >= 11) {
+            fallback = new RemoteCallTransport(context, authority);
+        } else {
+            fallback = new RemoteCursorTransport(context, authority);
+        }
+        RemotePreferenceTransport transport = new RemoteLocalTransport(authority, fallback);
+
+        Map<String, RemotePreferenceSnapshot> snapshots;
+        try {
+            snapshots = transport.readFiles(prefFileNames, prefFileKeys);
+        } catch (RemotePreferenceAccessException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RemotePreferenceAccessException(e);
+        }
+
+        HashMap<String, RemotePreferenceSnapshot> result = new HashMap<String, RemotePreferenceSnapshot>(snapshots.size());
+        for (Map.Entry<String, RemotePreferenceSnapshot> entry : snapshots.entrySet()) {
+            result.put(entry.getKey(), makeReadOnly(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     @Override
@@ -113,22 +467,136 @@ public class RemotePreferences implements SharedPreferences {
 
     @Override
     public int getInt(String key, int defValue) {
-        return (Integer)querySingle(key, defValue, RemoteContract.TYPE_INT);
+        return (int)queryPrimitive(key, defValue, RemoteContract.TYPE_INT);
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        return (Long)querySingle(key, defValue, RemoteContract.TYPE_LONG);
+        return queryPrimitive(key, defValue, RemoteContract.TYPE_LONG);
     }
 
     @Override
     public float getFloat(String key, float defValue) {
-        return (Float)querySingle(key, defValue, RemoteContract.TYPE_FLOAT);
+        return Float.intBitsToFloat((int)queryPrimitive(key, Float.floatToRawIntBits(defValue), RemoteContract.TYPE_FLOAT));
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        return (Boolean)querySingle(key, defValue, RemoteContract.TYPE_BOOLEAN);
+        return queryPrimitive(key, defValue ? 1 : 0, RemoteContract.TYPE_BOOLEAN) != 0;
+    }
+
+    /**
+     * Returns the keys of all preferences in the file. Unlike
+     * {@code getAll().keySet()}, this does not transfer the values
+     * of the preferences. If strict mode is disabled and the provider
+     * cannot be accessed, an empty set is returned.
+     *
+     * @return A read-only set containing the preference keys.
+     */
+    public Set<String> keySet() {
+        return getTypes().keySet();
+    }
+
+    /**
+     * Returns the types of all preferences in the file, without
+     * transferring their values. Types are represented by the class
+     * of the values, i.e. {@code String.class}, {@code Set.class},
+     * {@code Integer.class}, {@code Long.class}, {@code Float.class},
+     * or {@code Boolean.class}. If strict mode is disabled and the
+     * provider cannot be accessed, an empty map is returned.
+     *
+     * @return A read-only map from preference keys to their types.
+     */
+    public Map<String, Class<?>> getTypes() {
+        Map<String, Integer> types = queryTypes();
+        HashMap<String, Class<?>> classes = new HashMap<String, Class<?>>(types.size());
+        for (Map.Entry<String, Integer> entry : types.entrySet()) {
+            classes.put(entry.getKey(), RemoteUtils.getPreferenceClass(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(classes);
+    }
+
+    /**
+     * Returns all preferences whose keys start with the specified
+     * prefix, in key order. The provider only sends the matching
+     * preferences, which makes this cheaper than filtering the result
+     * of {@link #getAll()} when keys are grouped by a common prefix
+     * (e.g. {@code "account.name"}, {@code "account.email"}). If strict
+     * mode is disabled and the provider cannot be accessed, an empty
+     * map is returned.
+     *
+     * @param prefix The key prefix. If empty, all preferences are returned.
+     * @return A read-only map containing the matching preferences.
+     */
+    public Map<String, ?> getAllWithPrefix(String prefix) {
+        checkNotNull("prefix", prefix);
+        return Collections.unmodifiableMap(queryRange(prefix, RemoteUtils.getPrefixEnd(prefix), 0));
+    }
+
+    /**
+     * Iterates over all preferences in key order, reading at most
+     * {@code pageSize} preferences from the provider at a time. Use this
+     * instead of {@link #getAll()} for very large files, to bound the
+     * amount of memory used by each request on both sides.
+     * <p>
+     * Pages are read lazily by {@link Iterator#hasNext()}, and each one
+     * resumes after the last key of the previous page. The iteration is
+     * not a snapshot: preferences changed while it is in progress may or
+     * may not be returned, but no key is ever returned twice. If strict
+     * mode is enabled, {@link RemotePreferenceAccessException} is thrown
+     * from the iterator when a page cannot be read; otherwise, the
+     * iteration simply ends.
+     *
+     * @param pageSize The maximum number of preferences to read per request.
+     * @return A read-only iterator over the preferences.
+     */
+    public Iterator<Map.Entry<String, ?>> scan(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        return new ScanIterator(pageSize);
+    }
+
+    /**
+     * Reads the specified preferences from a single, consistent state of
+     * the preference file, e.g. to read a group of related preferences
+     * without observing a write in progress. Only the specified keys are
+     * sent, so this is much cheaper than {@link #getAll()}. The snapshot
+     * also contains the generation of the file, which can be compared
+     * with that of a later snapshot to tell whether the file was modified
+     * in between. The values are always read from the provider, since
+     * cached values may have been read at different times. If strict mode
+     * is disabled and the provider cannot be accessed, an empty snapshot
+     * is returned.
+     *
+     * @param keys The preference keys to read.
+     * @return A snapshot containing the values of the specified
+     *         preferences that exist. The values are read-only.
+     */
+    public RemotePreferenceSnapshot getSnapshot(String... keys) {
+        checkNotNull("keys", keys);
+        for (String key : keys) {
+            checkKeyNotEmpty(key);
+        }
+        return makeReadOnly(queryMany(keys.clone()));
+    }
+
+    /**
+     * Returns a read-only copy of the specified snapshot. String sets
+     * may be shared with the cache, so they are wrapped as well.
+     *
+     * @param snapshot The snapshot to copy.
+     * @return A snapshot with the same values and generation, which
+     *         cannot be modified.
+     */
+    private static RemotePreferenceSnapshot makeReadOnly(RemotePreferenceSnapshot snapshot) {
+        HashMap<String, Object> values = new HashMap<String, Object>(snapshot.getValues());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof Set<?>) {
+                entry.setValue(Collections.unmodifiableSet(RemoteUtils.castStringSet(entry.getValue())));
+            }
+        }
+        return new RemotePreferenceSnapshot(Collections.unmodifiableMap(values), snapshot.getGeneration());
     }
 
     @Override
@@ -136,29 +604,399 @@ public class RemotePreferences implements SharedPreferences {
         return containsKey(key);
     }
 
+    /**
+     * Asynchronous version of {@link #getAll()}.
+     *
+     * @return A future that resolves to a map containing all preferences.
+     */
+    public Future<Map<String, ?>> getAllAsync() {
+        FutureTask<Map<String, ?>> task = new FutureTask<Map<String, ?>>(new Callable<Map<String, ?>>() {
+            @Override
+            public Map<String, ?> call() {
+                return queryAll();
+            }
+        });
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Asynchronous version of {@link #getString(String, String)}.
+     *
+     * @param key The preference key to read.
+     * @param defValue The default value, if there is no existing value.
+     * @return A future that resolves to the preference value.
+     */
+    public Future<String> getStringAsync(String key, String defValue) {
+        return new ValueFuture<String>(queryAsync(key), defValue, RemoteContract.TYPE_STRING);
+    }
+
+    /**
+     * Asynchronous version of {@link #getStringSet(String, Set)}.
+     *
+     * @param key The preference key to read.
+     * @param defValues The default value, if there is no existing value.
+     * @return A future that resolves to the preference value.
+     */
+    @TargetApi(11)
+    public Future<Set<String>> getStringSetAsync(String key, Set<String> defValues) {
+        if (Build.VERSION.SDK_INT < 11) {
+            throw new UnsupportedOperationException("String sets only supported on API 11 and above");
+        }
+        return new ValueFuture<Set<String>>(queryAsync(key), defValues, RemoteContract.TYPE_STRING_SET);
+    }
+
+    /**
+     * Asynchronous version of {@link #getInt(String, int)}.
+     *
+     * @param key The preference key to read.
+     * @param defValue The default value, if there is no existing value.
+     * @return A future that resolves to the preference value.
+     */
+    public Future<Integer> getIntAsync(String key, int defValue) {
+        return new ValueFuture<Integer>(queryAsync(key), defValue, RemoteContract.TYPE_INT);
+    }
+
+    /**
+     * Asynchronous version of {@link #getLong(String, long)}.
+     *
+     * @param key The preference key to read.
+     * @param defValue The default value, if there is no existing value.
+     * @return A future that resolves to the preference value.
+     */
+    public Future<Long> getLongAsync(String key, long defValue) {
+        return new ValueFuture<Long>(queryAsync(key), defValue, RemoteContract.TYPE_LONG);
+    }
+
+    /**
+     * Asynchronous version of {@link #getFloat(String, float)}.
+     *
+     * @param key The preference key to read.
+     * @param defValue The default value, if there is no existing value.
+     * @return A future that resolves to the preference value.
+     */
+    public Future<Float> getFloatAsync(String key, float defValue) {
+        return new ValueFuture<Float>(queryAsync(key), defValue, RemoteContract.TYPE_FLOAT);
+    }
+
+    /**
+     * Asynchronous version of {@link #getBoolean(String, boolean)}.
+     *
+     * @param key The preference key to read.
+     * @param defValue The default value, if there is no existing value.
+     * @return A future that resolves to the preference value.
+     */
+    public Future<Boolean> getBooleanAsync(String key, boolean defValue) {
+        return new ValueFuture<Boolean>(queryAsync(key), defValue, RemoteContract.TYPE_BOOLEAN);
+    }
+
+    /**
+     * Reads multiple preferences from the provider in a single request,
+     * in the background. While the request is in flight, asynchronous
+     * reads of any of the specified keys will wait for its result instead
+     * of sending their own request. If caching is enabled, the values are
+     * also stored in the cache.
+     *
+     * @param keys The preference keys to read.
+     * @return A future that resolves to a map containing the values of
+     *         the specified preferences that exist.
+     */
+    public Future<Map<String, ?>> prefetch(String... keys) {
+        checkNotNull("keys", keys);
+        for (String key : keys) {
+            checkKeyNotEmpty(key);
+        }
+
+        final String[] keysCopy = keys.clone();
+        final FutureTask<Map<String, ?>> task = new FutureTask<Map<String, ?>>(new Callable<Map<String, ?>>() {
+            @Override
+            public Map<String, ?> call() {
+                return queryMany(keysCopy).getValues();
+            }
+        }) {
+            @Override
+            protected void done() {
+                synchronized (mPendingReads) {
+                    for (String key : keysCopy) {
+                        Future<Object> pending = mPendingReads.get(key);
+                        if (pending instanceof KeyFuture && ((KeyFuture)pending).mBatch == this) {
+                            mPendingReads.remove(key);
+                        }
+                    }
+                }
+            }
+        };
+
+        synchronized (mPendingReads) {
+            for (String key : keysCopy) {
+                if (!mPendingReads.containsKey(key)) {
+                    mPendingReads.put(key, new KeyFuture(task, key));
+                }
+            }
+        }
+        mExecutor.execute(task);
+        return task;
+    }
+
     @Override
-    public Editor edit() {
-        return new RemotePreferencesEditor();
+    public RemoteEditor edit() {
+        return new RemotePreferencesEditor(false);
+    }
+
+    /**
+     * Starts a transaction that writes to several preference files at
+     * once. See {@link Transaction}.
+     *
+     * @return A new, empty transaction.
+     */
+    public static Transaction beginTransaction() {
+        return new Transaction();
     }
 
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
-        checkNotNull("listener", listener);
-        if (mListeners.containsKey(listener)) return;
-        PreferenceContentObserver observer = new PreferenceContentObserver(listener);
-        mListeners.put(listener, observer);
-        mContext.getContentResolver().registerContentObserver(mBaseUri, true, observer);
+        registerListener(listener);
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        unregisterListener(listener);
+    }
+
+    /**
+     * Releases the value cache. If caching is enabled, this object
+     * registers an observer with the provider to keep the cache up to
+     * date, which stays registered until this method is called. The
+     * object can still be used afterwards, but values are no longer
+     * cached. Registered listeners are not affected. Objects returned
+     * by {@link #get(Context, String, String, RemotePreferenceOptions)}
+     * are shared and cannot be closed.
+     */
+    public void close() {
+        if (mShared) {
+            throw new IllegalStateException("Shared instances cannot be closed");
+        }
+        if (mCache == null) {
+            return;
+        }
+        mTransport.removeObserver(mPrefFileName, mCacheObserver);
+        if (mTrimMemoryCallbacks != null) {
+            unregisterTrimMemoryCallbacks(mTrimMemoryCallbacks);
+        }
+        mCache.close();
+    }
+
+    /**
+     * Returns statistics about the value cache, such as the hit rate
+     * and the amount of memory it uses, for diagnostic purposes. See
+     * {@link RemotePreferenceOptions#setCacheMaxSize(long)}.
+     *
+     * @return The cache statistics, or {@code null} if caching is disabled.
+     */
+    public RemotePreferenceCacheStats getCacheStats() {
+        return mCache != null ? mCache.getStats() : null;
+    }
+
+    /**
+     * Returns the state of the circuit breaker, for diagnostic purposes.
+     * See {@link RemotePreferenceOptions#setCircuitBreaker(int, long)}.
+     *
+     * @return One of the {@code CIRCUIT_*} constants.
+     */
+    public int getCircuitState() {
+        if (mCircuitBreaker == null) {
+            return CIRCUIT_CLOSED;
+        }
+        return mCircuitBreaker.getState();
+    }
+
+    /**
+     * Registers a callback to be invoked with the new value when a
+     * preference changes. Like {@link OnSharedPreferenceChangeListener},
+     * the listener is only weakly referenced, so you must hold a strong
+     * reference to it for as long as it is registered.
+     *
+     * @param listener The listener to register.
+     */
+    public void registerOnRemotePreferenceChangeListener(OnRemotePreferenceChangeListener listener) {
+        registerListener(listener);
+    }
+
+    /**
+     * Unregisters a callback previously registered with
+     * {@link #registerOnRemotePreferenceChangeListener(OnRemotePreferenceChangeListener)}.
+     *
+     * @param listener The listener to unregister.
+     */
+    public void unregisterOnRemotePreferenceChangeListener(OnRemotePreferenceChangeListener listener) {
+        unregisterListener(listener);
+    }
+
+    /**
+     * Registers an {@link OnSharedPreferenceChangeListener} or
+     * {@link OnRemotePreferenceChangeListener} with the transport.
+     *
+     * @param listener The listener to register.
+     */
+    private void registerListener(Object listener) {
+        checkNotNull("listener", listener);
+        synchronized (mListeners) {
+            if (mListeners.containsKey(listener)) return;
+            PreferenceObserver observer = new PreferenceObserver(listener);
+            mListeners.put(listener, observer);
+            mTransport.addObserver(mPrefFileName, observer);
+        }
+    }
+
+    /**
+     * Unregisters a listener previously registered with
+     * {@link #registerListener(Object)}.
+     *
+     * @param listener The listener to unregister.
+     */
+    private void unregisterListener(Object listener) {
         checkNotNull("listener", listener);
-        PreferenceContentObserver observer = mListeners.remove(listener);
+        PreferenceObserver observer;
+        synchronized (mListeners) {
+            observer = mListeners.remove(listener);
+        }
         if (observer != null) {
-            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.mRegistered = false;
+            mTransport.removeObserver(mPrefFileName, observer);
+        }
+    }
+
+    /**
+     * Creates the transport used to communicate with the provider.
+     *
+     * @param context Used to access the preference provider.
+     * @param authority The authority of the preference provider.
+     * @param options The options specifying which transport to use.
+     * @return The transport.
+     */
+    private static RemotePreferenceTransport createTransport(Context context, String authority, RemotePreferenceOptions options) {
+        int transport = options.getTransport();
+        switch (transport) {
+        case RemotePreferenceOptions.TRANSPORT_AUTO:
+            return new RemoteLocalTransport(authority, new RemoteCursorTransport(context, authority));
+        case RemotePreferenceOptions.TRANSPORT_CURSOR:
+            return new RemoteCursorTransport(context, authority);
+        case RemotePreferenceOptions.TRANSPORT_CALL:
+            return new RemoteCallTransport(context, authority);
+        case RemotePreferenceOptions.TRANSPORT_LOCAL:
+            return new RemoteLocalTransport(authority, null);
+        case RemotePreferenceOptions.TRANSPORT_SERVICE:
+            checkNotNull("serviceComponent", options.getServiceComponent());
+            return new RemoteServiceTransport(context, options.getServiceComponent(), new RemoteCursorTransport(context, authority));
+        default:
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+    }
+
+    /**
+     * Returns the executor used to dispatch preference change events,
+     * as specified by the options. Defaults to the main thread.
+     *
+     * @param context Used to obtain the main looper.
+     * @param options The options specifying the executor or handler.
+     * @return The executor.
+     */
+    private static Executor createCallbackExecutor(Context context, RemotePreferenceOptions options) {
+        checkNotNull("context", context);
+        checkNotNull("options", options);
+        if (options.getCallbackExecutor() != null) {
+            return options.getCallbackExecutor();
+        } else if (options.getCallbackHandler() != null) {
+            return createHandlerExecutor(options.getCallbackHandler());
+        } else {
+            return createHandlerExecutor(new Handler(context.getMainLooper()));
         }
     }
 
+    /**
+     * Returns an executor that posts all tasks to the specified handler.
+     *
+     * @param handler The handler to post tasks to.
+     * @return The executor.
+     */
+    private static Executor createHandlerExecutor(final Handler handler) {
+        checkNotNull("handler", handler);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Returns the executor used for asynchronous reads if none is
+     * specified in the options. The threads are created on demand
+     * and time out when idle.
+     *
+     * @return The default executor.
+     */
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                4, 4, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "RemotePreferences #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            if (Build.VERSION.SDK_INT >= 9) {
+                executor.allowCoreThreadTimeOut(true);
+            }
+            sDefaultExecutor = executor;
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Returns the application context, or the context itself if it
+     * has no application context (e.g. in tests).
+     *
+     * @param context Any context.
+     * @return The application context.
+     */
+    private static Context getApplicationContext(Context context) {
+        Context appContext = context.getApplicationContext();
+        return appContext != null ? appContext : context;
+    }
+
+    /**
+     * Shrinks the cache when the system is low on memory.
+     *
+     * @param appContext Used to register for memory trim events.
+     * @param cache The cache to shrink.
+     * @return The registered callbacks.
+     */
+    @TargetApi(14)
+    private static Object registerTrimMemoryCallbacks(Context appContext, RemotePreferenceCache cache) {
+        TrimMemoryCallbacks callbacks = new TrimMemoryCallbacks(appContext, cache);
+        appContext.registerComponentCallbacks(callbacks);
+        return callbacks;
+    }
+
+    /**
+     * Unregisters callbacks registered with
+     * {@link #registerTrimMemoryCallbacks(Context, RemotePreferenceCache)}.
+     *
+     * @param callbacks The registered callbacks.
+     */
+    @TargetApi(14)
+    private static void unregisterTrimMemoryCallbacks(Object callbacks) {
+        TrimMemoryCallbacks trimMemoryCallbacks = (TrimMemoryCallbacks)callbacks;
+        trimMemoryCallbacks.mContext.unregisterComponentCallbacks(trimMemoryCallbacks);
+    }
+
     /**
      * If {@code object} is {@code null}, throws an exception.
      *
@@ -172,140 +1010,523 @@ public class RemotePreferences implements SharedPreferences {
     }
 
     /**
-     * If {@code key} is {@code null} or {@code ""}, throws an exception.
+     * If {@code key} is {@code null} or {@code ""}, throws an exception.
+     *
+     * @param key The object to check.
+     */
+    private static void checkKeyNotEmpty(String key) {
+        if (key == null || key.length() == 0) {
+            throw new IllegalArgumentException("Key is null or empty");
+        }
+    }
+
+    /**
+     * If strict mode is enabled, wraps and throws the given exception.
+     * Otherwise, does nothing.
+     *
+     * @param e The exception to wrap.
+     */
+    private void wrapException(Exception e) {
+        if (mStrictMode) {
+            if (e instanceof RemotePreferenceAccessException) {
+                throw (RemotePreferenceAccessException)e;
+            }
+            throw new RemotePreferenceAccessException(e);
+        }
+    }
+
+    /**
+     * Writes multiple preferences at once to the preference provider.
+     * If the operation fails and strict mode is enabled, an exception
+     * will be thrown; otherwise {@link RemotePreferenceTransport#WRITE_FAILED}
+     * will be returned.
+     *
+     * @param values The values to write.
+     * @return The generation of the file after the write, as returned by
+     *         {@link RemotePreferenceTransport#writeBatch(String, ContentValues[])}.
+     */
+    private long writeBatch(ContentValues[] values) {
+        long generation;
+        try {
+            generation = mTransport.writeBatch(mPrefFileName, values);
+        } catch (Exception e) {
+            wrapException(e);
+            return RemotePreferenceTransport.WRITE_FAILED;
+        }
+        if (generation == RemotePreferenceTransport.WRITE_FAILED && mStrictMode) {
+            throw new RemotePreferenceAccessException("writeBatch() failed");
+        }
+        return generation;
+    }
+
+    /**
+     * Reads a single preference from the preference provider. This may
+     * throw a {@link ClassCastException} even if strict mode is disabled
+     * if the provider returns an incompatible type. If strict mode is
+     * disabled and the preference cannot be read, the default value is returned.
+     *
+     * @param key The preference key to read.
+     * @param defValue The default value, if there is no existing value.
+     * @param expectedType The expected type of the value.
+     * @return The value of the preference, or {@code defValue} if no value exists.
+     */
+    private Object querySingle(String key, Object defValue, int expectedType) {
+        checkKeyNotEmpty(key);
+        recordAccess(key);
+        Object value;
+        try {
+            value = readValue(key);
+        } catch (Exception e) {
+            wrapException(e);
+            return defValue;
+        }
+        return checkValueType(value, defValue, expectedType);
+    }
+
+    /**
+     * Reads a numeric or boolean preference. If the value is cached, it
+     * is returned without boxing it; otherwise, this behaves like
+     * {@link #querySingle(String, Object, int)}. Values are encoded as
+     * described in {@link RemotePreferenceCompactMap#toBits(Object)}.
+     *
+     * @param key The preference key to read.
+     * @param defBits The encoded default value, if there is no existing value.
+     * @param expectedType The expected type of the value.
+     * @return The encoded value of the preference, or {@code defBits} if no value exists.
+     */
+    private long queryPrimitive(String key, long defBits, int expectedType) {
+        checkKeyNotEmpty(key);
+        if (mCache != null) {
+            loadDiskCache();
+            int type;
+            long bits = 0;
+            synchronized (mCache) {
+                type = mCache.getType(key);
+                if (type == expectedType) {
+                    bits = mCache.getBits(key);
+                }
+            }
+            if (type != RemotePreferenceCache.TYPE_UNKNOWN) {
+                recordAccess(key);
+                if (type == RemoteContract.TYPE_NULL) {
+                    return defBits;
+                } else if (type != expectedType) {
+                    throw new ClassCastException("Preference type mismatch");
+                }
+                return bits;
+            }
+        }
+
+        Object value = querySingle(key, null, expectedType);
+        return value != null ? RemotePreferenceCompactMap.toBits(value) : defBits;
+    }
+
+    /**
+     * Returns the value of a preference if it has the expected type.
+     *
+     * @param value The value read from the provider.
+     * @param defValue The default value, if {@code value} is {@code null}.
+     * @param expectedType The expected type of the value.
+     * @return The value of the preference, or {@code defValue} if no value exists.
+     */
+    private static Object checkValueType(Object value, Object defValue, int expectedType) {
+        int type = RemoteUtils.getPreferenceType(value);
+        if (type == RemoteContract.TYPE_NULL) {
+            return defValue;
+        } else if (type != expectedType) {
+            throw new ClassCastException("Preference type mismatch");
+        }
+        return value;
+    }
+
+    /**
+     * Reads a single preference from the cache, or from the provider if
+     * the value is not cached. Exceptions are propagated to the caller.
+     *
+     * @param key The preference key to read.
+     * @return The value of the preference, or {@code null} if no value exists.
+     */
+    private Object readValue(String key) {
+        if (mCache == null) {
+            return mTransport.readOne(mPrefFileName, key);
+        }
+
+        loadDiskCache();
+        Object value = mCache.get(key);
+        if (value == RemotePreferenceCache.ABSENT) {
+            return null;
+        } else if (value == null) {
+            long version = mCache.getVersion();
+            String[] hotKeys = takeHotKeys(key);
+            if (hotKeys != null) {
+                try {
+                    Map<String, Object> values = mTransport.readMany(mPrefFileName, hotKeys).getValues();
+                    mCache.putAll(hotKeys, values, version);
+                    return values.get(key);
+                } catch (RemotePreferenceAccessException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    // The provider may reject the batch because of one of
+                    // the other keys (e.g. checkAccess() denied it), so
+                    // retry with just the requested key
+                }
+            }
+            value = mTransport.readOne(mPrefFileName, key);
+            mCache.put(key, value, version);
+        }
+        return value;
+    }
+
+    /**
+     * If adaptive prefetch is enabled, records a read of the specified
+     * preference, saving the key profile in the background from time to time.
+     *
+     * @param key The preference key.
+     */
+    private void recordAccess(String key) {
+        if (mKeyProfile == null) {
+            return;
+        }
+
+        // Load the old profile first, otherwise the first save
+        // would overwrite it with just the keys read so far
+        loadKeyProfile();
+        if (mKeyProfile.record(key)) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mKeyProfile.save();
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the key profile saved by a previous process, if this
+     * has not been done yet.
+     */
+    private void loadKeyProfile() {
+        if (mKeyProfileLoaded) {
+            return;
+        }
+        synchronized (mKeyProfile) {
+            if (!mKeyProfileLoaded) {
+                mHotKeys = mKeyProfile.load();
+                mKeyProfileLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * If adaptive prefetch is enabled and the hot keys from the saved
+     * profile have not been read yet, returns the keys to read in a
+     * single batch along with {@code key}.
+     *
+     * @param key The preference key that was requested.
+     * @return The hot keys from the saved profile plus {@code key}, or
+     *         {@code null} if the keys should not be prefetched.
+     */
+    private String[] takeHotKeys(String key) {
+        if (mKeyProfile == null) {
+            return null;
+        }
+
+        String[] hotKeys;
+        synchronized (mKeyProfile) {
+            hotKeys = mHotKeys;
+            mHotKeys = null;
+        }
+        if (hotKeys == null || hotKeys.length == 0) {
+            return null;
+        }
+        for (String hotKey : hotKeys) {
+            if (hotKey.equals(key)) {
+                return hotKeys;
+            }
+        }
+        String[] keys = new String[hotKeys.length + 1];
+        System.arraycopy(hotKeys, 0, keys, 0, hotKeys.length);
+        keys[hotKeys.length] = key;
+        return keys;
+    }
+
+    /**
+     * If the persistent cache is enabled and this is the first access,
+     * starts loading the saved snapshot into the cache in the background,
+     * then revalidates it. Reads don't wait for the snapshot, since that
+     * would put file I/O on the calling thread; until it has been loaded,
+     * they contact the provider as usual.
+     */
+    private void loadDiskCache() {
+        if (mDiskCache == null || mDiskCacheLoadStarted) {
+            return;
+        }
+        synchronized (mDiskCache) {
+            if (mDiskCacheLoadStarted) {
+                return;
+            }
+            mDiskCacheLoadStarted = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readDiskCache();
+                revalidateDiskCache();
+            }
+        });
+    }
+
+    /**
+     * Loads the saved snapshot into the cache. The snapshot may replace
+     * values that were read from the provider while it was loading;
+     * revalidation fixes those up shortly afterwards.
+     */
+    private void readDiskCache() {
+        synchronized (mDiskCache) {
+            long version = mCache.getVersion();
+            RemotePreferenceSnapshot snapshot = mDiskCache.load(mDiskCacheMaxAge);
+            if (snapshot != null) {
+                mCache.replaceAll(snapshot.getValues(), version, snapshot.getGeneration());
+                mDiskCacheGeneration = snapshot.getGeneration();
+            }
+        }
+    }
+
+    /**
+     * Reads the entire preference file from the provider, replacing the
+     * contents of the cache. Listeners are notified of any preferences
+     * that differ from the snapshot loaded from disk. The new snapshot
+     * is then saved to disk.
+     */
+    private void revalidateDiskCache() {
+        long version = mCache.getVersion();
+        RemotePreferenceSnapshot snapshot;
+        try {
+            snapshot = mTransport.readAll(mPrefFileName);
+        } catch (Exception e) {
+            // Keep serving the saved snapshot, we'll try again
+            // the next time the preferences are read in full
+            return;
+        }
+
+        Map<String, Object> changes = mCache.replaceAll(snapshot.getValues(), version, snapshot.getGeneration());
+        saveDiskCache(snapshot);
+        if (changes == null || changes.isEmpty()) {
+            return;
+        }
+
+        ArrayList<PreferenceObserver> observers;
+        synchronized (mListeners) {
+            observers = new ArrayList<PreferenceObserver>(mListeners.values());
+        }
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            for (PreferenceObserver observer : observers) {
+                observer.onChange(mPrefFileName, change.getKey(), change.getValue(), snapshot.getGeneration());
+            }
+        }
+    }
+
+    /**
+     * Saves a snapshot of the preference file to disk. If the snapshot
+     * has the same generation as the one already on disk, only its
+     * timestamp is refreshed.
      *
-     * @param key The object to check.
+     * @param snapshot The snapshot to save.
      */
-    private static void checkKeyNotEmpty(String key) {
-        if (key == null || key.length() == 0) {
-            throw new IllegalArgumentException("Key is null or empty");
+    private void saveDiskCache(RemotePreferenceSnapshot snapshot) {
+        synchronized (mDiskCache) {
+            if (snapshot.getGeneration() != RemotePreferenceSnapshot.UNKNOWN_GENERATION &&
+                snapshot.getGeneration() == mDiskCacheGeneration) {
+                mDiskCache.touch();
+            } else {
+                mDiskCache.save(snapshot);
+                mDiskCacheGeneration = snapshot.getGeneration();
+            }
         }
     }
 
     /**
-     * If strict mode is enabled, wraps and throws the given exception.
-     * Otherwise, does nothing.
+     * Reads a single preference on the executor. If a read of the same
+     * key is already in flight, its result is shared instead. If strict
+     * mode is disabled and the preference cannot be read, the future
+     * resolves to {@code null}.
      *
-     * @param e The exception to wrap.
+     * @param key The preference key to read.
+     * @return A future that resolves to the value of the preference.
      */
-    private void wrapException(Exception e) {
-        if (mStrictMode) {
-            throw new RemotePreferenceAccessException(e);
+    private Future<Object> queryAsync(final String key) {
+        checkKeyNotEmpty(key);
+        recordAccess(key);
+        if (mCache != null) {
+            loadDiskCache();
+            Object value = mCache.get(key);
+            if (value != null) {
+                if (value == RemotePreferenceCache.ABSENT) {
+                    value = null;
+                }
+                FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+                    @Override
+                    public void run() {}
+                }, value);
+                task.run();
+                return task;
+            }
         }
+
+        FutureTask<Object> task;
+        synchronized (mPendingReads) {
+            Future<Object> pending = mPendingReads.get(key);
+            if (pending != null) {
+                return pending;
+            }
+
+            task = new FutureTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    try {
+                        return readValue(key);
+                    } catch (Exception e) {
+                        wrapException(e);
+                        return null;
+                    }
+                }
+            }) {
+                @Override
+                protected void done() {
+                    synchronized (mPendingReads) {
+                        if (mPendingReads.get(key) == this) {
+                            mPendingReads.remove(key);
+                        }
+                    }
+                }
+            };
+            mPendingReads.put(key, task);
+        }
+        mExecutor.execute(task);
+        return task;
     }
 
     /**
-     * Queries the specified URI. If the query fails and strict mode is
-     * enabled, an exception will be thrown; otherwise {@code null} will
-     * be returned.
+     * Reads multiple preferences from the preference provider. If strict
+     * mode is disabled and the preferences cannot be read, an empty
+     * snapshot is returned.
      *
-     * @param uri The URI to query.
-     * @param columns The columns to include in the returned cursor.
-     * @return A cursor used to access the queried preference data.
+     * @param keys The preference keys to read.
+     * @return A snapshot containing the preferences that exist.
      */
-    private Cursor query(Uri uri, String[] columns) {
-        Cursor cursor = null;
+    private RemotePreferenceSnapshot queryMany(String[] keys) {
+        long version = mCache != null ? mCache.getVersion() : 0;
+        RemotePreferenceSnapshot snapshot;
         try {
-            cursor = mContext.getContentResolver().query(uri, columns, null, null, null);
+            snapshot = mTransport.readMany(mPrefFileName, keys);
         } catch (Exception e) {
             wrapException(e);
+            return new RemotePreferenceSnapshot(new HashMap<String, Object>(), RemotePreferenceSnapshot.UNKNOWN_GENERATION);
         }
-        if (cursor == null && mStrictMode) {
-            throw new RemotePreferenceAccessException("query() failed or returned null cursor");
+        if (mCache != null) {
+            mCache.putAll(keys, snapshot.getValues(), version);
         }
-        return cursor;
+        return snapshot;
     }
 
     /**
-     * Writes multiple preferences at once to the preference provider.
-     * If the operation fails and strict mode is enabled, an exception
-     * will be thrown; otherwise {@code false} will be returned.
+     * Reads all preferences from the preference provider. If strict
+     * mode is disabled and the preferences cannot be read, an empty
+     * map is returned.
      *
-     * @param uri The URI to modify.
-     * @param values The values to write.
-     * @return Whether the operation succeeded.
+     * @return A map containing all preferences.
      */
-    private boolean bulkInsert(Uri uri, ContentValues[] values) {
-        int count;
+    private Map<String, Object> queryAll() {
+        long version = 0;
+        if (mCache != null) {
+            loadDiskCache();
+            Map<String, Object> values = mCache.getAll();
+            if (values != null) {
+                return values;
+            }
+            version = mCache.getVersion();
+        }
+
+        final RemotePreferenceSnapshot snapshot;
         try {
-            count = mContext.getContentResolver().bulkInsert(uri, values);
+            snapshot = mTransport.readAll(mPrefFileName);
         } catch (Exception e) {
             wrapException(e);
-            return false;
+            return new HashMap<String, Object>();
+        }
+        if (mCache != null) {
+            mCache.replaceAll(snapshot.getValues(), version, snapshot.getGeneration());
         }
-        if (count != values.length && mStrictMode) {
-            throw new RemotePreferenceAccessException("bulkInsert() failed");
+        if (mDiskCache != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    saveDiskCache(snapshot);
+                }
+            });
         }
-        return count == values.length;
+        return snapshot.getValues();
     }
 
     /**
-     * Reads a single preference from the preference provider. This may
-     * throw a {@link ClassCastException} even if strict mode is disabled
-     * if the provider returns an incompatible type. If strict mode is
-     * disabled and the preference cannot be read, the default value is returned.
+     * Reads the preferences whose keys are in the specified range, from
+     * the cache if it contains the entire file. If strict mode is disabled
+     * and the preferences cannot be read, an empty map is returned.
      *
-     * @param key The preference key to read.
-     * @param defValue The default value, if there is no existing value.
-     * @param expectedType The expected type of the value.
-     * @return The value of the preference, or {@code defValue} if no value exists.
+     * @param fromKey The first key to read (inclusive), or {@code null}.
+     * @param toKey The last key to read (exclusive), or {@code null}.
+     * @param limit The maximum number of preferences to read, or 0 for no limit.
+     * @return A map containing the preferences in the range, in key order.
      */
-    private Object querySingle(String key, Object defValue, int expectedType) {
-        checkKeyNotEmpty(key);
-        Uri uri = mBaseUri.buildUpon().appendPath(key).build();
-        String[] columns = {RemoteContract.COLUMN_TYPE, RemoteContract.COLUMN_VALUE};
-        Cursor cursor = query(uri, columns);
-        try {
-            if (cursor == null || !cursor.moveToFirst()) {
-                return defValue;
-            }
-
-            int typeCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_TYPE);
-            int type = cursor.getInt(typeCol);
-            if (type == RemoteContract.TYPE_NULL) {
-                return defValue;
-            } else if (type != expectedType) {
-                throw new ClassCastException("Preference type mismatch");
+    private SortedMap<String, Object> queryRange(String fromKey, String toKey, int limit) {
+        long version = 0;
+        if (mCache != null) {
+            loadDiskCache();
+            Map<String, Object> values = mCache.getAll();
+            if (values != null) {
+                return RemoteUtils.getRange(values, fromKey, toKey, limit);
             }
+            version = mCache.getVersion();
+        }
 
-            int valueCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_VALUE);
-            return getValue(cursor, typeCol, valueCol);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        SortedMap<String, Object> values;
+        try {
+            values = mTransport.readRange(mPrefFileName, fromKey, toKey, limit);
+        } catch (Exception e) {
+            wrapException(e);
+            return new TreeMap<String, Object>();
         }
+        if (mCache != null) {
+            // Keys in the range that were not returned don't exist, but
+            // the cache can only remember missing keys that it was told
+            // about, so only the returned values are cached
+            Set<String> keys = values.keySet();
+            mCache.putAll(keys.toArray(new String[keys.size()]), values, version);
+        }
+        return values;
     }
 
     /**
-     * Reads all preferences from the preference provider. If strict
-     * mode is disabled and the preferences cannot be read, an empty
-     * map is returned.
+     * Reads the keys and types of all preferences, from the cache if
+     * it contains the entire file. If strict mode is disabled and the
+     * preferences cannot be read, an empty map is returned.
      *
-     * @return A map containing all preferences.
+     * @return A map from preference keys to their types.
      */
-    private Map<String, Object> queryAll() {
-        Uri uri = mBaseUri.buildUpon().appendPath("").build();
-        String[] columns = {RemoteContract.COLUMN_KEY, RemoteContract.COLUMN_TYPE, RemoteContract.COLUMN_VALUE};
-        Cursor cursor = query(uri, columns);
-        try {
-            HashMap<String, Object> map = new HashMap<String, Object>();
-            if (cursor == null) {
-                return map;
+    private Map<String, Integer> queryTypes() {
+        if (mCache != null) {
+            loadDiskCache();
+            Map<String, Object> values = mCache.getAll();
+            if (values != null) {
+                return RemoteUtils.getPreferenceTypes(values);
             }
+        }
 
-            int keyCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_KEY);
-            int typeCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_TYPE);
-            int valueCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_VALUE);
-            while (cursor.moveToNext()) {
-                String key = cursor.getString(keyCol);
-                map.put(key, getValue(cursor, typeCol, valueCol));
-            }
-            return map;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        try {
+            return mTransport.readTypes(mPrefFileName);
+        } catch (Exception e) {
+            wrapException(e);
+            return new HashMap<String, Integer>();
         }
     }
 
@@ -319,49 +1540,12 @@ public class RemotePreferences implements SharedPreferences {
      */
     private boolean containsKey(String key) {
         checkKeyNotEmpty(key);
-        Uri uri = mBaseUri.buildUpon().appendPath(key).build();
-        String[] columns = {RemoteContract.COLUMN_TYPE};
-        Cursor cursor = query(uri, columns);
+        recordAccess(key);
         try {
-            if (cursor == null || !cursor.moveToFirst()) {
-                return false;
-            }
-
-            int typeCol = cursor.getColumnIndexOrThrow(RemoteContract.COLUMN_TYPE);
-            return cursor.getInt(typeCol) != RemoteContract.TYPE_NULL;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
-    /**
-     * Extracts a preference value from a cursor. Performs deserialization
-     * of the value if necessary.
-     *
-     * @param cursor The cursor containing the preference value.
-     * @param typeCol The index containing the {@link RemoteContract#COLUMN_TYPE} column.
-     * @param valueCol The index containing the {@link RemoteContract#COLUMN_VALUE} column.
-     * @return The value from the cursor.
-     */
-    private Object getValue(Cursor cursor, int typeCol, int valueCol) {
-        int expectedType = cursor.getInt(typeCol);
-        switch (expectedType) {
-        case RemoteContract.TYPE_STRING:
-            return cursor.getString(valueCol);
-        case RemoteContract.TYPE_STRING_SET:
-            return RemoteUtils.deserializeStringSet(cursor.getString(valueCol));
-        case RemoteContract.TYPE_INT:
-            return cursor.getInt(valueCol);
-        case RemoteContract.TYPE_LONG:
-            return cursor.getLong(valueCol);
-        case RemoteContract.TYPE_FLOAT:
-            return cursor.getFloat(valueCol);
-        case RemoteContract.TYPE_BOOLEAN:
-            return cursor.getInt(valueCol) != 0;
-        default:
-            throw new AssertionError("Invalid expected type: " + expectedType);
+            return readValue(key) != null;
+        } catch (Exception e) {
+            wrapException(e);
+            return false;
         }
     }
 
@@ -369,8 +1553,14 @@ public class RemotePreferences implements SharedPreferences {
      * Implementation of the {@link SharedPreferences.Editor} interface
      * for use with RemotePreferences.
      */
-    private class RemotePreferencesEditor implements Editor {
-        private final ArrayList<ContentValues> mValues = new ArrayList<ContentValues>();
+    private class RemotePreferencesEditor implements RemoteEditor {
+        private final LinkedHashMap<String, ContentValues> mValues = new LinkedHashMap<String, ContentValues>();
+        private final boolean mInTransaction;
+        private boolean mClear = false;
+
+        private RemotePreferencesEditor(boolean inTransaction) {
+            mInTransaction = inTransaction;
+        }
 
         /**
          * Creates a new {@link ContentValues} with the specified key and
@@ -391,7 +1581,8 @@ public class RemotePreferences implements SharedPreferences {
         /**
          * Creates an operation to add/set a new preference. Again, the
          * {@link RemoteContract#COLUMN_VALUE} field is NOT filled in.
-         * This will also add the values to the operation queue.
+         * This will also add the values to the operation queue,
+         * replacing any earlier operation on the same key.
          *
          * @param key The preference key to add.
          * @param type The preference type to add.
@@ -400,37 +1591,94 @@ public class RemotePreferences implements SharedPreferences {
         private ContentValues createAddOp(String key, int type) {
             checkKeyNotEmpty(key);
             ContentValues values = createContentValues(key, type);
-            mValues.add(values);
+            mValues.put(key, values);
             return values;
         }
 
         /**
          * Creates an operation to delete a preference. All fields
          * are pre-filled. This will also add the values to the
-         * operation queue.
+         * operation queue, unless the key is already being set.
          *
          * @param key The preference key to delete.
-         * @return The pre-filled values.
          */
-        private ContentValues createRemoveOp(String key) {
-            // Note: Remove operations are inserted at the beginning
-            // of the list (this preserves the SharedPreferences behavior
-            // that all removes are performed before any adds)
-            ContentValues values = createContentValues(key, RemoteContract.TYPE_NULL);
-            values.putNull(RemoteContract.COLUMN_VALUE);
-            mValues.add(0, values);
-            return values;
+        private void createRemoveOp(String key) {
+            // Note: Remove operations never replace add operations
+            // (this preserves the SharedPreferences behavior that all
+            // removes are performed before any adds)
+            if (!mValues.containsKey(key)) {
+                ContentValues values = createContentValues(key, RemoteContract.TYPE_NULL);
+                values.putNull(RemoteContract.COLUMN_VALUE);
+                mValues.put(key, values);
+            }
+        }
+
+        /**
+         * Builds the batch to send to the provider: the clear operation,
+         * if any, then the remaining removes, then the adds. Since there
+         * is at most one operation per key, only the final state of each
+         * preference is sent.
+         *
+         * @return The operations to send.
+         */
+        private ContentValues[] buildBatch() {
+            ArrayList<ContentValues> batch = new ArrayList<ContentValues>(mValues.size() + 1);
+            if (mClear) {
+                ContentValues values = createContentValues("", RemoteContract.TYPE_NULL);
+                values.putNull(RemoteContract.COLUMN_VALUE);
+                batch.add(values);
+            }
+
+            // Removes are redundant after a clear
+            for (ContentValues values : mValues.values()) {
+                if (!mClear && values.getAsInteger(RemoteContract.COLUMN_TYPE) == RemoteContract.TYPE_NULL) {
+                    batch.add(values);
+                }
+            }
+            for (ContentValues values : mValues.values()) {
+                if (values.getAsInteger(RemoteContract.COLUMN_TYPE) != RemoteContract.TYPE_NULL) {
+                    batch.add(values);
+                }
+            }
+            return batch.toArray(new ContentValues[batch.size()]);
+        }
+
+        @Override
+        public RemoteEditor putAll(Map<String, ?> values) {
+            checkNotNull("values", values);
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (value == null) {
+                    remove(key);
+                } else if (value instanceof String) {
+                    putString(key, (String)value);
+                } else if (value instanceof Set<?>) {
+                    putStringSet(key, RemoteUtils.castStringSet(value));
+                } else if (value instanceof Integer) {
+                    putInt(key, (Integer)value);
+                } else if (value instanceof Long) {
+                    putLong(key, (Long)value);
+                } else if (value instanceof Float) {
+                    putFloat(key, (Float)value);
+                } else if (value instanceof Boolean) {
+                    putBoolean(key, (Boolean)value);
+                } else {
+                    throw new IllegalArgumentException("Unsupported preference type for key " + key + ": " + value.getClass());
+                }
+            }
+            return this;
         }
 
         @Override
-        public Editor putString(String key, String value) {
+        public RemoteEditor putString(String key, String value) {
             createAddOp(key, RemoteContract.TYPE_STRING).put(RemoteContract.COLUMN_VALUE, value);
             return this;
         }
 
         @Override
         @TargetApi(11)
-        public Editor putStringSet(String key, Set<String> value) {
+        public RemoteEditor putStringSet(String key, Set<String> value) {
             if (Build.VERSION.SDK_INT < 11) {
                 throw new UnsupportedOperationException("String sets only supported on API 11 and above");
             }
@@ -440,47 +1688,92 @@ public class RemotePreferences implements SharedPreferences {
         }
 
         @Override
-        public Editor putInt(String key, int value) {
+        public RemoteEditor putInt(String key, int value) {
             createAddOp(key, RemoteContract.TYPE_INT).put(RemoteContract.COLUMN_VALUE, value);
             return this;
         }
 
         @Override
-        public Editor putLong(String key, long value) {
+        public RemoteEditor putLong(String key, long value) {
             createAddOp(key, RemoteContract.TYPE_LONG).put(RemoteContract.COLUMN_VALUE, value);
             return this;
         }
 
         @Override
-        public Editor putFloat(String key, float value) {
+        public RemoteEditor putFloat(String key, float value) {
             createAddOp(key, RemoteContract.TYPE_FLOAT).put(RemoteContract.COLUMN_VALUE, value);
             return this;
         }
 
         @Override
-        public Editor putBoolean(String key, boolean value) {
+        public RemoteEditor putBoolean(String key, boolean value) {
             createAddOp(key, RemoteContract.TYPE_BOOLEAN).put(RemoteContract.COLUMN_VALUE, value ? 1 : 0);
             return this;
         }
 
         @Override
-        public Editor remove(String key) {
+        public RemoteEditor remove(String key) {
             checkKeyNotEmpty(key);
             createRemoveOp(key);
             return this;
         }
 
         @Override
-        public Editor clear() {
-            createRemoveOp("");
+        public RemoteEditor clear() {
+            mClear = true;
             return this;
         }
 
+        /**
+         * Returns the values that will be committed, mapped to
+         * {@code null} for removed preferences.
+         *
+         * @return The values to commit.
+         */
+        private Map<String, Object> getCommittedValues() {
+            HashMap<String, Object> committed = new HashMap<String, Object>();
+            for (Map.Entry<String, ContentValues> entry : mValues.entrySet()) {
+                ContentValues values = entry.getValue();
+                int type = values.getAsInteger(RemoteContract.COLUMN_TYPE);
+                committed.put(entry.getKey(), RemoteUtils.deserializeInput(values.get(RemoteContract.COLUMN_VALUE), type));
+            }
+            return committed;
+        }
+
+        /**
+         * Updates the cache after the batch was sent to the provider.
+         *
+         * @param values The batch returned by {@link #buildBatch()}.
+         * @param generation The result of the write, or
+         *                   {@link RemotePreferenceTransport#WRITE_FAILED}
+         *                   if it failed.
+         */
+        private void onCommitted(ContentValues[] values, long generation) {
+            // Don't wait for the change notification to arrive,
+            // otherwise reads immediately after the commit would
+            // return the old values
+            if (mCache != null && generation != RemotePreferenceTransport.WRITE_FAILED) {
+                mCache.putCommitted(getCommittedValues(), mClear, generation);
+            } else if (mCache != null) {
+                for (ContentValues value : values) {
+                    mCache.invalidate(value.getAsString(RemoteContract.COLUMN_KEY));
+                }
+            }
+        }
+
         @Override
         public boolean commit() {
-            ContentValues[] values = mValues.toArray(new ContentValues[mValues.size()]);
-            Uri uri = mBaseUri.buildUpon().appendPath("").build();
-            return bulkInsert(uri, values);
+            if (mInTransaction) {
+                throw new IllegalStateException("Editor belongs to a transaction, commit the transaction instead");
+            }
+            ContentValues[] values = buildBatch();
+            long generation = RemotePreferenceTransport.WRITE_FAILED;
+            try {
+                generation = writeBatch(values);
+                return generation != RemotePreferenceTransport.WRITE_FAILED;
+            } finally {
+                onCommitted(values, generation);
+            }
         }
 
         @Override
@@ -490,37 +1783,458 @@ public class RemotePreferences implements SharedPreferences {
     }
 
     /**
-     * {@link ContentObserver} subclass used to monitor preference changes
-     * in the remote preference provider. When a change is detected, this will notify
-     * the corresponding {@link SharedPreferences.OnSharedPreferenceChangeListener}.
+     * Writes to several preference files exposed by the same provider in
+     * a single call. Get an editor for each file with {@link #edit(RemotePreferences)},
+     * then call {@link #commit()} to write all of them at once. Either all
+     * or none of the changes are written, and readers going through the
+     * provider observe either all or none of them. Change notifications
+     * are sent once every file has been committed.
+     *
+     * <p>
+     * The editors returned by this class cannot be committed on their
+     * own. The transaction must fit in a single binder transaction, and
+     * requires API 11 or above. Providers using an older version of this
+     * library do not support transactions, in which case {@link #commit()}
+     * fails.
+     * </p>
+     */
+    public static class Transaction {
+        private final LinkedHashMap<RemotePreferences, RemotePreferencesEditor> mEditors;
+
+        private Transaction() {
+            mEditors = new LinkedHashMap<RemotePreferences, RemotePreferencesEditor>();
+        }
+
+        /**
+         * Returns the editor used to modify the specified preference file
+         * as part of this transaction. Calling this method again with the
+         * same object returns the same editor.
+         *
+         * @param prefs The preference file to modify. All files in a
+         *              transaction must use the same authority.
+         * @return The editor for the preference file.
+         */
+        public RemoteEditor edit(RemotePreferences prefs) {
+            checkNotNull("prefs", prefs);
+            RemotePreferencesEditor editor = mEditors.get(prefs);
+            if (editor != null) {
+                return editor;
+            }
+            for (RemotePreferences other : mEditors.keySet()) {
+                if (!other.mAuthority.equals(prefs.mAuthority)) {
+                    throw new IllegalArgumentException("All files in a transaction must use the same authority");
+                }
+                if (other.mPrefFileName.equals(prefs.mPrefFileName)) {
+                    throw new IllegalArgumentException("Preference file is already part of the transaction: " + prefs.mPrefFileName);
+                }
+            }
+            editor = prefs.new RemotePreferencesEditor(true);
+            mEditors.put(prefs, editor);
+            return editor;
+        }
+
+        /**
+         * Writes all of the changes made through the editors of this
+         * transaction. If strict mode is enabled for any of the files and
+         * the transaction fails, {@link RemotePreferenceAccessException}
+         * is thrown.
+         *
+         * @return Whether the changes were committed successfully.
+         */
+        public boolean commit() {
+            int count = mEditors.size();
+            if (count == 0) {
+                return true;
+            }
+
+            String[] prefFileNames = new String[count];
+            ContentValues[][] values = new ContentValues[count][];
+            RemotePreferencesEditor[] editors = new RemotePreferencesEditor[count];
+            RemotePreferenceTransport transport = null;
+            boolean strictMode = false;
+            int i = 0;
+            for (Map.Entry<RemotePreferences, RemotePreferencesEditor> entry : mEditors.entrySet()) {
+                RemotePreferences prefs = entry.getKey();
+                if (transport == null) {
+                    transport = prefs.mTransport;
+                }
+                strictMode |= prefs.mStrictMode;
+                prefFileNames[i] = prefs.mPrefFileName;
+                editors[i] = entry.getValue();
+                values[i] = editors[i].buildBatch();
+                i++;
+            }
+
+            long[] generations = null;
+            try {
+                generations = transport.writeFiles(prefFileNames, values);
+            } catch (Exception e) {
+                if (strictMode) {
+                    if (e instanceof RemotePreferenceAccessException) {
+                        throw (RemotePreferenceAccessException)e;
+                    }
+                    throw new RemotePreferenceAccessException(e);
+                }
+            } finally {
+                for (int j = 0; j < count; ++j) {
+                    long generation = (generations != null) ? generations[j] : RemotePreferenceTransport.WRITE_FAILED;
+                    editors[j].onCommitted(values[j], generation);
+                }
+            }
+            if (generations == null && strictMode) {
+                throw new RemotePreferenceAccessException("writeFiles() failed");
+            }
+            return generations != null;
+        }
+    }
+
+    /**
+     * Iterator returned by {@link #scan(int)}. Keeps the current page
+     * and the key to resume from, which is all the state that is needed
+     * to continue the scan.
      */
-    private class PreferenceContentObserver extends ContentObserver {
-        private final WeakReference<OnSharedPreferenceChangeListener> mListener;
+    private class ScanIterator implements Iterator<Map.Entry<String, ?>> {
+        private final int mPageSize;
+        private Iterator<Map.Entry<String, Object>> mPage;
+        private String mLastKey;
+        private boolean mDone;
 
-        private PreferenceContentObserver(OnSharedPreferenceChangeListener listener) {
-            super(mHandler);
-            mListener = new WeakReference<OnSharedPreferenceChangeListener>(listener);
+        private ScanIterator(int pageSize) {
+            mPageSize = pageSize;
         }
 
         @Override
-        public boolean deliverSelfNotifications() {
+        public boolean hasNext() {
+            while (mPage == null || !mPage.hasNext()) {
+                if (mDone) {
+                    return false;
+                }
+                String fromKey = (mLastKey != null) ? RemoteUtils.getKeyAfter(mLastKey) : null;
+                SortedMap<String, Object> page = queryRange(fromKey, null, mPageSize);
+                if (page.size() < mPageSize) {
+                    mDone = true;
+                }
+                if (!page.isEmpty()) {
+                    mLastKey = page.lastKey();
+                }
+                mPage = Collections.unmodifiableMap(page).entrySet().iterator();
+            }
             return true;
         }
 
         @Override
-        public void onChange(boolean selfChange, Uri uri) {
-            RemotePreferencePath path = mUriParser.parse(uri);
+        public Map.Entry<String, ?> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return mPage.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Observer used to monitor preference changes in the remote preference
+     * provider. When a change is detected, this will notify the corresponding
+     * {@link SharedPreferences.OnSharedPreferenceChangeListener} or
+     * {@link OnRemotePreferenceChangeListener} on the callback executor.
+     * If callbacks are coalesced, changed keys (and their latest values)
+     * are accumulated until the pending batch is dispatched.
+     */
+    private class PreferenceObserver implements RemotePreferenceTransport.Observer {
+        private final WeakReference<Object> mListener;
+        private final LinkedHashMap<String, Object> mPendingChanges;
+        private volatile boolean mRegistered;
+
+        private PreferenceObserver(Object listener) {
+            mListener = new WeakReference<Object>(listener);
+            mPendingChanges = new LinkedHashMap<String, Object>();
+            mRegistered = true;
+        }
+
+        @Override
+        public void onChange(String prefFileName, final String prefKey, final Object value, long generation) {
+            if (!mCoalesceCallbacks) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchChange(prefKey, value);
+                    }
+                });
+                return;
+            }
+
+            synchronized (mPendingChanges) {
+                // If the map was non-empty, a flush is already scheduled
+                // and will pick up this key as well
+                boolean scheduled = !mPendingChanges.isEmpty();
+                mPendingChanges.remove(prefKey);
+                mPendingChanges.put(prefKey, value);
+                if (scheduled) {
+                    return;
+                }
+            }
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushChanges();
+                }
+            });
+        }
+
+        private void flushChanges() {
+            ArrayList<Map.Entry<String, Object>> changes;
+            synchronized (mPendingChanges) {
+                changes = new ArrayList<Map.Entry<String, Object>>(mPendingChanges.entrySet());
+                mPendingChanges.clear();
+            }
+            for (Map.Entry<String, Object> change : changes) {
+                dispatchChange(change.getKey(), change.getValue());
+            }
+        }
+
+        private void dispatchChange(String prefKey, Object value) {
+            // The listener may have been unregistered while this
+            // event was waiting to be dispatched.
+            if (!mRegistered) {
+                return;
+            }
 
             // We use a weak reference to mimic the behavior of SharedPreferences.
             // The code which registered the listener is responsible for holding a
             // reference to it. If at any point we find that the listener has been
             // garbage collected, we unregister the observer.
-            OnSharedPreferenceChangeListener listener = mListener.get();
+            Object listener = mListener.get();
             if (listener == null) {
-                mContext.getContentResolver().unregisterContentObserver(this);
+                mRegistered = false;
+                mTransport.removeObserver(mPrefFileName, this);
+            } else if (listener instanceof OnSharedPreferenceChangeListener) {
+                ((OnSharedPreferenceChangeListener)listener).onSharedPreferenceChanged(RemotePreferences.this, prefKey);
+            } else {
+                if (prefKey == null) {
+                    value = null;
+                } else if (value == RemotePreferenceTransport.UNKNOWN_VALUE) {
+                    // The provider did not send the value along with the
+                    // notification, so we have to ask for it. If that
+                    // fails, we have nothing meaningful to report.
+                    try {
+                        value = readValue(prefKey);
+                    } catch (Exception e) {
+                        return;
+                    }
+                }
+                ((OnRemotePreferenceChangeListener)listener).onRemotePreferenceChanged(RemotePreferences.this, prefKey, value);
+            }
+        }
+    }
+
+    /**
+     * Converts the raw value read by {@link #queryAsync(String)} into
+     * the type requested by the caller, substituting the default value
+     * if the preference does not exist. Cancelling this future does not
+     * cancel the underlying read, since it may be shared with other callers.
+     */
+    private static class ValueFuture<T> implements Future<T> {
+        private final Future<Object> mSource;
+        private final Object mDefValue;
+        private final int mExpectedType;
+        private volatile boolean mCancelled;
+
+        private ValueFuture(Future<Object> source, Object defValue, int expectedType) {
+            mSource = source;
+            mDefValue = defValue;
+            mExpectedType = expectedType;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mSource.isDone()) {
+                return false;
+            }
+            mCancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mCancelled || mSource.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            return convert(mSource.get());
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            return convert(mSource.get(timeout, unit));
+        }
+
+        @SuppressWarnings("unchecked")
+        private T convert(Object value) throws ExecutionException {
+            try {
+                return (T)checkValueType(value, mDefValue, mExpectedType);
+            } catch (ClassCastException e) {
+                throw new ExecutionException(e);
+            }
+        }
+    }
+
+    /**
+     * Exposes the value of a single key from an in-flight
+     * {@link #prefetch(String...)} request, so that asynchronous reads
+     * of that key can wait for it instead of sending a new request.
+     */
+    private static class KeyFuture implements Future<Object> {
+        private final Future<Map<String, ?>> mBatch;
+        private final String mKey;
+
+        private KeyFuture(Future<Map<String, ?>> batch, String key) {
+            mBatch = batch;
+            mKey = key;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mBatch.isDone();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return mBatch.get().get(mKey);
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return mBatch.get(timeout, unit).get(mKey);
+        }
+    }
+
+    /**
+     * Observer used to invalidate cached values when they change in the
+     * provider. Invalidation happens immediately on the thread delivering
+     * the notification rather than on the handler thread, to keep the
+     * window in which stale values can be read as small as possible. The
+     * observer is unregistered by {@link #close()}. Only the cache is
+     * weakly referenced, so an object that is never closed can still be
+     * garbage collected, after which the observer unregisters itself on
+     * the next notification.
+     */
+    private static class CacheObserver implements RemotePreferenceTransport.Observer {
+        private final WeakReference<RemotePreferenceCache> mCache;
+        private final RemotePreferenceTransport mTransport;
+
+        private CacheObserver(RemotePreferenceCache cache, RemotePreferenceTransport transport) {
+            mCache = new WeakReference<RemotePreferenceCache>(cache);
+            mTransport = transport;
+        }
+
+        @Override
+        public void onChange(String prefFileName, String prefKey, Object value, long generation) {
+            RemotePreferenceCache cache = mCache.get();
+            if (cache == null) {
+                mTransport.removeObserver(prefFileName, this);
             } else {
-                listener.onSharedPreferenceChanged(RemotePreferences.this, path.key);
+                cache.applyNotification(prefKey, value, generation);
+            }
+        }
+    }
+
+    /**
+     * Shrinks a cache in response to memory trim events. Only holds a
+     * weak reference to the cache, since the callbacks are registered
+     * with the application context; once the cache has been garbage
+     * collected, the callbacks unregister themselves.
+     */
+    @TargetApi(14)
+    private static class TrimMemoryCallbacks implements ComponentCallbacks2 {
+        private final Context mContext;
+        private final WeakReference<RemotePreferenceCache> mCache;
+
+        private TrimMemoryCallbacks(Context context, RemotePreferenceCache cache) {
+            mContext = context;
+            mCache = new WeakReference<RemotePreferenceCache>(cache);
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            RemotePreferenceCache cache = mCache.get();
+            if (cache == null) {
+                mContext.unregisterComponentCallbacks(this);
+            } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                cache.trimToSize(0);
+            } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+                cache.trimToSize(cache.getSize() / 2);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+    }
+
+    /**
+     * Identifies a shared instance returned by
+     * {@link #get(Context, String, String, RemotePreferenceOptions)}.
+     */
+    private static class InstanceKey {
+        private final String mAuthority;
+        private final String mPrefFileName;
+        private final RemotePreferenceOptions mOptions;
+
+        private InstanceKey(String authority, String prefFileName, RemotePreferenceOptions options) {
+            mAuthority = authority;
+            mPrefFileName = prefFileName;
+            mOptions = options;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof InstanceKey)) {
+                return false;
             }
+            InstanceKey other = (InstanceKey)obj;
+            return mAuthority.equals(other.mAuthority) &&
+                mPrefFileName.equals(other.mPrefFileName) &&
+                mOptions.equals(other.mOptions);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mAuthority.hashCode();
+            result = 31 * result + mPrefFileName.hashCode();
+            result = 31 * result + mOptions.hashCode();
+            return result;
         }
     }
 }
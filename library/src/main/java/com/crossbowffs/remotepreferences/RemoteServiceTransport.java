@@ -0,0 +1,252 @@
+package com.crossbowffs.remotepreferences;
+
+import android.content.ComponentName;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Transport that talks to a {@link RemotePreferenceService} over a
+ * persistent binder connection. Binding is asynchronous, so until the
+ * service is connected (or whenever it is disconnected), all requests
+ * are forwarded to the fallback transport. Observers are moved between
+ * the service and the fallback transport as the connection state changes.
+ */
+/* package */ class RemoteServiceTransport implements RemotePreferenceTransport, ServiceConnection {
+    private final RemotePreferenceTransport mFallback;
+    private final Map<Observer, ObserverRecord> mObservers;
+    private volatile IRemotePreferenceService mService;
+
+    public RemoteServiceTransport(Context context, ComponentName component, RemotePreferenceTransport fallback) {
+        mFallback = fallback;
+        mObservers = new HashMap<Observer, ObserverRecord>();
+
+        // The connection lives as long as the process, so make sure we
+        // don't leak an activity or service context.
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        Intent intent = new Intent().setComponent(component);
+        appContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public Object readOne(String prefFileName, String prefKey) {
+        IRemotePreferenceService service = mService;
+        if (service != null) {
+            try {
+                return RemoteUtils.deserializeBundle(service.get(prefFileName, prefKey)).get(prefKey);
+            } catch (RemoteException e) {
+                onServiceDisconnected(null);
+            }
+        }
+        return mFallback.readOne(prefFileName, prefKey);
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readMany(String prefFileName, String[] prefKeys) {
+        IRemotePreferenceService service = mService;
+        if (service != null) {
+            try {
+                // The service interface does not report the generation
+                Map<String, Object> values = RemoteUtils.deserializeBundle(service.getMany(prefFileName, prefKeys));
+                return new RemotePreferenceSnapshot(values, RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+            } catch (RemoteException e) {
+                onServiceDisconnected(null);
+            }
+        }
+        return mFallback.readMany(prefFileName, prefKeys);
+    }
+
+    @Override
+    public RemotePreferenceSnapshot readAll(String prefFileName) {
+        IRemotePreferenceService service = mService;
+        if (service != null) {
+            try {
+                Bundle result = service.getAll(prefFileName);
+                Map<String, Object> values = RemoteUtils.deserializeBundle(result.getBundle(RemoteContract.EXTRA_VALUES));
+                long generation = result.getLong(RemoteContract.EXTRA_GENERATION, RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+                return new RemotePreferenceSnapshot(values, generation);
+            } catch (RemoteException e) {
+                onServiceDisconnected(null);
+            }
+        }
+        return mFallback.readAll(prefFileName);
+    }
+
+    @Override
+    public Map<String, RemotePreferenceSnapshot> readFiles(String[] prefFileNames, String[][] prefKeys) {
+        // The service interface reads one file at a time, so the
+        // provider can do this in fewer round trips
+        return mFallback.readFiles(prefFileNames, prefKeys);
+    }
+
+    @Override
+    public long[] writeFiles(String[] prefFileNames, ContentValues[][] values) {
+        // The service interface has no transactions
+        return mFallback.writeFiles(prefFileNames, values);
+    }
+
+    @Override
+    public SortedMap<String, Object> readRange(String prefFileName, String fromKey, String toKey, int limit) {
+        // The service interface has no range query, and getAll()
+        // would send the entire file, so use the provider directly
+        return mFallback.readRange(prefFileName, fromKey, toKey, limit);
+    }
+
+    @Override
+    public Map<String, Integer> readTypes(String prefFileName) {
+        // The service interface has no narrow query, and getAll()
+        // would send all of the values, so use the provider directly
+        return mFallback.readTypes(prefFileName);
+    }
+
+    @Override
+    public long writeBatch(String prefFileName, ContentValues[] values) {
+        // Batches that need to be split are staged through the provider,
+        // since the service interface only has a single-shot commit
+        IRemotePreferenceService service = mService;
+        if (service != null && RemoteUtils.splitBatch(values, RemoteCursorTransport.MAX_BATCH_SIZE).size() == 1) {
+            try {
+                // The service interface does not report the generation
+                if (!service.commit(prefFileName, values)) {
+                    return WRITE_FAILED;
+                }
+                return RemotePreferenceSnapshot.UNKNOWN_GENERATION;
+            } catch (RemoteException e) {
+                // We can't tell whether the commit went through before
+                // the service died, so don't retry it.
+                onServiceDisconnected(null);
+                throw new RemotePreferenceAccessException(e);
+            }
+        }
+        return mFallback.writeBatch(prefFileName, values);
+    }
+
+    @Override
+    public void addObserver(String prefFileName, Observer observer) {
+        synchronized (mObservers) {
+            if (mObservers.containsKey(observer)) return;
+            ObserverRecord record = new ObserverRecord(prefFileName, observer);
+            mObservers.put(observer, record);
+            IRemotePreferenceService service = mService;
+            if (service == null || !record.attach(service)) {
+                mFallback.addObserver(prefFileName, observer);
+            }
+        }
+    }
+
+    @Override
+    public void removeObserver(String prefFileName, Observer observer) {
+        synchronized (mObservers) {
+            ObserverRecord record = mObservers.remove(observer);
+            if (record == null) return;
+            if (record.mService != null) {
+                record.detach();
+            } else {
+                mFallback.removeObserver(prefFileName, observer);
+            }
+        }
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        IRemotePreferenceService service = IRemotePreferenceService.Stub.asInterface(binder);
+        synchronized (mObservers) {
+            mService = service;
+
+            // Register with the service before removing the fallback
+            // observer, so we don't miss any events in between.
+            for (ObserverRecord record : mObservers.values()) {
+                if (record.mService == null && record.attach(service)) {
+                    mFallback.removeObserver(record.mPrefFileName, record.mObserver);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        synchronized (mObservers) {
+            mService = null;
+            for (ObserverRecord record : mObservers.values()) {
+                if (record.mService != null) {
+                    record.mService = null;
+                    mFallback.addObserver(record.mPrefFileName, record.mObserver);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tracks whether an observer is currently registered with the
+     * service or with the fallback transport.
+     */
+    private static class ObserverRecord extends IRemotePreferenceCallback.Stub {
+        private final String mPrefFileName;
+        private final Observer mObserver;
+        private IRemotePreferenceService mService;
+
+        private ObserverRecord(String prefFileName, Observer observer) {
+            mPrefFileName = prefFileName;
+            mObserver = observer;
+        }
+
+        /**
+         * Registers this observer with the service.
+         *
+         * @param service The service to register with.
+         * @return Whether the registration succeeded.
+         */
+        private boolean attach(IRemotePreferenceService service) {
+            try {
+                service.registerCallback(mPrefFileName, this);
+                mService = service;
+                return true;
+            } catch (RemoteException e) {
+                return false;
+            } catch (RuntimeException e) {
+                // Access denied or unknown file; the fallback
+                // transport will report the error instead
+                return false;
+            }
+        }
+
+        /**
+         * Unregisters this observer from the service.
+         */
+        private void detach() {
+            try {
+                mService.unregisterCallback(mPrefFileName, this);
+            } catch (RemoteException e) {
+                // Service is dead, nothing to unregister from
+            }
+            mService = null;
+        }
+
+        @Override
+        public void onPreferenceChanged(String prefFileName, String prefKey) {
+            mObserver.onChange(prefFileName, prefKey, UNKNOWN_VALUE, RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+        }
+
+        @Override
+        public void onPreferenceValueChanged(String prefFileName, String prefKey, Bundle value) {
+            Object prefValue = RemoteUtils.deserializeBundle(value).get(prefKey);
+            if (prefValue instanceof Set<?>) {
+                prefValue = Collections.unmodifiableSet(RemoteUtils.castStringSet(prefValue));
+            }
+            mObserver.onChange(prefFileName, prefKey, prefValue, RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+        }
+    }
+}
@@ -1,7 +1,16 @@
 package com.crossbowffs.remotepreferences;
 
+import android.content.ContentValues;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Common utilities used to serialize and deserialize
@@ -41,6 +50,186 @@ import java.util.Set;
         throw new AssertionError("Unknown preference type: " + value.getClass());
     }
 
+    /**
+     * Returns the smallest string that is greater than every string
+     * starting with {@code prefix}, for use as the exclusive end of
+     * a key range.
+     *
+     * @param prefix The key prefix.
+     * @return The end of the range, or {@code null} if the range
+     *         is unbounded (i.e. the prefix is empty or only consists
+     *         of {@code '\uffff'} characters).
+     */
+    public static String getPrefixEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == '\uffff') {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char)(prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Returns the approximate size of a preference operation when it is
+     * written to a {@link android.os.Parcel}. This is only meant for
+     * keeping binder transactions under the size limit, so it errs on
+     * the side of overestimating.
+     *
+     * @param values The preference operation.
+     * @return The size of the operation, in bytes.
+     */
+    public static int estimateParcelSize(ContentValues values) {
+        int size = 16;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            size += 8 + 2 * entry.getKey().length();
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                size += 8 + 2 * ((String)value).length();
+            } else if (value instanceof byte[]) {
+                size += 8 + ((byte[])value).length;
+            } else {
+                size += 12;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Splits a batch of preference operations into chunks that are each
+     * at most {@code maxSize} bytes when parceled, keeping the operations
+     * in order. An operation that is larger than {@code maxSize} by itself
+     * gets its own chunk.
+     *
+     * @param values The preference operations.
+     * @param maxSize The maximum size of each chunk, in bytes.
+     * @return The chunks. If the batch fits in a single chunk, this
+     *         contains the original array.
+     */
+    public static List<ContentValues[]> splitBatch(ContentValues[] values, int maxSize) {
+        ArrayList<ContentValues[]> chunks = new ArrayList<ContentValues[]>();
+        int start = 0;
+        int chunkSize = 0;
+        for (int i = 0; i < values.length; ++i) {
+            int size = estimateParcelSize(values[i]);
+            if (i > start && chunkSize + size > maxSize) {
+                chunks.add(copyOfRange(values, start, i));
+                start = i;
+                chunkSize = 0;
+            }
+            chunkSize += size;
+        }
+        if (start == 0) {
+            chunks.add(values);
+        } else {
+            chunks.add(copyOfRange(values, start, values.length));
+        }
+        return chunks;
+    }
+
+    /**
+     * Equivalent to {@code Arrays.copyOfRange()}, which requires API 9.
+     */
+    private static ContentValues[] copyOfRange(ContentValues[] values, int start, int end) {
+        ContentValues[] copy = new ContentValues[end - start];
+        System.arraycopy(values, start, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * Returns the smallest string that is greater than {@code key},
+     * for use as the inclusive start of the page following {@code key}.
+     *
+     * @param key The last key of the previous page.
+     * @return The start of the next page.
+     */
+    public static String getKeyAfter(String key) {
+        return key + '\0';
+    }
+
+    /**
+     * Returns whether a key is within the specified range.
+     *
+     * @param key The preference key.
+     * @param fromKey The start of the range (inclusive), or {@code null}
+     *                if the range has no lower bound.
+     * @param toKey The end of the range (exclusive), or {@code null}
+     *              if the range has no upper bound.
+     * @return Whether the key is in the range.
+     */
+    public static boolean isInRange(String key, String fromKey, String toKey) {
+        return (fromKey == null || key.compareTo(fromKey) >= 0) &&
+               (toKey == null || key.compareTo(toKey) < 0);
+    }
+
+    /**
+     * Returns the preferences whose keys are within the specified range.
+     *
+     * @param values The preferences.
+     * @param fromKey See {@link #isInRange(String, String, String)}.
+     * @param toKey See {@link #isInRange(String, String, String)}.
+     * @param limit The maximum number of preferences to return, or 0
+     *              to return the entire range. If there are more, only
+     *              the first ones in key order are returned.
+     * @return A new map containing the preferences in the range.
+     */
+    public static SortedMap<String, Object> getRange(Map<String, ?> values, String fromKey, String toKey, int limit) {
+        TreeMap<String, Object> range = new TreeMap<String, Object>();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (entry.getValue() != null && isInRange(entry.getKey(), fromKey, toKey)) {
+                range.put(entry.getKey(), entry.getValue());
+                if (limit > 0 && range.size() > limit) {
+                    range.remove(range.lastKey());
+                }
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Returns the types of the specified preferences.
+     *
+     * @param values The preferences.
+     * @return A map from preference keys to their types, as
+     *         {@link RemoteContract}{@code .TYPE_*} constants.
+     */
+    public static Map<String, Integer> getPreferenceTypes(Map<String, ?> values) {
+        HashMap<String, Integer> types = new HashMap<String, Integer>(values.size());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                types.put(entry.getKey(), getPreferenceType(entry.getValue()));
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Returns the class of preference values of the specified type.
+     *
+     * @param type One of the {@link RemoteContract}{@code .TYPE_*} constants.
+     * @return The class of the preference values (i.e. {@link Set} for
+     *         string sets).
+     */
+    public static Class<?> getPreferenceClass(int type) {
+        switch (type) {
+        case RemoteContract.TYPE_STRING:
+            return String.class;
+        case RemoteContract.TYPE_STRING_SET:
+            return Set.class;
+        case RemoteContract.TYPE_INT:
+            return Integer.class;
+        case RemoteContract.TYPE_LONG:
+            return Long.class;
+        case RemoteContract.TYPE_FLOAT:
+            return Float.class;
+        case RemoteContract.TYPE_BOOLEAN:
+            return Boolean.class;
+        default:
+            throw new IllegalArgumentException("Unknown preference type: " + type);
+        }
+    }
+
     /**
      * Serializes the specified object to a format that is safe to use
      * with {@link android.content.ContentValues}. To recover the original
@@ -185,4 +374,118 @@ import java.util.Set;
 
         return stringSet;
     }
+
+    /**
+     * Serializes a preference map to a {@link Bundle}. Each preference
+     * is stored under its own key using the matching typed setter;
+     * string sets are stored as string array lists. To recover the
+     * original map, use {@link #deserializeBundle(Bundle)}.
+     *
+     * @param map The preference map to serialize.
+     * @return The serialized preferences.
+     */
+    public static Bundle serializeBundle(Map<String, ?> map) {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            switch (getPreferenceType(value)) {
+            case RemoteContract.TYPE_NULL:
+                break;
+            case RemoteContract.TYPE_STRING:
+                bundle.putString(key, (String)value);
+                break;
+            case RemoteContract.TYPE_STRING_SET:
+                bundle.putStringArrayList(key, new ArrayList<String>(castStringSet(value)));
+                break;
+            case RemoteContract.TYPE_INT:
+                bundle.putInt(key, (Integer)value);
+                break;
+            case RemoteContract.TYPE_LONG:
+                bundle.putLong(key, (Long)value);
+                break;
+            case RemoteContract.TYPE_FLOAT:
+                bundle.putFloat(key, (Float)value);
+                break;
+            case RemoteContract.TYPE_BOOLEAN:
+                bundle.putBoolean(key, (Boolean)value);
+                break;
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * Deserializes a preference map that was serialized using
+     * {@link #serializeBundle(Map)}.
+     *
+     * @param bundle The {@link Bundle} to deserialize.
+     * @return The deserialized preference map.
+     */
+    public static Map<String, Object> deserializeBundle(Bundle bundle) {
+        if (bundle == null) {
+            throw new IllegalArgumentException("Preference bundle is null");
+        }
+        HashMap<String, Object> map = new HashMap<String, Object>(bundle.size());
+        for (String key : bundle.keySet()) {
+            Object value = bundle.get(key);
+            if (value instanceof ArrayList<?>) {
+                value = new HashSet<String>(bundle.getStringArrayList(key));
+            }
+            map.put(key, value);
+        }
+        return map;
+    }
+
+    /**
+     * Serializes a preference value to a string, for use in URI query
+     * parameters. To recover the original value, use
+     * {@link #deserializeString(String, int)}.
+     *
+     * @param value The preference value.
+     * @return The serialized value, or {@code null} if {@code value} is {@code null}.
+     */
+    public static String serializeString(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof Set<?>) {
+            return serializeStringSet(castStringSet(value));
+        } else {
+            return value.toString();
+        }
+    }
+
+    /**
+     * Deserializes a preference value that was serialized using
+     * {@link #serializeString(Object)}. Throws an exception if the
+     * string is not a valid value of the specified type.
+     *
+     * @param value The serialized value.
+     * @param type The type of the value.
+     * @return The deserialized value.
+     */
+    public static Object deserializeString(String value, int type) {
+        if (type == RemoteContract.TYPE_NULL) {
+            return null;
+        } else if (value == null) {
+            throw new IllegalArgumentException("Expected non-null value");
+        }
+        switch (type) {
+        case RemoteContract.TYPE_STRING:
+            return value;
+        case RemoteContract.TYPE_STRING_SET:
+            return deserializeStringSet(value);
+        case RemoteContract.TYPE_INT:
+            return Integer.parseInt(value);
+        case RemoteContract.TYPE_LONG:
+            return Long.parseLong(value);
+        case RemoteContract.TYPE_FLOAT:
+            return Float.parseFloat(value);
+        case RemoteContract.TYPE_BOOLEAN:
+            if ("true".equals(value)) return true;
+            if ("false".equals(value)) return false;
+            throw new IllegalArgumentException("Invalid boolean: " + value);
+        }
+        throw new IllegalArgumentException("Unknown type: " + type);
+    }
 }
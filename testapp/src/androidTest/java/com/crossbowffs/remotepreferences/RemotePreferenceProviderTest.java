@@ -4,8 +4,12 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
@@ -17,7 +21,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 public class RemotePreferenceProviderTest {
@@ -98,6 +109,275 @@ public class RemotePreferenceProviderTest {
         Assert.assertEquals("foobar", q.getString(value));
     }
 
+    @Test
+    public void testReadSingleKeysOfEachType() {
+        HashSet<String> set = new HashSet<>();
+        set.add("foo");
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putInt("int", 1337)
+            .putLong("long", 1L << 40)
+            .putFloat("float", 3.14f)
+            .putBoolean("bool", true)
+            .putStringSet("set", set)
+            .commit();
+
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY);
+        String[] keys = {"string", "int", "long", "float", "bool", "set", "missing"};
+        Map<String, Object> values = provider.readPreferences(TestConstants.PREF_FILE, keys);
+        Assert.assertEquals(6, values.size());
+        Assert.assertEquals("foobar", values.get("string"));
+        Assert.assertEquals(1337, values.get("int"));
+        Assert.assertEquals(1L << 40, values.get("long"));
+        Assert.assertEquals(3.14f, values.get("float"));
+        Assert.assertEquals(true, values.get("bool"));
+        Assert.assertEquals(set, values.get("set"));
+    }
+
+    @Test
+    public void testQuerySelectedPrefs() {
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putInt("int", 1337)
+            .putLong("long", 1L)
+            .apply();
+
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        String[] keys = {"string", "int", "nonexistent"};
+        Cursor q = resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_KEYS, keys, null);
+        Assert.assertEquals(2, q.getCount());
+
+        int key = q.getColumnIndex(RemoteContract.COLUMN_KEY);
+        while (q.moveToNext()) {
+            String k = q.getString(key);
+            Assert.assertTrue(k.equals("string") || k.equals("int"));
+        }
+    }
+
+    @Test
+    public void testQueryPrefixPrefs() {
+        getSharedPreferences()
+            .edit()
+            .putString("account.name", "foobar")
+            .putInt("account.id", 1337)
+            .putLong("accounts", 1L)
+            .putBoolean("account", true)
+            .commit();
+
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        String[] prefix = {"account."};
+        Cursor q = resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_PREFIX, prefix, null);
+        Assert.assertEquals(2, q.getCount());
+
+        // Rows are returned in key order
+        int key = q.getColumnIndex(RemoteContract.COLUMN_KEY);
+        Assert.assertTrue(q.moveToNext());
+        Assert.assertEquals("account.id", q.getString(key));
+        Assert.assertTrue(q.moveToNext());
+        Assert.assertEquals("account.name", q.getString(key));
+        q.close();
+
+        // The key index must pick up changes made after it was built
+        getSharedPreferences()
+            .edit()
+            .putString("account.email", "foo@bar")
+            .remove("account.id")
+            .commit();
+        q = resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_PREFIX, prefix, null);
+        Assert.assertEquals(2, q.getCount());
+        Assert.assertTrue(q.moveToNext());
+        Assert.assertEquals("account.email", q.getString(key));
+        Assert.assertTrue(q.moveToNext());
+        Assert.assertEquals("account.name", q.getString(key));
+        q.close();
+    }
+
+    @Test
+    public void testQueryRangePrefs() {
+        getSharedPreferences()
+            .edit()
+            .putInt("a", 1)
+            .putInt("b", 2)
+            .putInt("c", 3)
+            .commit();
+
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        String[] range = {"b", null};
+        Cursor q = resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_RANGE, range, null);
+        Assert.assertEquals(2, q.getCount());
+        q.close();
+
+        range = new String[] {"a", "c"};
+        q = resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_RANGE, range, null);
+        Assert.assertEquals(2, q.getCount());
+        q.close();
+
+        range = new String[] {"c", "a"};
+        q = resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_RANGE, range, null);
+        Assert.assertEquals(0, q.getCount());
+        q.close();
+
+        // Page through the file, resuming after the last key
+        int key = 0;
+        range = new String[] {null, null, "2"};
+        q = resolver.query(getQueryUri(null), new String[] {RemoteContract.COLUMN_KEY}, RemoteContract.SELECTION_RANGE, range, null);
+        Assert.assertEquals(2, q.getCount());
+        Assert.assertTrue(q.moveToLast());
+        Assert.assertEquals("b", q.getString(key));
+        q.close();
+
+        range = new String[] {"b\0", null, "2"};
+        q = resolver.query(getQueryUri(null), new String[] {RemoteContract.COLUMN_KEY}, RemoteContract.SELECTION_RANGE, range, null);
+        Assert.assertEquals(1, q.getCount());
+        Assert.assertTrue(q.moveToFirst());
+        Assert.assertEquals("c", q.getString(key));
+        q.close();
+    }
+
+    @Test
+    public void testQueryRangePagesSeeNewWrites() {
+        SharedPreferences prefs = getSharedPreferences();
+        prefs.edit().putInt("a", 1).putInt("b", 2).putInt("c", 3).commit();
+
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        String[] range = {null, null, "2"};
+        Cursor q = resolver.query(getQueryUri(null), new String[] {RemoteContract.COLUMN_KEY}, RemoteContract.SELECTION_RANGE, range, null);
+        Assert.assertEquals(2, q.getCount());
+        q.close();
+
+        // Writes through the provider replace the sorted snapshot
+        // before the next page is read
+        ContentValues values = new ContentValues();
+        values.put(RemoteContract.COLUMN_KEY, "d");
+        values.put(RemoteContract.COLUMN_TYPE, RemoteContract.TYPE_INT);
+        values.put(RemoteContract.COLUMN_VALUE, 4);
+        resolver.insert(getQueryUri(null), values);
+
+        range = new String[] {"b\0", null, "2"};
+        q = resolver.query(getQueryUri(null), new String[] {RemoteContract.COLUMN_KEY}, RemoteContract.SELECTION_RANGE, range, null);
+        Assert.assertEquals(2, q.getCount());
+        Assert.assertTrue(q.moveToLast());
+        Assert.assertEquals("d", q.getString(0));
+        q.close();
+    }
+
+    @Test
+    public void testQueryRangeInvalidLimit() {
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        String[] range = {null, null, "abc"};
+        try {
+            resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_RANGE, range, null);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCallRead() {
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putInt("int", 1337)
+            .apply();
+
+        Bundle extras = new Bundle();
+        extras.putStringArray(RemoteContract.EXTRA_KEYS, new String[] {"int"});
+
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        Bundle result = resolver.call(getQueryUri(null), RemoteContract.METHOD_READ, TestConstants.PREF_FILE, extras);
+        Map<String, Object> values = RemoteUtils.deserializeBundle(result.getBundle(RemoteContract.EXTRA_VALUES));
+        Assert.assertEquals(1, values.size());
+        Assert.assertEquals(1337, values.get("int"));
+    }
+
+    @Test
+    public void testCallStagedWrite() {
+        ContentValues value1 = new ContentValues();
+        value1.put(RemoteContract.COLUMN_KEY, "string");
+        value1.put(RemoteContract.COLUMN_TYPE, RemoteContract.TYPE_STRING);
+        value1.put(RemoteContract.COLUMN_VALUE, "foobar");
+
+        ContentValues value2 = new ContentValues();
+        value2.put(RemoteContract.COLUMN_KEY, "int");
+        value2.put(RemoteContract.COLUMN_TYPE, RemoteContract.TYPE_INT);
+        value2.put(RemoteContract.COLUMN_VALUE, 1337);
+
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        Bundle result = resolver.call(getQueryUri(null), RemoteContract.METHOD_BEGIN, TestConstants.PREF_FILE, new Bundle());
+        String transaction = result.getString(RemoteContract.EXTRA_TRANSACTION);
+        Assert.assertNotNull(transaction);
+
+        for (ContentValues value : new ContentValues[] {value1, value2}) {
+            Bundle extras = new Bundle();
+            extras.putString(RemoteContract.EXTRA_TRANSACTION, transaction);
+            extras.putParcelableArray(RemoteContract.EXTRA_VALUES, new ContentValues[] {value});
+            resolver.call(getQueryUri(null), RemoteContract.METHOD_STAGE, TestConstants.PREF_FILE, extras);
+        }
+
+        // Staged values must not be visible until the commit
+        SharedPreferences prefs = getSharedPreferences();
+        Assert.assertEquals(0, prefs.getAll().size());
+
+        Bundle extras = new Bundle();
+        extras.putString(RemoteContract.EXTRA_TRANSACTION, transaction);
+        result = resolver.call(getQueryUri(null), RemoteContract.METHOD_COMMIT, TestConstants.PREF_FILE, extras);
+        Assert.assertTrue(result.getBoolean(RemoteContract.EXTRA_RESULT));
+        Assert.assertEquals("foobar", prefs.getString("string", null));
+        Assert.assertEquals(1337, prefs.getInt("int", 0));
+
+        // The transaction cannot be committed twice
+        try {
+            resolver.call(getQueryUri(null), RemoteContract.METHOD_COMMIT, TestConstants.PREF_FILE, extras);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCallStagedWriteLimits() {
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        List<String> transactions = new ArrayList<>();
+        try {
+            // Each caller may only have a few transactions open
+            try {
+                for (int i = 0; i < 100; ++i) {
+                    Bundle result = resolver.call(getQueryUri(null), RemoteContract.METHOD_BEGIN, TestConstants.PREF_FILE, new Bundle());
+                    transactions.add(result.getString(RemoteContract.EXTRA_TRANSACTION));
+                }
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+
+            // Each caller may only stage a limited amount of data
+            char[] chars = new char[3 * 1024 * 1024];
+            Arrays.fill(chars, 'x');
+            ContentValues value = new ContentValues();
+            value.put(RemoteContract.COLUMN_KEY, "string");
+            value.put(RemoteContract.COLUMN_TYPE, RemoteContract.TYPE_STRING);
+            value.put(RemoteContract.COLUMN_VALUE, new String(chars));
+            Bundle extras = new Bundle();
+            extras.putString(RemoteContract.EXTRA_TRANSACTION, transactions.get(0));
+            extras.putParcelableArray(RemoteContract.EXTRA_VALUES, new ContentValues[] {value});
+            try {
+                resolver.call(getQueryUri(null), RemoteContract.METHOD_STAGE, TestConstants.PREF_FILE, extras);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        } finally {
+            for (String transaction : transactions) {
+                Bundle extras = new Bundle();
+                extras.putString(RemoteContract.EXTRA_TRANSACTION, transaction);
+                resolver.call(getQueryUri(null), RemoteContract.METHOD_ABORT, TestConstants.PREF_FILE, extras);
+            }
+        }
+    }
+
     @Test
     public void testQueryFailPermissionCheck() {
         getSharedPreferences()
@@ -113,6 +393,31 @@ public class RemotePreferenceProviderTest {
         }
     }
 
+    @Test
+    public void testQuerySelectedFailPermissionCheck() {
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putString(TestConstants.UNREADABLE_PREF_KEY, "foobar")
+            .apply();
+        ContentResolver resolver = getLocalContext().getContentResolver();
+        String[] selectionArgs = {"string", TestConstants.UNREADABLE_PREF_KEY};
+
+        // Denials must not be forgotten when the decision is cached
+        for (int i = 0; i < 2; ++i) {
+            try {
+                resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_KEYS, selectionArgs, null);
+                Assert.fail();
+            } catch (SecurityException e) {
+                // Expected
+            }
+        }
+
+        Cursor q = resolver.query(getQueryUri(null), null, RemoteContract.SELECTION_KEYS, new String[] {"string"}, null);
+        Assert.assertEquals(1, q.getCount());
+        q.close();
+    }
+
     @Test
     public void testInsertPref() {
         ContentValues values = new ContentValues();
@@ -379,4 +684,142 @@ public class RemotePreferenceProviderTest {
 
         Assert.assertEquals(set, getSharedPreferences().getStringSet("pref", null));
     }
+
+    private Uri waitForChangeNotification(String key, Runnable change) throws InterruptedException {
+        HandlerThread ht = new HandlerThread(getClass().getName());
+        try {
+            ht.start();
+            final CountDownLatch latch = new CountDownLatch(1);
+            final Uri[] changedUri = new Uri[1];
+            ContentObserver observer = new ContentObserver(new Handler(ht.getLooper())) {
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    changedUri[0] = uri;
+                    latch.countDown();
+                }
+            };
+
+            ContentResolver resolver = getLocalContext().getContentResolver();
+            resolver.registerContentObserver(getQueryUri(key), false, observer);
+            try {
+                change.run();
+                Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+                return changedUri[0];
+            } finally {
+                resolver.unregisterContentObserver(observer);
+            }
+        } finally {
+            ht.quit();
+        }
+    }
+
+    @Test
+    public void testChangeNotificationWithValue() throws Exception {
+        Uri uri = waitForChangeNotification(TestConstants.PUBLIC_PREF_KEY, new Runnable() {
+            @Override
+            public void run() {
+                getSharedPreferences().edit().putInt(TestConstants.PUBLIC_PREF_KEY, 1337).apply();
+            }
+        });
+        Assert.assertEquals(String.valueOf(RemoteContract.TYPE_INT), uri.getQueryParameter(RemoteContract.PARAM_TYPE));
+        Assert.assertEquals("1337", uri.getQueryParameter(RemoteContract.PARAM_VALUE));
+    }
+
+    @Test
+    public void testChangeNotificationWithoutValue() throws Exception {
+        Uri uri = waitForChangeNotification("int", new Runnable() {
+            @Override
+            public void run() {
+                getSharedPreferences().edit().putInt("int", 1337).apply();
+            }
+        });
+        Assert.assertNull(uri.getQueryParameter(RemoteContract.PARAM_TYPE));
+        Assert.assertNull(uri.getQueryParameter(RemoteContract.PARAM_VALUE));
+    }
+
+    private static final String LAZY_AUTHORITY = "com.crossbowffs.remotepreferences.test.lazy";
+    private static final String LAZY_PREF_FILE = "lazy_prefs";
+
+    private SharedPreferences getLazySharedPreferences() {
+        return getRemoteContext().getSharedPreferences(LAZY_PREF_FILE, Context.MODE_PRIVATE);
+    }
+
+    private RemotePreferenceProvider createLazyProvider(final Executor preloadExecutor) {
+        getLazySharedPreferences().edit().clear().commit();
+        RemotePreferenceProvider provider = new RemotePreferenceProvider(LAZY_AUTHORITY, new RemotePreferenceFile[] {
+            new RemotePreferenceFile(LAZY_PREF_FILE, false, true)
+        }) {
+            @Override
+            protected Executor getPreloadExecutor() {
+                return preloadExecutor;
+            }
+        };
+        provider.attachInfo(getRemoteContext(), null);
+        return provider;
+    }
+
+    private void writeLazyPreference(int value) {
+        // Change callbacks run on the main thread
+        getLazySharedPreferences().edit().putInt("int", value).commit();
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+
+    @Test
+    public void testLazyFileOpenedOnFirstRead() {
+        RemotePreferenceProvider provider = createLazyProvider(null);
+        long generation = provider.getGeneration(LAZY_PREF_FILE);
+
+        // Nobody has accessed the file yet, so the provider is not
+        // listening for changes to it
+        writeLazyPreference(1);
+        Assert.assertEquals(generation, provider.getGeneration(LAZY_PREF_FILE));
+
+        Map<String, Object> values = provider.readPreferences(LAZY_PREF_FILE, new String[] {"int"});
+        Assert.assertEquals(1, values.get("int"));
+        writeLazyPreference(2);
+        Assert.assertTrue(provider.getGeneration(LAZY_PREF_FILE) > generation);
+    }
+
+    @Test
+    public void testLazyFileObservedBeforeFirstWrite() throws Exception {
+        RemotePreferenceProvider provider = createLazyProvider(null);
+        final CountDownLatch latch = new CountDownLatch(1);
+        RemotePreferenceTransport.Observer observer = new RemotePreferenceTransport.Observer() {
+            @Override
+            public void onChange(String prefFileName, String prefKey, Object value, long generation) {
+                if ("int".equals(prefKey)) {
+                    latch.countDown();
+                }
+            }
+        };
+
+        // Observing the file opens it, even though it was never read
+        provider.addLocalObserver(LAZY_PREF_FILE, observer);
+        try {
+            getLazySharedPreferences().edit().putInt("int", 1).commit();
+            Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        } finally {
+            provider.removeLocalObserver(LAZY_PREF_FILE, observer);
+        }
+    }
+
+    @Test
+    public void testLazyFilePreloaded() {
+        final List<Runnable> tasks = new ArrayList<>();
+        RemotePreferenceProvider provider = createLazyProvider(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        long generation = provider.getGeneration(LAZY_PREF_FILE);
+        Assert.assertEquals(1, tasks.size());
+
+        // The file is opened by the preload task, not by onCreate()
+        writeLazyPreference(1);
+        Assert.assertEquals(generation, provider.getGeneration(LAZY_PREF_FILE));
+        tasks.get(0).run();
+        writeLazyPreference(2);
+        Assert.assertTrue(provider.getGeneration(LAZY_PREF_FILE) > generation);
+    }
 }
@@ -1,7 +1,10 @@
 package com.crossbowffs.remotepreferences;
 
+import android.content.ComponentName;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -12,14 +15,32 @@ import androidx.test.platform.app.InstrumentationRegistry;
 
 import com.crossbowffs.remotepreferences.testapp.TestConstants;
 import com.crossbowffs.remotepreferences.testapp.TestPreferenceListener;
+import com.crossbowffs.remotepreferences.testapp.TestPreferenceService;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 @RunWith(AndroidJUnit4.class)
 public class RemotePreferencesTest {
@@ -36,21 +57,38 @@ public class RemotePreferencesTest {
         return context.getSharedPreferences(TestConstants.PREF_FILE, Context.MODE_PRIVATE);
     }
 
+    private static RemotePreferenceOptions getOptions(boolean strictMode) {
+        // The provider runs in the same process as the tests, so the default
+        // transport would skip the cursor protocol entirely. Tests that are
+        // about a specific transport choose it explicitly.
+        return new RemotePreferenceOptions()
+            .setStrictMode(strictMode)
+            .setTransport(RemotePreferenceOptions.TRANSPORT_CURSOR);
+    }
+
     private RemotePreferences getRemotePreferences(boolean strictMode) {
         // This is not a typo! We are using the LOCAL context to initialize a REMOTE prefs
         // instance. This is the whole point of RemotePreferences!
         Context context = getLocalContext();
-        return new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, strictMode);
+        return new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, getOptions(strictMode));
+    }
+
+    private RemotePreferences getRemotePreferencesWithTransport(int transport) {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = new RemotePreferenceOptions()
+            .setStrictMode(true)
+            .setTransport(transport);
+        return new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
     }
 
     private RemotePreferences getDisabledRemotePreferences(boolean strictMode) {
         Context context = getLocalContext();
-        return new RemotePreferences(context, TestConstants.AUTHORITY_DISABLED, TestConstants.PREF_FILE, strictMode);
+        return new RemotePreferences(context, TestConstants.AUTHORITY_DISABLED, TestConstants.PREF_FILE, getOptions(strictMode));
     }
 
     private RemotePreferences getRemotePreferencesWithHandler(Handler handler, boolean strictMode) {
         Context context = getLocalContext();
-        return new RemotePreferences(context, handler, TestConstants.AUTHORITY, TestConstants.PREF_FILE, strictMode);
+        return new RemotePreferences(context, handler, TestConstants.AUTHORITY, TestConstants.PREF_FILE, getOptions(strictMode));
     }
 
     @Before
@@ -124,6 +162,37 @@ public class RemotePreferencesTest {
         Assert.assertEquals(0, remotePrefs.getInt("int", 0));
     }
 
+    @Test
+    public void testEditorOperationOrder() {
+        SharedPreferences sharedPrefs = getSharedPreferences();
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putInt("int", 0xeceb3026)
+            .putBoolean("bool", true)
+            .apply();
+
+        // The last put to a key wins, removes never undo a put in the
+        // same batch, and clear happens before everything else
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+        remotePrefs
+            .edit()
+            .putInt("int", 1)
+            .putInt("int", 2)
+            .putString("string", "baz")
+            .remove("string")
+            .remove("bool")
+            .putLong("long", 3L)
+            .clear()
+            .commit();
+
+        Assert.assertEquals(3, sharedPrefs.getAll().size());
+        Assert.assertEquals(2, sharedPrefs.getInt("int", 0));
+        Assert.assertEquals("baz", sharedPrefs.getString("string", null));
+        Assert.assertEquals(3L, sharedPrefs.getLong("long", 0L));
+        Assert.assertFalse(sharedPrefs.contains("bool"));
+    }
+
     @Test
     public void testGetAll() {
         getSharedPreferences()
@@ -325,10 +394,948 @@ public class RemotePreferencesTest {
         }
     }
 
+    @Test
+    public void testLocalProviderDetected() {
+        // Instrumentation tests run in the same process as the test app,
+        // so the enabled provider should be reachable without IPC.
+        Assert.assertNotNull(RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY));
+        Assert.assertNull(RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY_DISABLED));
+    }
+
+    @Test
+    public void testLocalReadDoesNotShareStringSet() {
+        HashSet<String> set = new HashSet<>();
+        set.add("foo");
+
+        getSharedPreferences()
+            .edit()
+            .putStringSet("pref", set)
+            .apply();
+
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+        remotePrefs.getStringSet("pref", null).add("bar");
+        Assert.assertEquals(set, getSharedPreferences().getStringSet("pref", null));
+    }
+
+    private void checkTransportReadWrite(int transport) {
+        HashSet<String> set = new HashSet<>();
+        set.add("foo");
+        set.add("bar;");
+
+        RemotePreferences remotePrefs = getRemotePreferencesWithTransport(transport);
+        Assert.assertTrue(
+            remotePrefs
+                .edit()
+                .putString("string", "foobar")
+                .putInt("int", 0xeceb3026)
+                .putBoolean("bool", true)
+                .putStringSet("set", set)
+                .commit()
+        );
+
+        Assert.assertEquals("foobar", remotePrefs.getString("string", null));
+        Assert.assertEquals(0xeceb3026, remotePrefs.getInt("int", 0));
+        Assert.assertEquals(true, remotePrefs.getBoolean("bool", false));
+        Assert.assertEquals(set, remotePrefs.getStringSet("set", null));
+        Assert.assertFalse(remotePrefs.contains("nonexistent"));
+        Assert.assertEquals(4, remotePrefs.getAll().size());
+        Assert.assertEquals("foobar", getSharedPreferences().getString("string", null));
+
+        Assert.assertEquals(getSharedPreferences().getAll().keySet(), remotePrefs.keySet());
+        Map<String, Class<?>> types = remotePrefs.getTypes();
+        Assert.assertEquals(4, types.size());
+        Assert.assertEquals(String.class, types.get("string"));
+        Assert.assertEquals(Integer.class, types.get("int"));
+        Assert.assertEquals(Boolean.class, types.get("bool"));
+        Assert.assertEquals(Set.class, types.get("set"));
+
+        Map<String, ?> prefixed = remotePrefs.getAllWithPrefix("s");
+        Assert.assertEquals(2, prefixed.size());
+        Assert.assertEquals("foobar", prefixed.get("string"));
+        Assert.assertEquals(set, prefixed.get("set"));
+        Assert.assertTrue(remotePrefs.getAllWithPrefix("nonexistent").isEmpty());
+
+        ArrayList<String> scanned = new ArrayList<>();
+        Iterator<Map.Entry<String, ?>> it = remotePrefs.scan(3);
+        while (it.hasNext()) {
+            Map.Entry<String, ?> entry = it.next();
+            Assert.assertEquals(getSharedPreferences().getAll().get(entry.getKey()), entry.getValue());
+            scanned.add(entry.getKey());
+        }
+        Assert.assertEquals(Arrays.asList("bool", "int", "set", "string"), scanned);
+    }
+
+    @Test
+    public void testRangeSeesWritesFromOtherThreads() throws Exception {
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+        getSharedPreferences().edit().putString("prefix.a", "a").commit();
+        Assert.assertEquals(1, remotePrefs.getAllWithPrefix("prefix.").size());
+
+        // The SharedPreferences listener for this write is posted to the
+        // main thread, but the value is already in memory when commit()
+        // returns, so range queries must see it immediately
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    getSharedPreferences().edit().putString("prefix.b", "b").commit();
+                }
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<String, ?> prefixed = remotePrefs.getAllWithPrefix("prefix.");
+        Assert.assertEquals(2, prefixed.size());
+        Assert.assertEquals("b", prefixed.get("prefix.b"));
+    }
+
+    @Test
+    public void testCursorTransport() {
+        checkTransportReadWrite(RemotePreferenceOptions.TRANSPORT_CURSOR);
+    }
+
+    @Test
+    public void testCallTransport() {
+        checkTransportReadWrite(RemotePreferenceOptions.TRANSPORT_CALL);
+    }
+
+    @Test
+    public void testLocalTransport() {
+        checkTransportReadWrite(RemotePreferenceOptions.TRANSPORT_LOCAL);
+    }
+
+    @Test
+    public void testServiceTransport() {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = new RemotePreferenceOptions()
+            .setStrictMode(true)
+            .setTransport(RemotePreferenceOptions.TRANSPORT_SERVICE)
+            .setServiceComponent(new ComponentName(getRemoteContext(), TestPreferenceService.class));
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+
+        // Reads are served by the cursor transport until the service
+        // connects, so the results should be the same either way.
+        remotePrefs.edit().putString("string", "foobar").commit();
+        Assert.assertEquals("foobar", remotePrefs.getString("string", null));
+        Assert.assertEquals("foobar", getSharedPreferences().getString("string", null));
+    }
+
+    @Test
+    public void testServiceTransportConnected() throws Exception {
+        // The fallback fails every request, so anything that succeeds
+        // must have gone through the service
+        ComponentName component = new ComponentName(getRemoteContext(), TestPreferenceService.class);
+        RemotePreferenceTransport transport = new RemoteServiceTransport(getLocalContext(), component,
+            new RemoteLocalTransport("invalid", null));
+        getSharedPreferences().edit().putString("string", "foo").commit();
+
+        // Binding is asynchronous
+        Object value = null;
+        for (int i = 0; i < 50 && value == null; ++i) {
+            try {
+                value = transport.readOne(TestConstants.PREF_FILE, "string");
+            } catch (RemotePreferenceAccessException e) {
+                Thread.sleep(100);
+            }
+        }
+        Assert.assertEquals("foo", value);
+
+        ContentValues values = new ContentValues();
+        values.put(RemoteContract.COLUMN_KEY, "int");
+        values.put(RemoteContract.COLUMN_TYPE, RemoteContract.TYPE_INT);
+        values.put(RemoteContract.COLUMN_VALUE, 1337);
+        Assert.assertTrue(transport.writeBatch(TestConstants.PREF_FILE, new ContentValues[] {values}) != RemotePreferenceTransport.WRITE_FAILED);
+        Assert.assertEquals(1337, getSharedPreferences().getInt("int", 0));
+
+        Map<String, Object> many = transport.readMany(TestConstants.PREF_FILE, new String[] {"string", "int", "nonexistent"}).getValues();
+        Assert.assertEquals(2, many.size());
+        Assert.assertEquals(1337, many.get("int"));
+        Assert.assertEquals(2, transport.readAll(TestConstants.PREF_FILE).getValues().size());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        RemotePreferenceTransport.Observer observer = new RemotePreferenceTransport.Observer() {
+            @Override
+            public void onChange(String prefFileName, String prefKey, Object value, long generation) {
+                if ("string".equals(prefKey)) {
+                    latch.countDown();
+                }
+            }
+        };
+        transport.addObserver(TestConstants.PREF_FILE, observer);
+        try {
+            getSharedPreferences().edit().putString("string", "bar").commit();
+            Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        } finally {
+            transport.removeObserver(TestConstants.PREF_FILE, observer);
+        }
+    }
+
+    private Map<String, Object> createLargeValues() {
+        // Large enough to need several chunks, and larger than
+        // what fits in a single binder transaction
+        char[] chars = new char[1024];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        HashMap<String, Object> values = new HashMap<>();
+        for (int i = 0; i < 1000; ++i) {
+            values.put("key" + i, value + i);
+        }
+        return values;
+    }
+
+    private void checkLargeCommit(int transport) {
+        Map<String, Object> values = createLargeValues();
+        RemotePreferences remotePrefs = getRemotePreferencesWithTransport(transport);
+        Assert.assertTrue(remotePrefs.edit().putAll(values).putInt("int", 1337).commit());
+
+        SharedPreferences sharedPrefs = getSharedPreferences();
+        Assert.assertEquals(1001, sharedPrefs.getAll().size());
+        Assert.assertEquals(values.get("key999"), sharedPrefs.getString("key999", null));
+        Assert.assertEquals(1337, sharedPrefs.getInt("int", 0));
+    }
+
+    @Test
+    public void testLargeCommitCursorTransport() {
+        checkLargeCommit(RemotePreferenceOptions.TRANSPORT_CURSOR);
+    }
+
+    @Test
+    public void testLargeCommitCallTransport() {
+        checkLargeCommit(RemotePreferenceOptions.TRANSPORT_CALL);
+    }
+
+    @Test
+    public void testLargeCommitUnwritablePref() {
+        Map<String, Object> values = createLargeValues();
+        values.put(TestConstants.UNWRITABLE_PREF_KEY, "foobar");
+
+        // Nothing may be written if any chunk is rejected
+        RemotePreferences remotePrefs = getRemotePreferencesWithTransport(RemotePreferenceOptions.TRANSPORT_CALL);
+        try {
+            remotePrefs.edit().putAll(values).commit();
+            Assert.fail();
+        } catch (RemotePreferenceAccessException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, getSharedPreferences().getAll().size());
+    }
+
+    @Test
+    public void testCallTransportUnreadablePref() {
+        RemotePreferences remotePrefs = getRemotePreferencesWithTransport(RemotePreferenceOptions.TRANSPORT_CALL);
+        try {
+            remotePrefs.getString(TestConstants.UNREADABLE_PREF_KEY, null);
+            Assert.fail();
+        } catch (RemotePreferenceAccessException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testAsyncRead() throws Exception {
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putInt("int", 0xeceb3026)
+            .apply();
+
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+        Assert.assertEquals("foobar", remotePrefs.getStringAsync("string", null).get());
+        Assert.assertEquals(0xeceb3026, (int)remotePrefs.getIntAsync("int", 0).get());
+        Assert.assertEquals(1, (int)remotePrefs.getIntAsync("nonexistent", 1).get());
+    }
+
+    @Test
+    public void testAsyncReadSharesRequest() throws Exception {
+        getSharedPreferences().edit().putInt("int", 42).apply();
+
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+        Future<Integer> first = remotePrefs.getIntAsync("int", 0);
+        Future<Integer> second = remotePrefs.getIntAsync("int", 1);
+        Assert.assertEquals(42, (int)first.get());
+        Assert.assertEquals(42, (int)second.get());
+    }
+
+    @Test
+    public void testAsyncReadTypeMismatch() throws Exception {
+        getSharedPreferences().edit().putString("string", "foobar").apply();
+
+        RemotePreferences remotePrefs = getRemotePreferences(false);
+        try {
+            remotePrefs.getIntAsync("string", 0).get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ClassCastException);
+        }
+    }
+
+    @Test
+    public void testAsyncReadInvalidAuthority() throws Exception {
+        Context context = getLocalContext();
+        RemotePreferences remotePrefs = new RemotePreferences(context, "foo", "bar", getOptions(false));
+        Assert.assertEquals("default", remotePrefs.getStringAsync("pref", "default").get());
+
+        remotePrefs = new RemotePreferences(context, "foo", "bar", getOptions(true));
+        try {
+            remotePrefs.getStringAsync("pref", null).get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RemotePreferenceAccessException);
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putBoolean("bool", true)
+            .apply();
+
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+        Future<Map<String, ?>> prefetch = remotePrefs.prefetch("string", "bool", "nonexistent");
+        Future<String> pending = remotePrefs.getStringAsync("string", null);
+        Map<String, ?> prefs = prefetch.get();
+        Assert.assertEquals(2, prefs.size());
+        Assert.assertEquals("foobar", prefs.get("string"));
+        Assert.assertEquals(true, prefs.get("bool"));
+        Assert.assertEquals("foobar", pending.get());
+    }
+
+    @Test
+    public void testGetSnapshot() {
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putInt("int", 1)
+            .putBoolean("bool", true)
+            .commit();
+
+        // Commits made directly through SharedPreferences bump the
+        // generation when the provider's change callback runs on the
+        // main thread, so wait for it before comparing generations
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+        RemotePreferenceSnapshot snapshot = remotePrefs.getSnapshot("string", "int", "nonexistent");
+        Assert.assertEquals(2, snapshot.getValues().size());
+        Assert.assertEquals("foobar", snapshot.getValues().get("string"));
+        Assert.assertEquals(1, snapshot.getValues().get("int"));
+        Assert.assertTrue(snapshot.getGeneration() != RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+        Assert.assertEquals(snapshot.getGeneration(), remotePrefs.getSnapshot("bool").getGeneration());
+
+        getSharedPreferences().edit().putInt("int", 2).commit();
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        RemotePreferenceSnapshot newSnapshot = remotePrefs.getSnapshot("string", "int");
+        Assert.assertEquals(2, newSnapshot.getValues().get("int"));
+        Assert.assertTrue(newSnapshot.getGeneration() > snapshot.getGeneration());
+    }
+
+    @Test
+    public void testWriteReturnsGeneration() {
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY);
+        ContentValues values = new ContentValues();
+        values.put(RemoteContract.COLUMN_KEY, "string");
+        values.put(RemoteContract.COLUMN_TYPE, RemoteContract.TYPE_STRING);
+        values.put(RemoteContract.COLUMN_VALUE, "foobar");
+
+        // The generation belongs to the commit itself, so a snapshot
+        // containing the new value can never be older than it
+        long generation = provider.writePreferences(TestConstants.PREF_FILE, new ContentValues[] {values});
+        Assert.assertTrue(generation != RemotePreferenceTransport.WRITE_FAILED);
+        Assert.assertTrue(generation != RemotePreferenceSnapshot.UNKNOWN_GENERATION);
+        RemotePreferenceSnapshot snapshot = provider.readSnapshot(TestConstants.PREF_FILE, new String[] {"string"});
+        Assert.assertEquals("foobar", snapshot.getValues().get("string"));
+        Assert.assertTrue(snapshot.getGeneration() >= generation);
+    }
+
+    @Test
+    public void testGenerationBumpedOncePerCommit() {
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY);
+        RemotePreferences remotePrefs = getRemotePreferences(true);
+
+        // Wait for the notification of a first write, so that any
+        // callbacks from earlier writes have been handled
+        TestPreferenceListener listener = new TestPreferenceListener();
+        remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+        try {
+            remotePrefs.edit().putString("string", "foo").commit();
+            Assert.assertTrue(listener.waitForChange(1));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+
+        long generation = provider.getGeneration(TestConstants.PREF_FILE);
+        listener = new TestPreferenceListener();
+        remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+        try {
+            remotePrefs.edit().putString("string", "bar").putInt("int", 1).putBoolean("bool", true).commit();
+            Assert.assertTrue(listener.waitForChange(1));
+            Assert.assertEquals(generation + 1, provider.getGeneration(TestConstants.PREF_FILE));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+    }
+
+    @Test
+    public void testReadFiles() {
+        String otherPrefFileName = "other_prefs";
+        SharedPreferences otherSharedPrefs = getRemoteContext().getSharedPreferences(otherPrefFileName, Context.MODE_PRIVATE);
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY);
+        provider.registerFile(new RemotePreferenceFile(otherPrefFileName, false));
+        try {
+            getSharedPreferences().edit().putString("string", "foobar").putInt("int", 1).commit();
+            otherSharedPrefs.edit().putBoolean("bool", true).commit();
+
+            Map<String, String[]> prefKeys = new HashMap<>();
+            prefKeys.put(TestConstants.PREF_FILE, new String[] {"string", "nonexistent"});
+            prefKeys.put(otherPrefFileName, null);
+            Map<String, RemotePreferenceSnapshot> snapshots = RemotePreferences.readFiles(getLocalContext(), TestConstants.AUTHORITY, prefKeys);
+            Assert.assertEquals(2, snapshots.size());
+            Assert.assertEquals(1, snapshots.get(TestConstants.PREF_FILE).getValues().size());
+            Assert.assertEquals("foobar", snapshots.get(TestConstants.PREF_FILE).getValues().get("string"));
+            Assert.assertEquals(1, snapshots.get(otherPrefFileName).getValues().size());
+            Assert.assertEquals(true, snapshots.get(otherPrefFileName).getValues().get("bool"));
+
+            // Same thing, but through a single call() instead of the local provider
+            String[] prefFileNames = {TestConstants.PREF_FILE, otherPrefFileName};
+            Map<String, RemotePreferenceSnapshot> remoteSnapshots = new RemoteCallTransport(getLocalContext(), TestConstants.AUTHORITY)
+                .readFiles(prefFileNames, new String[][] {null, null});
+            Assert.assertEquals(2, remoteSnapshots.get(TestConstants.PREF_FILE).getValues().size());
+            Assert.assertEquals(true, remoteSnapshots.get(otherPrefFileName).getValues().get("bool"));
+            Assert.assertEquals(provider.getGeneration(otherPrefFileName), remoteSnapshots.get(otherPrefFileName).getGeneration());
+
+            try {
+                RemotePreferences.readFiles(getLocalContext(), TestConstants.AUTHORITY, TestConstants.PREF_FILE, "nonexistent_prefs");
+                Assert.fail();
+            } catch (RemotePreferenceAccessException e) {
+                // Expected
+            }
+        } finally {
+            provider.unregisterFile(otherPrefFileName);
+            otherSharedPrefs.edit().clear().commit();
+        }
+    }
+
+    @Test
+    public void testReadFilesLegacyProvider() {
+        getSharedPreferences().edit().putString("string", "foobar").putInt("int", 1).commit();
+
+        // The provider does not support reading several files at
+        // once, so they should be read one at a time instead
+        RemoteCallTransport transport = new RemoteCallTransport(getLocalContext(), TestConstants.AUTHORITY_LEGACY);
+        Map<String, RemotePreferenceSnapshot> snapshots = transport.readFiles(
+            new String[] {TestConstants.PREF_FILE}, new String[][] {new String[] {"string"}});
+        Assert.assertEquals(1, snapshots.size());
+        Assert.assertEquals(1, snapshots.get(TestConstants.PREF_FILE).getValues().size());
+        Assert.assertEquals("foobar", snapshots.get(TestConstants.PREF_FILE).getValues().get("string"));
+    }
+
+    @Test
+    public void testMultiFileTransaction() {
+        String otherPrefFileName = "other_prefs";
+        SharedPreferences otherSharedPrefs = getRemoteContext().getSharedPreferences(otherPrefFileName, Context.MODE_PRIVATE);
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY);
+        provider.registerFile(new RemotePreferenceFile(otherPrefFileName, false));
+        try {
+            Context context = getLocalContext();
+            RemotePreferences remotePrefs = getRemotePreferences(true);
+            RemotePreferences otherRemotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, otherPrefFileName, getOptions(true));
+
+            RemotePreferences.Transaction transaction = RemotePreferences.beginTransaction();
+            transaction.edit(remotePrefs).putString("string", "foobar");
+            transaction.edit(otherRemotePrefs).putInt("int", 1);
+            Assert.assertTrue(transaction.commit());
+            Assert.assertEquals("foobar", getSharedPreferences().getString("string", null));
+            Assert.assertEquals(1, otherSharedPrefs.getInt("int", 0));
+
+            // If any file cannot be written, none of them are
+            transaction = RemotePreferences.beginTransaction();
+            transaction.edit(remotePrefs).putString("string", "bar");
+            transaction.edit(otherRemotePrefs).putInt(TestConstants.UNWRITABLE_PREF_KEY, 2);
+            try {
+                transaction.commit();
+                Assert.fail();
+            } catch (RemotePreferenceAccessException e) {
+                // Expected
+            }
+            Assert.assertEquals("foobar", getSharedPreferences().getString("string", null));
+            Assert.assertFalse(otherSharedPrefs.contains(TestConstants.UNWRITABLE_PREF_KEY));
+
+            try {
+                transaction.edit(remotePrefs).commit();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        } finally {
+            provider.unregisterFile(otherPrefFileName);
+            otherSharedPrefs.edit().clear().commit();
+        }
+    }
+
+    @Test
+    public void testDynamicFileRegistration() {
+        String prefFileName = "dynamic_prefs_1";
+        Context context = getLocalContext();
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY);
+        RemotePreferenceFileResolver resolver = provider.registerFilePattern(Pattern.compile("dynamic_prefs_\\d+"), false);
+        try {
+            RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, prefFileName, getOptions(true));
+            remotePrefs.edit().putString("string", "foobar").commit();
+            SharedPreferences sharedPrefs = getRemoteContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE);
+            Assert.assertEquals("foobar", sharedPrefs.getString("string", null));
+
+            provider.unregisterFileResolver(resolver);
+            Assert.assertTrue(provider.unregisterFile(prefFileName));
+            try {
+                remotePrefs.getString("string", null);
+                Assert.fail();
+            } catch (RemotePreferenceAccessException e) {
+                // Expected
+            }
+
+            provider.registerFile(new RemotePreferenceFile(prefFileName, false));
+            Assert.assertEquals("foobar", remotePrefs.getString("string", null));
+            Assert.assertTrue(provider.unregisterFile(prefFileName));
+            Assert.assertFalse(provider.unregisterFile(prefFileName));
+        } finally {
+            provider.unregisterFileResolver(resolver);
+            provider.unregisterFile(prefFileName);
+            getRemoteContext().getSharedPreferences(prefFileName, Context.MODE_PRIVATE).edit().clear().commit();
+        }
+    }
+
+    @Test
+    public void testDeniedAccessDoesNotExposeFile() {
+        String prefFileName = "dynamic_prefs_2";
+        Context context = getLocalContext();
+        RemotePreferenceProvider provider = RemotePreferenceProvider.getLocalProvider(TestConstants.AUTHORITY);
+        RemotePreferenceFileResolver resolver = provider.registerFilePattern(Pattern.compile("dynamic_prefs_\\d+"), false);
+        try {
+            Assert.assertEquals(RemotePreferenceSnapshot.UNKNOWN_GENERATION, provider.getGeneration(prefFileName));
+
+            RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, prefFileName, getOptions(true));
+            try {
+                remotePrefs.edit().putInt(TestConstants.UNWRITABLE_PREF_KEY, 1).commit();
+                Assert.fail();
+            } catch (RemotePreferenceAccessException e) {
+                // Expected
+            }
+            Assert.assertFalse(provider.unregisterFile(prefFileName));
+        } finally {
+            provider.unregisterFileResolver(resolver);
+            provider.unregisterFile(prefFileName);
+        }
+    }
+
+    @Test
+    public void testCacheInvalidation() throws Exception {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setCacheEnabled(true);
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+
+        getSharedPreferences().edit().putString("string", "foo").commit();
+        remotePrefs.prefetch("string").get();
+        Assert.assertEquals("foo", remotePrefs.getString("string", null));
+
+        // The cache is invalidated before listeners are notified
+        TestPreferenceListener listener = new TestPreferenceListener();
+        remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+        try {
+            getSharedPreferences().edit().putString("string", "bar").commit();
+            Assert.assertTrue(listener.waitForChange(1));
+            Assert.assertEquals("bar", remotePrefs.getString("string", null));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+
+        remotePrefs.edit().remove("string").commit();
+        Assert.assertNull(remotePrefs.getString("string", null));
+    }
+
+    @Test
+    public void testCacheInvalidationOnClear() throws Exception {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setCacheEnabled(true);
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+
+        // Cache both a missing key and the entire file
+        getSharedPreferences().edit().putString("string", "foo").commit();
+        Assert.assertNull(remotePrefs.getString("missing", null));
+        Assert.assertEquals("foo", remotePrefs.getAll().get("string"));
+
+        // Clearing does not trigger the SharedPreferences listener
+        // before API 30, so the provider must send the notification
+        TestPreferenceListener listener = new TestPreferenceListener();
+        remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+        try {
+            getRemotePreferences(true).edit().clear().putString("missing", "bar").commit();
+            Assert.assertTrue(listener.waitForChange(1));
+            Assert.assertEquals("bar", remotePrefs.getString("missing", null));
+            Map<String, ?> prefs = remotePrefs.getAll();
+            Assert.assertFalse(prefs.containsKey("string"));
+            Assert.assertEquals("bar", prefs.get("missing"));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+    }
+
+    private RemotePreferences getPersistentRemotePreferences() {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setPersistentCacheEnabled(true);
+        return new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+    }
+
+    @Test
+    public void testPersistentCache() throws Exception {
+        File cacheDir = new File(getLocalContext().getCacheDir(), "remotepreferences");
+        File[] oldFiles = cacheDir.listFiles();
+        if (oldFiles != null) {
+            for (File file : oldFiles) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+
+        getSharedPreferences().edit().putString("string", "foo").putInt("int", 1).commit();
+        Assert.assertEquals(2, getPersistentRemotePreferences().getAll().size());
+
+        // The snapshot is saved in the background
+        for (int i = 0; i < 50; ++i) {
+            File[] files = cacheDir.listFiles();
+            if (files != null && files.length == 1 && !files[0].getName().contains(".tmp")) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        // Simulate a change while no client was running
+        getSharedPreferences().edit().putString("string", "bar").commit();
+
+        RemotePreferences remotePrefs = getPersistentRemotePreferences();
+        TestPreferenceListener listener = new TestPreferenceListener();
+        remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+        try {
+            // Served from the snapshot, then fixed up by revalidation
+            Assert.assertEquals(1, remotePrefs.getInt("int", 0));
+            Assert.assertTrue(listener.waitForChange(1));
+            Assert.assertEquals("string", listener.getKey());
+            Assert.assertEquals("bar", remotePrefs.getString("string", null));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+    }
+
+    private static void writeInts(File file, int... values) throws Exception {
+        Assert.assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testCorruptPersistentCache() throws Exception {
+        Context context = getLocalContext();
+        File file = new File(new File(context.getCacheDir(), "remotepreferences"), Uri.encode("corrupt/prefs"));
+        RemotePreferenceDiskCache diskCache = new RemotePreferenceDiskCache(context, "corrupt", "prefs");
+
+        // Magic, version, generation (two ints), then an entry count
+        // that is larger than the file
+        writeInts(file, 0x52505363, 1, 0, 1, Integer.MAX_VALUE);
+        Assert.assertNull(diskCache.load(Long.MAX_VALUE));
+        Assert.assertFalse(file.exists());
+
+        // One entry whose key has a negative length
+        writeInts(file, 0x52505363, 1, 0, 1, 1, -5);
+        Assert.assertNull(diskCache.load(Long.MAX_VALUE));
+        Assert.assertFalse(file.exists());
+    }
+
+    private RemotePreferences getAdaptivePrefetchRemotePreferences() {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setAdaptivePrefetchEnabled(true);
+        return new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+    }
+
+    @Test
+    public void testCorruptKeyProfile() throws Exception {
+        Context context = getLocalContext();
+        File file = new File(new File(context.getCacheDir(), "remotepreferences_profiles"),
+            Uri.encode(TestConstants.AUTHORITY + "/" + TestConstants.PREF_FILE));
+
+        // Magic, version, then a key whose length is negative
+        writeInts(file, 0x5250486b, 1, 1, -5);
+        RemotePreferenceKeyProfile profile = new RemotePreferenceKeyProfile(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE);
+        Assert.assertEquals(0, profile.load().length);
+        Assert.assertFalse(file.exists());
+
+        // Reads must not be affected by the corrupted profile
+        writeInts(file, 0x5250486b, 1, Integer.MAX_VALUE);
+        getSharedPreferences().edit().putInt("int", 1).commit();
+        Assert.assertEquals(1, getAdaptivePrefetchRemotePreferences().getInt("int", 0));
+    }
+
+    @Test
+    public void testAdaptivePrefetch() throws Exception {
+        File profileDir = new File(getLocalContext().getCacheDir(), "remotepreferences_profiles");
+        File[] oldFiles = profileDir.listFiles();
+        if (oldFiles != null) {
+            for (File file : oldFiles) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foo")
+            .putInt("int", 1)
+            .putBoolean(TestConstants.UNREADABLE_PREF_KEY, true)
+            .commit();
+
+        RemotePreferences remotePrefs = getAdaptivePrefetchRemotePreferences();
+        for (int i = 0; i < 8; ++i) {
+            try {
+                remotePrefs.getBoolean(TestConstants.UNREADABLE_PREF_KEY, false);
+                Assert.fail();
+            } catch (RemotePreferenceAccessException e) {
+                // Expected
+            }
+            Assert.assertEquals(1, remotePrefs.getInt("int", 0));
+        }
+
+        // The profile is saved in the background
+        for (int i = 0; i < 50; ++i) {
+            File[] files = profileDir.listFiles();
+            if (files != null && files.length == 1 && !files[0].getName().contains(".tmp")) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        // The hot keys include one that the provider refuses to
+        // return, which must not break reads of the other keys
+        remotePrefs = getAdaptivePrefetchRemotePreferences();
+        Assert.assertEquals("foo", remotePrefs.getString("string", null));
+        Assert.assertEquals(1, remotePrefs.getInt("int", 0));
+        Assert.assertEquals(1, (int)remotePrefs.getIntAsync("int", 0).get());
+
+        remotePrefs = getAdaptivePrefetchRemotePreferences();
+        Assert.assertEquals(1, remotePrefs.getInt("int", 0));
+        Assert.assertEquals("foo", remotePrefs.getString("string", null));
+    }
+
+    @Test
+    public void testSharedInstance() {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = new RemotePreferenceOptions().setCacheEnabled(true);
+        RemotePreferences remotePrefs = RemotePreferences.get(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+
+        // Equal options share an instance, even if the caller
+        // modifies its options object afterwards
+        Assert.assertSame(remotePrefs, RemotePreferences.get(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE,
+            new RemotePreferenceOptions().setCacheEnabled(true)));
+        options.setStrictMode(true);
+        Assert.assertSame(remotePrefs, RemotePreferences.get(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE,
+            new RemotePreferenceOptions().setCacheEnabled(true)));
+        Assert.assertNotSame(remotePrefs, RemotePreferences.get(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options));
+        Assert.assertNotSame(remotePrefs, RemotePreferences.get(context, TestConstants.AUTHORITY, "other_prefs",
+            new RemotePreferenceOptions().setCacheEnabled(true)));
+
+        getSharedPreferences().edit().putString("string", "foo").commit();
+        Assert.assertEquals("foo", remotePrefs.getString("string", null));
+
+        // Shared instances live as long as the process
+        try {
+            remotePrefs.close();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCloseStopsCaching() {
+        getSharedPreferences().edit().putString("string", "foo").commit();
+
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setCacheEnabled(true);
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+        Assert.assertEquals("foo", remotePrefs.getString("string", null));
+        remotePrefs.close();
+        remotePrefs.close();
+
+        // The cache no longer receives notifications, so every
+        // read must go to the provider
+        getSharedPreferences().edit().putString("string", "bar").commit();
+        Assert.assertEquals("bar", remotePrefs.getString("string", null));
+        Assert.assertEquals("bar", remotePrefs.getString("string", null));
+        Assert.assertEquals(0, remotePrefs.getCacheStats().getSize());
+    }
+
+    @Test
+    public void testCachedSnapshotRead() throws Exception {
+        HashSet<String> set = new HashSet<String>();
+        set.add("foo");
+        set.add("bar");
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foobar")
+            .putStringSet("set", set)
+            .putInt("int", -0x12345678)
+            .putLong("long", 0x123456789abcdefL)
+            .putFloat("float", -3.14f)
+            .putBoolean("bool", true)
+            .commit();
+
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setCacheEnabled(true);
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+        Map<String, ?> prefs = remotePrefs.getAll();
+        Assert.assertEquals(getSharedPreferences().getAll(), prefs);
+        Assert.assertSame(prefs, remotePrefs.getAll());
+
+        Assert.assertEquals("foobar", remotePrefs.getString("string", null));
+        Assert.assertEquals(set, remotePrefs.getStringSet("set", null));
+        Assert.assertEquals(-0x12345678, remotePrefs.getInt("int", 0));
+        Assert.assertEquals(0x123456789abcdefL, remotePrefs.getLong("long", 0));
+        Assert.assertEquals(-3.14f, remotePrefs.getFloat("float", 0f), 0.0);
+        Assert.assertTrue(remotePrefs.getBoolean("bool", false));
+        Assert.assertEquals(42, remotePrefs.getInt("missing", 42));
+        Assert.assertFalse(remotePrefs.contains("missing"));
+
+        try {
+            remotePrefs.getLong("int", 0);
+            Assert.fail();
+        } catch (ClassCastException e) {
+            // Expected
+        }
+
+        // Changes are applied on top of the cached snapshot
+        TestPreferenceListener listener = new TestPreferenceListener();
+        remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+        try {
+            getSharedPreferences().edit().putInt("int", 7).commit();
+            Assert.assertTrue(listener.waitForChange(1));
+            Assert.assertEquals(7, remotePrefs.getInt("int", 0));
+            Assert.assertEquals(7, remotePrefs.getAll().get("int"));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+    }
+
+    @Test
+    public void testCacheSizeLimit() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            sb.append('x');
+        }
+        String bigString = sb.toString();
+        getSharedPreferences()
+            .edit()
+            .putString("big1", bigString)
+            .putString("big2", bigString)
+            .putInt("int", 1)
+            .commit();
+
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setCacheMaxSize(3000);
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+        Assert.assertNull(remotePrefs.getCacheStats());
+        remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options.setCacheEnabled(true));
+
+        // The whole file doesn't fit, but two of the strings do
+        Assert.assertEquals(3, remotePrefs.getAll().size());
+        Assert.assertEquals(bigString, remotePrefs.getString("big1", null));
+        Assert.assertEquals(bigString, remotePrefs.getString("big2", null));
+        Assert.assertEquals(1, remotePrefs.getInt("int", 0));
+        Assert.assertEquals(bigString, remotePrefs.getString("big1", null));
+        Assert.assertEquals(1, remotePrefs.getInt("int", 0));
+
+        RemotePreferenceCacheStats stats = remotePrefs.getCacheStats();
+        Assert.assertTrue(stats.getSize() <= 3000);
+        Assert.assertEquals(3000, stats.getMaxSize());
+        Assert.assertTrue(stats.getEvictionCount() > 0);
+        Assert.assertEquals(4, stats.getMissCount());
+        Assert.assertEquals(1, stats.getHitCount());
+    }
+
+    @Test
+    public void testNegativeCache() {
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setCacheEnabled(true);
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+
+        Assert.assertEquals(5, remotePrefs.getInt("int", 5));
+        Assert.assertFalse(remotePrefs.contains("int"));
+        Assert.assertNull(remotePrefs.getString("string", null));
+        RemotePreferenceCacheStats stats = remotePrefs.getCacheStats();
+        Assert.assertEquals(2, stats.getMissCount());
+        Assert.assertEquals(1, stats.getHitCount());
+
+        // Absent keys are forgotten when they are written
+        TestPreferenceListener listener = new TestPreferenceListener();
+        remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+        try {
+            getSharedPreferences().edit().putInt("int", 1).commit();
+            Assert.assertTrue(listener.waitForChange(1));
+            Assert.assertEquals(1, remotePrefs.getInt("int", 5));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+
+        remotePrefs.edit().putString("string", "foo").commit();
+        Assert.assertEquals("foo", remotePrefs.getString("string", null));
+    }
+
+    @Test
+    public void testReadYourWrites() {
+        getSharedPreferences()
+            .edit()
+            .putString("string", "foo")
+            .putInt("int", 1)
+            .commit();
+
+        Context context = getLocalContext();
+        RemotePreferenceOptions options = getOptions(true)
+            .setCacheEnabled(true);
+        RemotePreferences remotePrefs = new RemotePreferences(context, TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+        Assert.assertEquals(2, remotePrefs.getAll().size());
+
+        // Committed values are served from the cache without
+        // waiting for the change notifications
+        remotePrefs.edit().putString("string", "bar").remove("int").putBoolean("bool", true).commit();
+        long missCount = remotePrefs.getCacheStats().getMissCount();
+        Assert.assertEquals("bar", remotePrefs.getString("string", null));
+        Assert.assertEquals(5, remotePrefs.getInt("int", 5));
+        Assert.assertTrue(remotePrefs.getBoolean("bool", false));
+        Assert.assertEquals(missCount, remotePrefs.getCacheStats().getMissCount());
+
+        // After a clear, the committed values are the entire file
+        remotePrefs.edit().clear().putInt("int", 2).commit();
+        Map<String, ?> prefs = remotePrefs.getAll();
+        Assert.assertEquals(1, prefs.size());
+        Assert.assertEquals(2, prefs.get("int"));
+        Assert.assertEquals(2, getSharedPreferences().getInt("int", 0));
+    }
+
     @Test
     public void testInvalidAuthorityStrictMode() {
         Context context = getLocalContext();
-        RemotePreferences remotePrefs = new RemotePreferences(context, "foo", "bar", true);
+        RemotePreferences remotePrefs = new RemotePreferences(context, "foo", "bar", getOptions(true));
         try {
             remotePrefs.getString("pref", null);
             Assert.fail();
@@ -340,7 +1347,7 @@ public class RemotePreferencesTest {
     @Test
     public void testInvalidAuthorityNonStrictMode() {
         Context context = getLocalContext();
-        RemotePreferences remotePrefs = new RemotePreferences(context, "foo", "bar", false);
+        RemotePreferences remotePrefs = new RemotePreferences(context, "foo", "bar", getOptions(false));
         Assert.assertEquals("default", remotePrefs.getString("pref", "default"));
     }
 
@@ -361,6 +1368,67 @@ public class RemotePreferencesTest {
         Assert.assertEquals("default", remotePrefs.getString("pref", "default"));
     }
 
+    @Test
+    public void testCircuitBreakerOpens() {
+        RemotePreferenceOptions options = getOptions(false)
+            .setCircuitBreaker(2, 60000);
+        RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY_DISABLED, TestConstants.PREF_FILE, options);
+        Assert.assertEquals("default", remotePrefs.getString("pref", "default"));
+        Assert.assertEquals(RemotePreferences.CIRCUIT_CLOSED, remotePrefs.getCircuitState());
+        Assert.assertEquals("default", remotePrefs.getString("pref", "default"));
+        Assert.assertEquals(RemotePreferences.CIRCUIT_OPEN, remotePrefs.getCircuitState());
+        Assert.assertEquals("default", remotePrefs.getString("pref", "default"));
+    }
+
+    @Test
+    public void testCircuitBreakerOpenStrictMode() {
+        RemotePreferenceOptions options = getOptions(true)
+            .setCircuitBreaker(1, 60000);
+        RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY_DISABLED, TestConstants.PREF_FILE, options);
+        for (int i = 0; i < 2; ++i) {
+            try {
+                remotePrefs.getString("pref", null);
+                Assert.fail();
+            } catch (RemotePreferenceAccessException e) {
+                // Expected
+            }
+        }
+        Assert.assertEquals(RemotePreferences.CIRCUIT_OPEN, remotePrefs.getCircuitState());
+    }
+
+    @Test
+    public void testCircuitBreakerOpensWithCallTransport() {
+        RemotePreferenceOptions options = new RemotePreferenceOptions()
+            .setTransport(RemotePreferenceOptions.TRANSPORT_CALL)
+            .setCircuitBreaker(2, 60000);
+        RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY_DISABLED, TestConstants.PREF_FILE, options);
+
+        // Both failed reads and failed writes count
+        Assert.assertEquals("default", remotePrefs.getString("pref", "default"));
+        Assert.assertEquals(RemotePreferences.CIRCUIT_CLOSED, remotePrefs.getCircuitState());
+        Assert.assertFalse(remotePrefs.edit().putString("pref", "foobar").commit());
+        Assert.assertEquals(RemotePreferences.CIRCUIT_OPEN, remotePrefs.getCircuitState());
+    }
+
+    @Test
+    public void testCircuitBreakerOpensOnWrite() {
+        RemotePreferenceOptions options = new RemotePreferenceOptions()
+            .setTransport(RemotePreferenceOptions.TRANSPORT_CURSOR)
+            .setCircuitBreaker(1, 60000);
+        RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY_DISABLED, TestConstants.PREF_FILE, options);
+        Assert.assertFalse(remotePrefs.edit().putString("pref", "foobar").commit());
+        Assert.assertEquals(RemotePreferences.CIRCUIT_OPEN, remotePrefs.getCircuitState());
+    }
+
+    @Test
+    public void testCircuitBreakerIgnoresAccessDenied() {
+        RemotePreferenceOptions options = getOptions(false)
+            .setCircuitBreaker(1, 60000);
+        RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+        Assert.assertEquals("default", remotePrefs.getString(TestConstants.UNREADABLE_PREF_KEY, "default"));
+        Assert.assertEquals(RemotePreferences.CIRCUIT_CLOSED, remotePrefs.getCircuitState());
+    }
+
     @Test
     public void testUnreadablePrefStrictMode() {
         RemotePreferences remotePrefs = getRemotePreferences(true);
@@ -515,4 +1583,134 @@ public class RemotePreferencesTest {
             ht.quit();
         }
     }
+
+    @Test
+    public void testPreferenceChangeListenerExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            RemotePreferenceOptions options = getOptions(true)
+                .setCallbackExecutor(executor);
+            RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+            TestPreferenceListener listener = new TestPreferenceListener();
+
+            try {
+                remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+
+                getSharedPreferences()
+                    .edit()
+                    .putInt("foobar", 1337)
+                    .apply();
+
+                Assert.assertTrue(listener.waitForChange(1));
+                Assert.assertEquals("foobar", listener.getKey());
+            } finally {
+                remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalescePreferenceChangeCallbacks() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                synchronized (tasks) {
+                    tasks.add(command);
+                }
+            }
+        };
+
+        RemotePreferenceOptions options = getOptions(true)
+            .setCallbackExecutor(executor)
+            .setCoalesceCallbacks(true);
+        RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+        final List<String> keys = new ArrayList<String>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                keys.add(key);
+            }
+        };
+
+        try {
+            remotePrefs.registerOnSharedPreferenceChangeListener(listener);
+
+            // Committing on the main thread makes the provider (which is
+            // in the same process) notify us synchronously
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    getSharedPreferences().edit().putInt("a", 1).commit();
+                    getSharedPreferences().edit().putInt("b", 2).commit();
+                    getSharedPreferences().edit().putInt("a", 3).commit();
+                }
+            });
+
+            synchronized (tasks) {
+                Assert.assertEquals(1, tasks.size());
+                tasks.remove(0).run();
+            }
+            Assert.assertEquals(2, keys.size());
+            Assert.assertTrue(keys.contains("a"));
+            Assert.assertTrue(keys.contains("b"));
+        } finally {
+            remotePrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+    }
+
+    private void checkRemotePreferenceChangeListener(int transport, String key) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            RemotePreferenceOptions options = new RemotePreferenceOptions()
+                .setStrictMode(true)
+                .setTransport(transport)
+                .setCallbackExecutor(executor);
+            RemotePreferences remotePrefs = new RemotePreferences(getLocalContext(), TestConstants.AUTHORITY, TestConstants.PREF_FILE, options);
+            final CountDownLatch latch = new CountDownLatch(1);
+            final Object[] change = new Object[2];
+            RemotePreferences.OnRemotePreferenceChangeListener listener = new RemotePreferences.OnRemotePreferenceChangeListener() {
+                @Override
+                public void onRemotePreferenceChanged(RemotePreferences prefs, String key, Object value) {
+                    change[0] = key;
+                    change[1] = value;
+                    latch.countDown();
+                }
+            };
+
+            try {
+                remotePrefs.registerOnRemotePreferenceChangeListener(listener);
+
+                getSharedPreferences()
+                    .edit()
+                    .putInt(key, 1337)
+                    .apply();
+
+                Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+                Assert.assertEquals(key, change[0]);
+                Assert.assertEquals(1337, change[1]);
+            } finally {
+                remotePrefs.unregisterOnRemotePreferenceChangeListener(listener);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRemotePreferenceChangeListenerLocal() throws Exception {
+        checkRemotePreferenceChangeListener(RemotePreferenceOptions.TRANSPORT_LOCAL, "foobar");
+    }
+
+    @Test
+    public void testRemotePreferenceChangeListenerValueInNotification() throws Exception {
+        checkRemotePreferenceChangeListener(RemotePreferenceOptions.TRANSPORT_CURSOR, TestConstants.PUBLIC_PREF_KEY);
+    }
+
+    @Test
+    public void testRemotePreferenceChangeListenerValueNotInNotification() throws Exception {
+        checkRemotePreferenceChangeListener(RemotePreferenceOptions.TRANSPORT_CURSOR, "foobar");
+    }
 }
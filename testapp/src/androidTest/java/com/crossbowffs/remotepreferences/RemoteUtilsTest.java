@@ -56,4 +56,22 @@ public class RemoteUtilsTest {
             // Expected
         }
     }
+
+    @Test
+    public void testSerializeString() {
+        Assert.assertEquals(1337, RemoteUtils.deserializeString(RemoteUtils.serializeString(1337), RemoteContract.TYPE_INT));
+        Assert.assertEquals(3.14f, RemoteUtils.deserializeString(RemoteUtils.serializeString(3.14f), RemoteContract.TYPE_FLOAT));
+        Assert.assertEquals(true, RemoteUtils.deserializeString(RemoteUtils.serializeString(true), RemoteContract.TYPE_BOOLEAN));
+        Assert.assertNull(RemoteUtils.deserializeString(RemoteUtils.serializeString(null), RemoteContract.TYPE_NULL));
+    }
+
+    @Test
+    public void testDeserializeInvalidString() {
+        try {
+            RemoteUtils.deserializeString("yes", RemoteContract.TYPE_BOOLEAN);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
 }
@@ -13,4 +13,14 @@ public class TestPreferenceProvider extends RemotePreferenceProvider {
         if (prefKey.equals(TestConstants.UNWRITABLE_PREF_KEY) && write) return false;
         return true;
     }
+
+    @Override
+    protected long getAccessCacheDuration() {
+        return 60 * 1000;
+    }
+
+    @Override
+    protected boolean includeValueInChangeNotification(String prefName, String prefKey) {
+        return prefKey.equals(TestConstants.PUBLIC_PREF_KEY);
+    }
 }
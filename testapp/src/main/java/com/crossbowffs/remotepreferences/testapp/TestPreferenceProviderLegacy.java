@@ -0,0 +1,21 @@
+package com.crossbowffs.remotepreferences.testapp;
+
+import android.os.Bundle;
+
+import com.crossbowffs.remotepreferences.RemotePreferenceProvider;
+
+/**
+ * Behaves like a provider built from a release of the library that
+ * predates {@code call()} support, which returns {@code null} for
+ * every method.
+ */
+public class TestPreferenceProviderLegacy extends RemotePreferenceProvider {
+    public TestPreferenceProviderLegacy() {
+        super(TestConstants.AUTHORITY_LEGACY, new String[] {TestConstants.PREF_FILE});
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        return null;
+    }
+}
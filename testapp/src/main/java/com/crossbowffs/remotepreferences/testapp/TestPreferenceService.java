@@ -0,0 +1,9 @@
+package com.crossbowffs.remotepreferences.testapp;
+
+import com.crossbowffs.remotepreferences.RemotePreferenceService;
+
+public class TestPreferenceService extends RemotePreferenceService {
+    public TestPreferenceService() {
+        super(TestConstants.AUTHORITY);
+    }
+}